@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon.benchmarks;
+
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.repository.Repository;
+import org.kuali.common.aws.s3.LocalS3Server;
+import org.kuali.maven.wagon.S3StreamWagon;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Starts the local S3 stand-in and connects wagons to it.
+ */
+final class BenchmarkSupport {
+
+    static final String BUCKET = "benchmarks";
+
+    static final String BASE_DIR = "repo";
+
+    private BenchmarkSupport() {
+    }
+
+    static LocalS3Server startServer(long latencyMillis, long bandwidthBytesPerSecond) throws IOException {
+        LocalS3Server server = new LocalS3Server().start();
+        server.setLatencyMillis(latencyMillis);
+        server.setBandwidthBytesPerSecond(bandwidthBytesPerSecond);
+        server.createBucket(BUCKET);
+        return server;
+    }
+
+    /**
+     * @param server     local S3 stand-in
+     * @param parameters wagon configuration, as found in the server entry of settings.xml
+     * @return connected wagon
+     */
+    static S3StreamWagon connect(LocalS3Server server, Properties parameters) throws Exception {
+        S3StreamWagon wagon = new S3StreamWagon();
+        wagon.setEndpoint(server.getEndpoint());
+        Repository repository = new Repository("benchmarks", "s3://" + BUCKET + "/" + BASE_DIR);
+        repository.setParameters(parameters);
+        AuthenticationInfo authenticationInfo = new AuthenticationInfo();
+        authenticationInfo.setUserName("benchmark");
+        authenticationInfo.setPassword("benchmark");
+        wagon.connect(repository, authenticationInfo);
+        return wagon;
+    }
+
+    /**
+     * Wagon configuration of a named transfer mode.
+     */
+    static Properties parameters(String mode, String cacheDirectory) {
+        Properties parameters = new Properties();
+        switch (mode) {
+            case "staged":
+                break;
+            case "stream":
+                parameters.setProperty("streamDownloads", "true");
+                parameters.setProperty("streamUploads", "true");
+                break;
+            case "parallel":
+                parameters.setProperty("parallelDownloads", "true");
+                parameters.setProperty("parallelDownloadThreshold", Integer.toString(1024 * 1024));
+                break;
+            case "cache":
+                parameters.setProperty("cacheDirectory", cacheDirectory);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mode [" + mode + "]");
+        }
+        return parameters;
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
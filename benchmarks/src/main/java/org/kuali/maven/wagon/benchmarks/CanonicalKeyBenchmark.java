@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon.benchmarks;
+
+import org.kuali.common.aws.s3.S3Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Normalizes S3 keys with {@link S3Utils#getCanonicalKey(String, String)}, which runs for every transfer.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CanonicalKeyBenchmark {
+
+    @Param({
+            "org/example/example/1.0/example-1.0.jar",
+            "org/example/./example/1.0/../1.0/example-1.0.jar",
+            "org/example/example/maven-metadata.xml.sha1"
+    })
+    public String resourceName;
+
+    @Benchmark
+    public String canonicalKey() {
+        return S3Utils.getCanonicalKey("release/", resourceName);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.wagon.InputData;
+import org.apache.maven.wagon.resource.Resource;
+import org.kuali.common.aws.s3.LocalS3Server;
+import org.kuali.maven.wagon.S3StreamWagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads an artifact through {@link S3StreamWagon#fillInputData(InputData)}.
+ * <p>
+ * {@link #download(Blackhole)} reads the whole artifact, {@link #timeToFirstByte()} only its first byte.
+ * Run with <code>-prof gc</code> to report the allocation rate.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DownloadBenchmark {
+
+    private static final String RESOURCE_NAME = "org/example/1.0/example-1.0.jar";
+
+    @Param({"1024", "1048576", "33554432"})
+    public int size;
+
+    @Param({"staged", "stream", "parallel", "cache"})
+    public String mode;
+
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    @Param({"0"})
+    public long bandwidthBytesPerSecond;
+
+    private LocalS3Server server;
+    private S3StreamWagon wagon;
+    private File cacheDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = BenchmarkSupport.startServer(latencyMillis, bandwidthBytesPerSecond);
+        server.putObject(BenchmarkSupport.BUCKET, BenchmarkSupport.BASE_DIR + "/" + RESOURCE_NAME, BenchmarkSupport.randomBytes(size));
+        cacheDirectory = Files.createTempDirectory("s3-wagon-benchmark-cache").toFile();
+        wagon = BenchmarkSupport.connect(server, BenchmarkSupport.parameters(mode, cacheDirectory.getAbsolutePath()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+        server.stop();
+        FileUtils.deleteQuietly(cacheDirectory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public long download(Blackhole blackhole) throws Exception {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        try (InputStream in = open()) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                blackhole.consume(buffer);
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public int timeToFirstByte() throws Exception {
+        try (InputStream in = open()) {
+            return in.read();
+        }
+    }
+
+    private InputStream open() throws Exception {
+        InputData inputData = new InputData();
+        inputData.setResource(new Resource(RESOURCE_NAME));
+        wagon.fillInputData(inputData);
+        return inputData.getInputStream();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon.benchmarks;
+
+import org.kuali.common.aws.s3.LocalS3Server;
+import org.kuali.maven.wagon.S3StreamWagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists a directory through {@link S3StreamWagon#getFileList(String)}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ListDirectoryBenchmark {
+
+    private static final String DIRECTORY = "org/example/";
+
+    @Param({"100", "10000"})
+    public int entries;
+
+    @Param({"1000"})
+    public int listPageSize;
+
+    @Param({"true", "false"})
+    public boolean listPrefetch;
+
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    private LocalS3Server server;
+    private S3StreamWagon wagon;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = BenchmarkSupport.startServer(latencyMillis, 0);
+        for (int i = 0; i < entries; i++) {
+            server.putObject(BenchmarkSupport.BUCKET, BenchmarkSupport.BASE_DIR + "/" + DIRECTORY + "1." + i + "/example-1." + i + ".pom", new byte[0]);
+        }
+        Properties parameters = new Properties();
+        parameters.setProperty("listPageSize", Integer.toString(listPageSize));
+        parameters.setProperty("listPrefetch", Boolean.toString(listPrefetch));
+        wagon = BenchmarkSupport.connect(server, parameters);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+        server.stop();
+    }
+
+    @Benchmark
+    public List<String> listDirectory() throws Exception {
+        return wagon.getFileList(DIRECTORY);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon.benchmarks;
+
+import org.apache.maven.wagon.OutputData;
+import org.apache.maven.wagon.resource.Resource;
+import org.kuali.common.aws.s3.LocalS3Server;
+import org.kuali.maven.wagon.S3StreamWagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads an artifact through {@link S3StreamWagon#fillOutputData(OutputData)}, writing it in chunks as Maven does
+ * and closing the stream, which completes the upload.
+ * <p>
+ * The <code>staged</code> mode measures the temporary file staging of <code>StagingOutputStream</code>, the
+ * <code>stream</code> mode the multipart upload of <code>MultipartUploadOutputStream</code>.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UploadBenchmark {
+
+    private static final String RESOURCE_NAME = "org/example/1.0/example-1.0.jar";
+
+    @Param({"1024", "1048576", "33554432"})
+    public int size;
+
+    @Param({"staged", "stream"})
+    public String mode;
+
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    @Param({"0"})
+    public long bandwidthBytesPerSecond;
+
+    @Param({"8192"})
+    public int writeSize;
+
+    private LocalS3Server server;
+    private S3StreamWagon wagon;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = BenchmarkSupport.startServer(latencyMillis, bandwidthBytesPerSecond);
+        wagon = BenchmarkSupport.connect(server, BenchmarkSupport.parameters(mode, null));
+        data = BenchmarkSupport.randomBytes(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+        server.stop();
+    }
+
+    @Benchmark
+    public void upload() throws Exception {
+        OutputData outputData = new OutputData();
+        outputData.setResource(new Resource(RESOURCE_NAME));
+        wagon.fillOutputData(outputData);
+        try (OutputStream out = outputData.getOutputStream()) {
+            for (int offset = 0; offset < data.length; offset += writeSize) {
+                out.write(data, offset, Math.min(writeSize, data.length - offset));
+            }
+        }
+    }
+}
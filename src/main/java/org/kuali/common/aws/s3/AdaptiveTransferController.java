@@ -0,0 +1,257 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.util.AWSRequestMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Tunes the number of parts in flight and the part size of multipart transfers from the observed throughput, within
+ * configured bounds.
+ * <p>
+ * The number of parts in flight follows AIMD: it grows by one after a window of completed parts whose aggregate
+ * throughput improved on the previous window, shrinks by one when throughput dropped markedly, and is halved when S3
+ * throttles requests (<code>503 SlowDown</code>, also when the SDK retried them successfully) or parts fail, at most
+ * once per window. The part size is steered towards the amount of data a single part transfers in the target part
+ * duration, so that slow links use small parts that are cheap to retry and fast links use large parts with less
+ * per-request overhead; failures halve it.
+ * </p>
+ * <p>
+ * A controller is meant to be shared by the transfers of a session, so that what one transfer learned about the link
+ * carries over to the next. With equal lower and upper bounds, it applies fixed settings.
+ * </p>
+ */
+public class AdaptiveTransferController {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveTransferController.class);
+
+    private static final long PART_SIZE_ALIGNMENT = 1024 * 1024;
+
+    private static final double IMPROVEMENT = 1.05;
+
+    private static final double DEGRADATION = 0.8;
+
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final long minPartSize;
+    private final long maxPartSize;
+    private final long targetPartNanos;
+    private final LongSupplier clock;
+
+    private int concurrency;
+    private long partSize;
+    private int inFlight = 0;
+
+    private long windowStart;
+    private long windowBytes = 0;
+    private int windowParts = 0;
+    private double previousThroughput = 0;
+    private int partsSinceDecrease = Integer.MAX_VALUE;
+
+    /**
+     * @param minConcurrency     lower bound of parts in flight
+     * @param maxConcurrency     upper bound of parts in flight
+     * @param initialConcurrency parts in flight before anything was observed
+     * @param minPartSize        lower bound of the part size in bytes
+     * @param maxPartSize        upper bound of the part size in bytes
+     * @param initialPartSize    part size in bytes before anything was observed
+     * @param targetPartMillis   time a single part should take to transfer
+     */
+    public AdaptiveTransferController(int minConcurrency, int maxConcurrency, int initialConcurrency,
+                                      long minPartSize, long maxPartSize, long initialPartSize, long targetPartMillis) {
+        this(minConcurrency, maxConcurrency, initialConcurrency, minPartSize, maxPartSize, initialPartSize, targetPartMillis, System::nanoTime);
+    }
+
+    AdaptiveTransferController(int minConcurrency, int maxConcurrency, int initialConcurrency,
+                               long minPartSize, long maxPartSize, long initialPartSize, long targetPartMillis, LongSupplier clock) {
+        if (minConcurrency < 1 || maxConcurrency < minConcurrency) {
+            throw new IllegalArgumentException("concurrency bounds must satisfy 1 <= min <= max, but found ["
+                    + minConcurrency + ", " + maxConcurrency + "]");
+        }
+        if (minPartSize < 1 || maxPartSize < minPartSize) {
+            throw new IllegalArgumentException("part size bounds must satisfy 1 <= min <= max, but found ["
+                    + minPartSize + ", " + maxPartSize + "]");
+        }
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.minPartSize = minPartSize;
+        this.maxPartSize = maxPartSize;
+        this.targetPartNanos = targetPartMillis * 1000000;
+        this.concurrency = clamp(initialConcurrency, minConcurrency, maxConcurrency);
+        this.partSize = clamp(initialPartSize, minPartSize, maxPartSize);
+        this.clock = clock;
+        this.windowStart = clock.getAsLong();
+    }
+
+    /**
+     * @return controller that keeps the given settings
+     */
+    public static AdaptiveTransferController fixed(int concurrency, long partSize) {
+        return new AdaptiveTransferController(concurrency, concurrency, concurrency, partSize, partSize, partSize, 1);
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return size in bytes of the next part
+     */
+    public synchronized long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Wait until fewer parts than the current concurrency are in flight, and count one more.
+     *
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= concurrency) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Count one part less in flight.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * @param bytes         size of the completed part
+     * @param durationNanos time the part took to transfer
+     */
+    public synchronized void onSuccess(long bytes, long durationNanos) {
+        partsSinceDecrease++;
+        if (durationNanos > 0 && bytes >= partSize / 2) {
+            // only full-sized parts tell how much a part can carry in the target time
+            long ideal = (long) ((double) bytes * targetPartNanos / durationNanos);
+            setPartSize((partSize + ideal) / 2);
+        }
+        windowBytes += bytes;
+        if (++windowParts < concurrency) {
+            return;
+        }
+        long now = clock.getAsLong();
+        double throughput = (double) windowBytes / Math.max(1, now - windowStart);
+        if (throughput > previousThroughput * IMPROVEMENT) {
+            setConcurrency(concurrency + 1);
+        } else if (throughput < previousThroughput * DEGRADATION) {
+            setConcurrency(concurrency - 1);
+        }
+        previousThroughput = throughput;
+        windowStart = now;
+        windowBytes = 0;
+        windowParts = 0;
+    }
+
+    /**
+     * Back off after S3 throttled a request.
+     */
+    public synchronized void onThrottle() {
+        if (decrease()) {
+            log.debug("throttled, reduced concurrency to [" + concurrency + "]");
+        }
+    }
+
+    /**
+     * Back off after a part failed; throttling errors are recognized as such.
+     */
+    public synchronized void onFailure(Exception e) {
+        if (e instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) e)) {
+            onThrottle();
+        } else if (decrease()) {
+            setPartSize(partSize / 2);
+            log.debug("part failed, reduced concurrency to [" + concurrency + "] and part size to [" + partSize + "]");
+        }
+    }
+
+    /**
+     * @param delegate collector to forward to, or null
+     * @return collector to set on part requests, which reports throttled attempts that the SDK retried
+     */
+    public RequestMetricCollector collector(final RequestMetricCollector delegate) {
+        return new RequestMetricCollector() {
+            @Override
+            public void collectMetrics(Request<?> request, Response<?> response) {
+                AWSRequestMetrics metrics = request.getAWSRequestMetrics();
+                Number throttled = metrics == null
+                        ? null
+                        : metrics.getTimingInfo().getCounter(AWSRequestMetrics.Field.ThrottleException.name());
+                if (throttled != null && throttled.intValue() > 0) {
+                    onThrottle();
+                }
+                if (delegate != null) {
+                    delegate.collectMetrics(request, response);
+                }
+            }
+        };
+    }
+
+    /**
+     * Halve the concurrency, unless it was already reduced within the current window of parts.
+     */
+    private boolean decrease() {
+        if (partsSinceDecrease < concurrency) {
+            return false;
+        }
+        partsSinceDecrease = 0;
+        setConcurrency(concurrency / 2);
+        previousThroughput = 0;
+        windowStart = clock.getAsLong();
+        windowBytes = 0;
+        windowParts = 0;
+        return true;
+    }
+
+    private void setConcurrency(int value) {
+        int clamped = clamp(value, minConcurrency, maxConcurrency);
+        if (clamped != concurrency) {
+            log.debug("concurrency [" + concurrency + "] -> [" + clamped + "]");
+            concurrency = clamped;
+            notifyAll();
+        }
+    }
+
+    private void setPartSize(long value) {
+        long aligned = Math.max(PART_SIZE_ALIGNMENT, value / PART_SIZE_ALIGNMENT * PART_SIZE_ALIGNMENT);
+        partSize = clamp(aligned, minPartSize, maxPartSize);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps latency histograms, byte counts and counters of S3 transfers in memory.
+ */
+public class DefaultTransferMetrics implements TransferMetrics, TransferMetricsMXBean {
+
+    private volatile State state = new State();
+
+    @Override
+    public void recordTransfer(String operation, long bytes, long durationNanos) {
+        OperationStatistics statistics = state.getOperation(operation);
+        statistics.latency.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        statistics.bytes.add(bytes);
+    }
+
+    @Override
+    public void recordTimeToFirstByte(String operation, long durationNanos) {
+        state.getOperation(operation).timeToFirstByte.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    }
+
+    @Override
+    public void recordRetries(long retries) {
+        state.retries.add(retries);
+    }
+
+    @Override
+    public void recordPoolPending(long pending) {
+        state.poolPending.record(pending);
+    }
+
+    @Override
+    public void recordCacheLookup(boolean hit) {
+        (hit ? state.cacheHits : state.cacheMisses).increment();
+    }
+
+    @Override
+    public Map<String, Long> getStatistics() {
+        State current = state;
+        Map<String, Long> statistics = new TreeMap<>();
+        for (Map.Entry<String, OperationStatistics> operation : current.operations.entrySet()) {
+            String name = operation.getKey();
+            OperationStatistics values = operation.getValue();
+            long bytes = values.bytes.sum();
+            long micros = values.latency.getTotal();
+            statistics.put(name + ".count", values.latency.getCount());
+            statistics.put(name + ".bytes", bytes);
+            statistics.put(name + ".bytesPerSecond", micros == 0 ? 0 : bytes * 1000000 / micros);
+            putPercentiles(statistics, name + ".latencyMicros", values.latency);
+            if (values.timeToFirstByte.getCount() > 0) {
+                putPercentiles(statistics, name + ".timeToFirstByteMicros", values.timeToFirstByte);
+            }
+        }
+        statistics.put("retries", current.retries.sum());
+        statistics.put("pool.pending.max", current.poolPending.getMax());
+        statistics.put("pool.pending.p99", current.poolPending.getPercentile(99));
+        statistics.put("cache.hits", current.cacheHits.sum());
+        statistics.put("cache.misses", current.cacheMisses.sum());
+        return statistics;
+    }
+
+    @Override
+    public void reset() {
+        state = new State();
+    }
+
+    private static void putPercentiles(Map<String, Long> statistics, String name, LatencyHistogram histogram) {
+        statistics.put(name + ".p50", histogram.getPercentile(50));
+        statistics.put(name + ".p90", histogram.getPercentile(90));
+        statistics.put(name + ".p99", histogram.getPercentile(99));
+        statistics.put(name + ".max", histogram.getMax());
+    }
+
+    private static class State {
+        private final ConcurrentMap<String, OperationStatistics> operations = new ConcurrentHashMap<>();
+        private final LongAdder retries = new LongAdder();
+        private final LatencyHistogram poolPending = new LatencyHistogram();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder cacheMisses = new LongAdder();
+
+        private OperationStatistics getOperation(String operation) {
+            return operations.computeIfAbsent(operation, name -> new OperationStatistics());
+        }
+    }
+
+    private static class OperationStatistics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+        private final LongAdder bytes = new LongAdder();
+    }
+}
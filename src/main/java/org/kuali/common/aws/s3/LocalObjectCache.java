@@ -0,0 +1,312 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.WagonException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent on-disk cache of S3 objects, keyed by bucket, canonical key and ETag.
+ * <p>
+ * Cached objects with a key matching the immutable pattern are served without contacting S3. Other cached objects
+ * are revalidated with a conditional GET (<code>If-None-Match</code>), which transfers the content only if it changed.
+ * The least recently used entries are evicted once the cache exceeds its size budget.
+ * </p>
+ * <p>
+ * The cache directory can be shared between local repositories and processes. The content of each version of an
+ * object is stored in a file named after its key and ETag, and a properties file per key points to the current
+ * version. Both are written to temporary files and moved into place, the content first, so that a reader never sees
+ * the properties of one version with the content of another.
+ * </p>
+ */
+public class LocalObjectCache {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalObjectCache.class);
+
+    /**
+     * Keys of versioned release artifacts and their checksums, laid out as
+     * <code>.../artifactId/version/artifactId-version[-classifier].extension</code> with a version that is not a
+     * SNAPSHOT. Repository metadata and other files are revalidated.
+     */
+    public static final String DEFAULT_IMMUTABLE_PATTERN = "^(?!.*SNAPSHOT)(?:.*/)?([^/]+)/([^/]+)/\\1-\\2(?:-[^/]+)?\\.[^/]+$";
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String NAME_SEPARATOR = "-";
+    private static final String PROPERTIES_SUFFIX = ".properties";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String USER_METADATA_PREFIX = "meta.";
+
+    private final File directory;
+    private final long maxSize;
+    private final Pattern immutableKeys;
+
+    public LocalObjectCache(File directory, long maxSize, Pattern immutableKeys) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.immutableKeys = immutableKeys;
+    }
+
+    /**
+     * Get the current content of an S3 object through the cache.
+     *
+     * @param request object to get
+     * @param client  S3 client used on cache misses and for revalidation
+     * @return cached entry holding the current object content
+     * @throws WagonException when the object does not exist or cannot be fetched
+     */
+    public Entry get(GetObjectRequest request, AmazonS3 client) throws WagonException {
+        String name = getEntryName(request.getBucketName(), request.getKey());
+        File propertiesFile = new File(directory, name + PROPERTIES_SUFFIX);
+        Properties properties = readProperties(propertiesFile);
+        String etag = properties.getProperty(ETAG);
+        File data = etag == null ? null : getDataFile(name, etag);
+        if (data != null && !data.exists()) {
+            // evicted
+            etag = null;
+        }
+        if (etag != null && isImmutable(request.getKey())) {
+            log.debug("cache hit for immutable [" + getS3URI(request) + "]");
+            return touch(data, properties);
+        }
+
+        GetObjectRequest conditionalRequest = new GetObjectRequest(request.getBucketName(), request.getKey());
+        conditionalRequest.setRequestMetricCollector(request.getRequestMetricCollector());
+        if (etag != null) {
+            conditionalRequest.withNonmatchingETagConstraint(etag);
+        }
+        S3Object object;
+        try {
+            object = S3Utils.getObject(conditionalRequest, client);
+        } catch (ResourceDoesNotExistException e) {
+            FileUtils.deleteQuietly(propertiesFile);
+            FileUtils.deleteQuietly(data);
+            throw e;
+        }
+        if (object == null) {
+            log.debug("cache hit for revalidated [" + getS3URI(request) + "]");
+            return touch(data, properties);
+        }
+        log.debug("cache miss for [" + getS3URI(request) + "]");
+        Entry entry = store(object, name, propertiesFile);
+        if (data != null && !data.equals(entry.getFile())) {
+            // content of the previous version
+            FileUtils.deleteQuietly(data);
+        }
+        return entry;
+    }
+
+    /**
+     * @return true if the cache holds content of the object, whether or not it is current
+     */
+    public boolean contains(String bucketName, String key) {
+        String name = getEntryName(bucketName, key);
+        String etag = readProperties(new File(directory, name + PROPERTIES_SUFFIX)).getProperty(ETAG);
+        return etag != null && getDataFile(name, etag).exists();
+    }
+
+    /**
+     * @param key S3 key
+     * @return true if the content of the key is never expected to change once published
+     */
+    public boolean isImmutable(String key) {
+        return immutableKeys != null && immutableKeys.matcher(key).matches();
+    }
+
+    private Entry store(S3Object object, String name, File propertiesFile) throws WagonException {
+        File tmpData = null;
+        try {
+            FileUtils.forceMkdir(directory);
+            tmpData = File.createTempFile(name, ".tmp", directory);
+            try (InputStream in = object.getObjectContent()) {
+                FileUtils.copyInputStreamToFile(in, tmpData);
+            }
+            ObjectMetadata metadata = object.getObjectMetadata();
+            File data = getDataFile(name, metadata.getETag());
+            Properties properties = new Properties();
+            properties.setProperty(ETAG, metadata.getETag());
+            if (metadata.getLastModified() != null) {
+                properties.setProperty(LAST_MODIFIED, Long.toString(metadata.getLastModified().getTime()));
+            }
+            for (Map.Entry<String, String> userMetadata : metadata.getUserMetadata().entrySet()) {
+                properties.setProperty(USER_METADATA_PREFIX + userMetadata.getKey(), userMetadata.getValue());
+            }
+            Files.move(tmpData.toPath(), data.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeProperties(properties, propertiesFile);
+            evict(data);
+            return new Entry(data, properties, false);
+        } catch (IOException | AmazonClientException e) {
+            throw new TransferFailedException("failed to cache [" + S3Utils.getS3URI(object.getBucketName(), object.getKey()) + "]", e);
+        } finally {
+            FileUtils.deleteQuietly(tmpData);
+        }
+    }
+
+    /**
+     * Remove the least recently used entries until the cache fits its size budget. The content about to be returned is
+     * never evicted, so an object larger than the budget is still served, and only evicted once another is stored.
+     *
+     * @param retained content file to keep, or <code>null</code>
+     */
+    synchronized void evict(File retained) {
+        File[] entries = directory.listFiles((dir, fileName) -> fileName.endsWith(DATA_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        long size = 0;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            if (entry.equals(retained)) {
+                continue;
+            }
+            long length = entry.length();
+            String name = StringUtils.substringBefore(entry.getName(), NAME_SEPARATOR);
+            File propertiesFile = new File(directory, name + PROPERTIES_SUFFIX);
+            if (FileUtils.deleteQuietly(entry)) {
+                if (entry.equals(getDataFile(name, readProperties(propertiesFile).getProperty(ETAG)))) {
+                    FileUtils.deleteQuietly(propertiesFile);
+                }
+                size -= length;
+                log.debug("evicted cache entry [" + entry.getAbsolutePath() + "]");
+            }
+        }
+    }
+
+    private static Entry touch(File data, Properties properties) {
+        if (!data.setLastModified(System.currentTimeMillis())) {
+            log.debug("failed to update access time of [" + data.getAbsolutePath() + "]");
+        }
+        return new Entry(data, properties, true);
+    }
+
+    private static Properties readProperties(File propertiesFile) {
+        Properties properties = new Properties();
+        if (propertiesFile.exists()) {
+            try (InputStream in = new FileInputStream(propertiesFile)) {
+                properties.load(in);
+            } catch (IOException e) {
+                log.debug("ignoring unreadable cache entry [" + propertiesFile.getAbsolutePath() + "]", e);
+            }
+        }
+        return properties;
+    }
+
+    private void writeProperties(Properties properties, File propertiesFile) throws IOException {
+        File tmpProperties = File.createTempFile(propertiesFile.getName(), ".tmp", directory);
+        try {
+            try (OutputStream out = new FileOutputStream(tmpProperties)) {
+                properties.store(out, null);
+            }
+            Files.move(tmpProperties.toPath(), propertiesFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteQuietly(tmpProperties);
+        }
+    }
+
+    private static String getEntryName(String bucketName, String key) {
+        return DigestUtils.sha1Hex(S3Utils.getS3URI(bucketName, key));
+    }
+
+    /**
+     * @return file of the content of the given version of an entry, named after a digest of the ETag, since servers
+     * other than S3 may use characters in ETags that are not valid in file names
+     */
+    File getDataFile(String name, String etag) {
+        return new File(directory, name + NAME_SEPARATOR + DigestUtils.sha1Hex(String.valueOf(etag)) + DATA_SUFFIX);
+    }
+
+    private static String getS3URI(GetObjectRequest request) {
+        return S3Utils.getS3URI(request.getBucketName(), request.getKey());
+    }
+
+    /**
+     * Cached content of an S3 object.
+     */
+    public static class Entry {
+        private final File file;
+        private final Properties properties;
+        private final boolean hit;
+
+        Entry(File file, Properties properties, boolean hit) {
+            this.file = file;
+            this.properties = properties;
+            this.hit = hit;
+        }
+
+        /**
+         * @return true if the entry was served from the cache without transferring its content
+         */
+        public boolean isHit() {
+            return hit;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getETag() {
+            return properties.getProperty(ETAG);
+        }
+
+        /**
+         * @return last modified time of the S3 object, or 0 if unknown
+         */
+        public long getLastModified() {
+            return Long.parseLong(properties.getProperty(LAST_MODIFIED, "0"));
+        }
+
+        /**
+         * @return user metadata (<code>x-amz-meta-*</code>) of the S3 object, or null if not set
+         */
+        public String getUserMetadata(String name) {
+            return properties.getProperty(USER_METADATA_PREFIX + name);
+        }
+    }
+}
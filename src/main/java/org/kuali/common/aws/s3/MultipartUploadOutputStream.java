@@ -0,0 +1,322 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads everything written to it to a single S3 object, sending fixed-size parts with a multipart upload
+ * while the caller is still writing.
+ * <p>
+ * Parts are buffered in memory using a bounded pool of buffers: once all buffers are in flight, writes block until a
+ * part upload completes. Content that fits in a single part is sent with a single PUT instead.
+ * </p>
+ * <p>
+ * With an {@link AdaptiveTransferController}, each part takes the part size of the controller when its buffer is
+ * allocated, and part uploads wait for the controller to admit them, within the bound set by the buffer count.
+ * </p>
+ */
+public class MultipartUploadOutputStream extends OutputStream {
+
+    private static final Logger log = LoggerFactory.getLogger(MultipartUploadOutputStream.class);
+
+    /**
+     * Smallest part size accepted by S3 for all but the last part of a multipart upload.
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final String key;
+    private final ObjectMetadata metadata;
+    private final AdaptiveTransferController controller;
+    private final int bufferCount;
+
+    private final BlockingQueue<byte[]> buffers;
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+    private int allocatedBuffers = 0;
+
+    private ExecutorService executor;
+    private String uploadId;
+    private byte[] buffer;
+    private int position;
+    private boolean closed = false;
+
+    public MultipartUploadOutputStream(AmazonS3 client, String bucketName, String key, ObjectMetadata metadata, int partSize, int bufferCount) {
+        this(client, bucketName, key, metadata, AdaptiveTransferController.fixed(bufferCount, partSize), bufferCount);
+    }
+
+    /**
+     * @param controller  source of the part size, which must be between {@link #MIN_PART_SIZE} and
+     *                    {@link Integer#MAX_VALUE}, and of the number of part uploads in flight
+     * @param bufferCount number of part buffers, which bounds memory use and the number of part uploads in flight
+     */
+    public MultipartUploadOutputStream(AmazonS3 client, String bucketName, String key, ObjectMetadata metadata,
+                                       AdaptiveTransferController controller, int bufferCount) {
+        long partSize = controller.getPartSize();
+        if (partSize < MIN_PART_SIZE || partSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("part size [" + partSize + "] must be at least [" + MIN_PART_SIZE + "] bytes");
+        }
+        if (bufferCount < 2) {
+            throw new IllegalArgumentException("at least 2 part buffers are needed, but found [" + bufferCount + "]");
+        }
+        this.client = client;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.metadata = metadata == null ? new ObjectMetadata() : metadata;
+        this.controller = controller;
+        this.bufferCount = bufferCount;
+        this.buffers = new ArrayBlockingQueue<>(bufferCount);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureBuffer();
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureBuffer();
+            int count = Math.min(len, buffer.length - position);
+            System.arraycopy(b, off, buffer, position, count);
+            position += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (uploadId == null) {
+                putSingleObject();
+            } else {
+                if (position > 0) {
+                    submitPart();
+                }
+                completeUpload();
+            }
+        } catch (IOException | RuntimeException e) {
+            abortUpload();
+            throw e;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            buffers.clear();
+            buffer = null;
+        }
+    }
+
+    /**
+     * Discard the content written so far, aborting the multipart upload if one was started, instead of uploading it.
+     * Closing the stream afterwards has no effect.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        abortUpload();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        buffers.clear();
+        buffer = null;
+    }
+
+    private void ensureBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("cannot write to closed upload stream of [" + getS3URI() + "]");
+        }
+        if (buffer == null) {
+            buffer = acquireBuffer();
+            position = 0;
+        } else if (position == buffer.length) {
+            try {
+                if (uploadId == null) {
+                    initiateUpload();
+                }
+                submitPart();
+            } catch (IOException | RuntimeException e) {
+                closed = true;
+                abortUpload();
+                if (executor != null) {
+                    executor.shutdownNow();
+                }
+                throw e;
+            }
+            buffer = acquireBuffer();
+            position = 0;
+        }
+    }
+
+    private byte[] acquireBuffer() throws IOException {
+        int partSize = (int) Math.max(MIN_PART_SIZE, Math.min(Integer.MAX_VALUE, controller.getPartSize()));
+        byte[] available = buffers.poll();
+        if (available == null && allocatedBuffers < bufferCount) {
+            allocatedBuffers++;
+            return new byte[partSize];
+        }
+        try {
+            if (available == null) {
+                available = buffers.take();
+            }
+            // buffers of an earlier part size are replaced
+            return available.length == partSize ? available : new byte[partSize];
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a part buffer of [" + getS3URI() + "]");
+        }
+    }
+
+    private void initiateUpload() throws IOException {
+        try {
+            uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, metadata)).getUploadId();
+        } catch (AmazonClientException e) {
+            throw new IOException("failed to initiate multipart upload of [" + getS3URI() + "]", e);
+        }
+        executor = Executors.newFixedThreadPool(bufferCount, runnable -> {
+            Thread thread = new Thread(runnable, "s3-wagon-upload-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.debug("started multipart upload [" + uploadId + "] of [" + getS3URI() + "]");
+    }
+
+    private void submitPart() throws IOException {
+        checkFailedParts();
+        final byte[] partBuffer = buffer;
+        final int partLength = position;
+        final int partNumber = parts.size() + 1;
+        buffer = null;
+        parts.add(executor.submit(() -> {
+            controller.acquire();
+            try {
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(partLength)
+                        .withInputStream(new ByteArrayInputStream(partBuffer, 0, partLength));
+                request.setRequestMetricCollector(controller.collector(null));
+                long start = System.nanoTime();
+                PartETag partETag;
+                try {
+                    partETag = client.uploadPart(request).getPartETag();
+                } catch (AmazonClientException e) {
+                    controller.onFailure(e);
+                    throw e;
+                }
+                controller.onSuccess(partLength, System.nanoTime() - start);
+                return partETag;
+            } finally {
+                controller.release();
+                buffers.offer(partBuffer);
+            }
+        }));
+    }
+
+    private void checkFailedParts() throws IOException {
+        for (Future<PartETag> part : parts) {
+            if (part.isDone()) {
+                getPartETag(part);
+            }
+        }
+    }
+
+    private PartETag getPartETag(Future<PartETag> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while uploading parts of [" + getS3URI() + "]");
+        } catch (ExecutionException e) {
+            throw new IOException("failed to upload part of [" + getS3URI() + "]", e.getCause());
+        }
+    }
+
+    private void completeUpload() throws IOException {
+        List<PartETag> partETags = new ArrayList<>(parts.size());
+        for (Future<PartETag> part : parts) {
+            partETags.add(getPartETag(part));
+        }
+        try {
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+            log.debug("completed multipart upload of [" + getS3URI() + "] in [" + partETags.size() + "] parts");
+        } catch (AmazonClientException e) {
+            throw new IOException("failed to complete multipart upload of [" + getS3URI() + "]", e);
+        }
+    }
+
+    private void putSingleObject() throws IOException {
+        int length = buffer == null ? 0 : position;
+        byte[] content = buffer == null ? new byte[0] : buffer;
+        metadata.setContentLength(length);
+        try {
+            client.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(content, 0, length), metadata));
+        } catch (AmazonClientException e) {
+            throw new IOException("failed to upload [" + getS3URI() + "]", e);
+        }
+    }
+
+    private void abortUpload() {
+        if (uploadId != null) {
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            } catch (AmazonClientException e) {
+                log.warn("failed to abort multipart upload [" + uploadId + "] of [" + getS3URI() + "]", e);
+            }
+        }
+    }
+
+    private String getS3URI() {
+        return S3Utils.getS3URI(bucketName, key);
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Remembers S3 objects found missing, so that resolving an artifact from several repositories does not probe each of
+ * them again on every build.
+ * <p>
+ * Entries are keyed by endpoint, bucket and canonical key, and expire after a short time to live, or after a longer one for
+ * release keys, which rarely appear once looked for. They are held in memory, shared by all wagons of the process,
+ * and optionally in a directory shared across builds, as one empty marker file per entry whose last modified time is
+ * the time of the lookup. Uploads of a key remove its entry.
+ * </p>
+ */
+public class NegativeLookupCache {
+
+    private static final Logger log = LoggerFactory.getLogger(NegativeLookupCache.class);
+
+    private static final String MISSING_SUFFIX = ".missing";
+
+    private static final Map<String, Long> MISSING = new ConcurrentHashMap<>();
+
+    private final File directory;
+    private final String endpoint;
+    private final long ttlMillis;
+    private final long releaseTtlMillis;
+    private final Pattern releaseKeys;
+    private final Map<String, Long> missing;
+    private final LongSupplier clock;
+
+    /**
+     * @param directory        directory of the entries shared across builds, or <code>null</code> to keep them in memory only
+     * @param endpoint         S3 endpoint, or <code>null</code> for AWS, so that buckets of the same name on other
+     *                         endpoints are told apart
+     * @param ttlMillis        time to live of entries
+     * @param releaseTtlMillis time to live of entries with a key matching the release pattern
+     * @param releaseKeys      pattern of release keys, or <code>null</code>
+     */
+    public NegativeLookupCache(File directory, String endpoint, long ttlMillis, long releaseTtlMillis, Pattern releaseKeys) {
+        this(directory, endpoint, ttlMillis, releaseTtlMillis, releaseKeys, MISSING, System::currentTimeMillis);
+    }
+
+    NegativeLookupCache(File directory, String endpoint, long ttlMillis, long releaseTtlMillis, Pattern releaseKeys,
+                        Map<String, Long> missing, LongSupplier clock) {
+        this.directory = directory;
+        this.endpoint = StringUtils.trimToNull(endpoint);
+        this.ttlMillis = ttlMillis;
+        this.releaseTtlMillis = releaseTtlMillis;
+        this.releaseKeys = releaseKeys;
+        this.missing = missing;
+        this.clock = clock;
+    }
+
+    /**
+     * @return true if the object was found missing within its time to live
+     */
+    public boolean isMissing(String bucketName, String key) {
+        String entry = getEntry(bucketName, key);
+        long ttl = getTtlMillis(key);
+        long now = clock.getAsLong();
+        Long lookedUp = missing.get(entry);
+        if (lookedUp == null && directory != null) {
+            File marker = getMarker(entry);
+            // 0 if there is no marker
+            long lastModified = marker.lastModified();
+            if (lastModified > 0) {
+                lookedUp = lastModified;
+                missing.putIfAbsent(entry, lookedUp);
+            }
+        }
+        if (lookedUp == null) {
+            return false;
+        }
+        if (now - lookedUp >= ttl) {
+            missing.remove(entry, lookedUp);
+            return false;
+        }
+        log.debug("[" + S3Utils.getS3URI(bucketName, key) + "] is known to be missing");
+        return true;
+    }
+
+    /**
+     * Remember that an object does not exist.
+     */
+    public void recordMissing(String bucketName, String key) {
+        long now = clock.getAsLong();
+        String entry = getEntry(bucketName, key);
+        missing.put(entry, now);
+        if (directory != null) {
+            File marker = getMarker(entry);
+            try {
+                FileUtils.touch(marker);
+                if (!marker.setLastModified(now)) {
+                    log.debug("failed to update [" + marker.getAbsolutePath() + "]");
+                }
+            } catch (IOException e) {
+                log.debug("failed to record missing [" + S3Utils.getS3URI(bucketName, key) + "]", e);
+            }
+        }
+    }
+
+    /**
+     * Forget that an object was missing, once it was uploaded.
+     */
+    public void invalidate(String bucketName, String key) {
+        String entry = getEntry(bucketName, key);
+        missing.remove(entry);
+        if (directory != null) {
+            FileUtils.deleteQuietly(getMarker(entry));
+        }
+    }
+
+    long getTtlMillis(String key) {
+        return releaseKeys != null && releaseKeys.matcher(key).matches()
+                ? releaseTtlMillis
+                : ttlMillis;
+    }
+
+    /**
+     * @return key of the entry of an object, which is the S3 URI of the object, qualified with the endpoint unless it is AWS
+     */
+    private String getEntry(String bucketName, String key) {
+        String uri = S3Utils.getS3URI(bucketName, key);
+        return endpoint == null ? uri : endpoint + " " + uri;
+    }
+
+    /**
+     * @return marker file of an entry, named after a digest of its key
+     */
+    private File getMarker(String entry) {
+        return new File(directory, DigestUtils.sha1Hex(entry) + MISSING_SUFFIX);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Iterates over all pages of a ListObjectsV2 listing, following continuation tokens.
+ * <p>
+ * Optionally, the next page is requested in the background while the caller processes the current one.
+ * Listing failures surface as {@link AmazonClientException} from {@link #next()}.
+ * </p>
+ */
+public class ObjectListingIterator implements Iterator<ListObjectsV2Result> {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "s3-wagon-list-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AmazonS3 client;
+    private final ListObjectsV2Request request;
+    private final boolean prefetch;
+
+    private String continuationToken = null;
+    private Future<ListObjectsV2Result> prefetched = null;
+    private boolean exhausted = false;
+
+    /**
+     * @param client   S3 client
+     * @param request  listing request; the continuation token is managed by this iterator
+     * @param prefetch request the next page while the current page is being processed
+     */
+    public ObjectListingIterator(AmazonS3 client, ListObjectsV2Request request, boolean prefetch) {
+        this.client = client;
+        this.request = request;
+        this.prefetch = prefetch;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !exhausted;
+    }
+
+    @Override
+    public ListObjectsV2Result next() {
+        if (exhausted) {
+            throw new NoSuchElementException();
+        }
+        ListObjectsV2Result page = prefetched == null
+                ? fetch(continuationToken)
+                : await(prefetched);
+        prefetched = null;
+        if (page.isTruncated()) {
+            final String token = page.getNextContinuationToken();
+            continuationToken = token;
+            if (prefetch) {
+                prefetched = PREFETCH_EXECUTOR.submit(() -> fetch(token));
+            }
+        } else {
+            exhausted = true;
+        }
+        return page;
+    }
+
+    private ListObjectsV2Result fetch(String token) {
+        ListObjectsV2Request pageRequest = new ListObjectsV2Request()
+                .withBucketName(request.getBucketName())
+                .withPrefix(request.getPrefix())
+                .withDelimiter(request.getDelimiter())
+                .withMaxKeys(request.getMaxKeys())
+                .withContinuationToken(token);
+        pageRequest.setRequestMetricCollector(request.getRequestMetricCollector());
+        return client.listObjectsV2(pageRequest);
+    }
+
+    private ListObjectsV2Result await(Future<ListObjectsV2Result> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("interrupted while listing [" + getS3URI() + "]", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AmazonClientException) {
+                throw (AmazonClientException) e.getCause();
+            }
+            throw new AmazonClientException("failed to list [" + getS3URI() + "]", e.getCause());
+        }
+    }
+
+    private String getS3URI() {
+        return S3Utils.getS3URI(request.getBucketName(), request.getPrefix() == null ? "" : request.getPrefix());
+    }
+}
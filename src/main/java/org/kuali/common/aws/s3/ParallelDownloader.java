@@ -0,0 +1,265 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.WagonException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads large S3 objects with concurrent ranged GETs.
+ * <p>
+ * The download starts with a ranged GET of the first part, which tells the object size through its
+ * <code>Content-Range</code>, so that objects no larger than a part take a single request. The rest of objects of at
+ * least the configured threshold is split into byte ranges that are fetched concurrently and written into a
+ * preallocated file with positional writes; the rest of smaller objects is fetched with a single ranged GET. Every
+ * further ranged GET is constrained to the ETag seen by the first one, so an object replaced mid-download fails the
+ * transfer instead of producing a mix of old and new content.
+ * </p>
+ * <p>
+ * The size of each range and the number of ranges in flight are taken from an {@link AdaptiveTransferController}
+ * when the range is started, so they follow the controller while the download is running.
+ * </p>
+ */
+public class ParallelDownloader {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelDownloader.class);
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final AmazonS3 client;
+    private final AdaptiveTransferController controller;
+    private final long threshold;
+
+    public ParallelDownloader(AmazonS3 client, long partSize, int concurrency, long threshold) {
+        this(client, AdaptiveTransferController.fixed(concurrency, partSize), threshold);
+    }
+
+    public ParallelDownloader(AmazonS3 client, AdaptiveTransferController controller, long threshold) {
+        this.client = client;
+        this.controller = controller;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Download the requested object into the destination file using concurrent ranged GETs.
+     *
+     * @param request  object to download
+     * @param destFile destination file
+     * @return metadata of the downloaded object, or null if the object is empty and was not downloaded
+     * @throws WagonException when the object does not exist or the download fails
+     */
+    public ObjectMetadata download(GetObjectRequest request, File destFile) throws WagonException {
+        String resourceURI = S3Utils.getS3URI(request.getBucketName(), request.getKey());
+        try (RandomAccessFile file = new RandomAccessFile(destFile, "rw")) {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            ObjectMetadata metadata = downloadFirstRange(request, channel);
+            if (metadata == null) {
+                return null;
+            }
+            long length = metadata.getContentLength();
+            long next = channel.size();
+            if (next >= length) {
+                return metadata;
+            }
+            file.setLength(length);
+            if (length < threshold) {
+                downloadRange(request, metadata.getETag(), next, length - 1, channel);
+                return metadata;
+            }
+            log.debug("downloading [" + resourceURI + "] of [" + length + "] bytes in parts of [" + controller.getPartSize() + "] bytes");
+            downloadRanges(request, metadata.getETag(), length, next, channel);
+            return metadata;
+        } catch (AmazonClientException ex) {
+            throw S3Utils.toWagonException(request, ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof AmazonClientException) {
+                throw S3Utils.toWagonException(request, (AmazonClientException) cause);
+            }
+            throw new TransferFailedException("failed to download [" + resourceURI + "]", cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("interrupted while downloading [" + resourceURI + "]", ex);
+        } catch (IOException ex) {
+            throw new TransferFailedException("failed to write [" + resourceURI + "] to [" + destFile.getAbsolutePath() + "]", ex);
+        } finally {
+            if (destFile.length() == 0) {
+                // nothing was downloaded, leave the destination to the caller
+                FileUtils.deleteQuietly(destFile);
+            }
+        }
+    }
+
+    /**
+     * Download the first part of the object, and take the object size from its <code>Content-Range</code>.
+     *
+     * @return metadata of the whole object, or null if the object is empty
+     */
+    private ObjectMetadata downloadFirstRange(GetObjectRequest request, FileChannel channel) throws IOException, InterruptedException {
+        long last = controller.getPartSize() - 1;
+        GetObjectRequest rangeRequest = new GetObjectRequest(request.getBucketName(), request.getKey()).withRange(0, last);
+        rangeRequest.setRequestMetricCollector(controller.collector(request.getRequestMetricCollector()));
+        controller.acquire();
+        try {
+            long start = System.nanoTime();
+            S3Object object;
+            try {
+                object = client.getObject(rangeRequest);
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() == 416) {
+                    // an empty object has no first byte
+                    return null;
+                }
+                throw e;
+            }
+            ObjectMetadata metadata = object.getObjectMetadata();
+            long length = metadata.getInstanceLength();
+            if (length == 0) {
+                object.close();
+                return null;
+            }
+            write(request, object, 0, Math.min(last, length - 1), channel);
+            metadata.setContentLength(length);
+            controller.onSuccess(channel.size(), System.nanoTime() - start);
+            return metadata;
+        } catch (IOException | AmazonClientException e) {
+            controller.onFailure(e);
+            throw e;
+        } finally {
+            controller.release();
+        }
+    }
+
+    /**
+     * Download the remaining ranges of the object with concurrent workers.
+     */
+    private void downloadRanges(GetObjectRequest request, String etag, long length, long first, FileChannel channel)
+            throws ExecutionException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(controller.getMaxConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "s3-wagon-download-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            AtomicLong next = new AtomicLong(first);
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < controller.getMaxConcurrency(); i++) {
+                workers.add(executor.submit(() -> {
+                    downloadRanges(request, etag, length, next, channel);
+                    return null;
+                }));
+            }
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Download ranges until the whole object is claimed, starting each range when the controller admits it.
+     */
+    private void downloadRanges(GetObjectRequest request, String etag, long length, AtomicLong next, FileChannel channel)
+            throws IOException, InterruptedException {
+        while (true) {
+            controller.acquire();
+            try {
+                long first;
+                long last;
+                synchronized (next) {
+                    first = next.get();
+                    if (first >= length) {
+                        return;
+                    }
+                    last = Math.min(first + controller.getPartSize(), length) - 1;
+                    next.set(last + 1);
+                }
+                long start = System.nanoTime();
+                try {
+                    downloadRange(request, etag, first, last, channel);
+                } catch (IOException | AmazonClientException e) {
+                    controller.onFailure(e);
+                    synchronized (next) {
+                        // stop the other workers
+                        next.set(length);
+                    }
+                    throw e;
+                }
+                controller.onSuccess(last - first + 1, System.nanoTime() - start);
+            } finally {
+                controller.release();
+            }
+        }
+    }
+
+    private void downloadRange(GetObjectRequest request, String etag, long first, long last, FileChannel channel) throws IOException {
+        GetObjectRequest rangeRequest = new GetObjectRequest(request.getBucketName(), request.getKey())
+                .withRange(first, last)
+                .withMatchingETagConstraint(etag);
+        rangeRequest.setRequestMetricCollector(controller.collector(request.getRequestMetricCollector()));
+        S3Object object = client.getObject(rangeRequest);
+        if (object == null) {
+            throw new IOException("[" + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "] changed during download");
+        }
+        write(request, object, first, last, channel);
+    }
+
+    private static void write(GetObjectRequest request, S3Object object, long first, long last, FileChannel channel) throws IOException {
+        long position = first;
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (InputStream in = object.getObjectContent()) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+            }
+        }
+        if (position != last + 1) {
+            throw new IOException("expected bytes [" + first + "-" + last + "] of ["
+                    + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "], but received [" + (position - first) + "] bytes");
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Client-side token bucket limiting the rate of requests to each bucket, so that heavy parallel deploys stay below the
+ * rate at which S3 (or MinIO) starts throttling, instead of provoking <code>503 SlowDown</code> responses and
+ * retrying them.
+ * <p>
+ * Every attempt of a request takes a token, retries included, and waits for one when the bucket is empty. Tokens are
+ * refilled at the configured rate, up to the burst size. The token buckets are shared by all clients in the process
+ * with the same limits, so that wagons deploying to the same bucket split the budget between them.
+ * </p>
+ * <p>
+ * The limiter is a request handler of the SDK v1 client and an execution interceptor of the SDK v2 client, sharing the
+ * same token buckets. The SDK v2 client sends the first attempt of a request on the calling thread, and retries on a
+ * thread of its scheduler, so waiting for a token never blocks a Netty event loop.
+ * </p>
+ */
+public class RequestRateLimiter extends RequestHandler2 implements ExecutionInterceptor {
+
+    private static final Map<String, TokenBucket> BUCKETS = new ConcurrentHashMap<>();
+
+    private static final ClassValue<Method> BUCKET_NAME_GETTERS = new ClassValue<Method>() {
+        @Override
+        protected Method computeValue(Class<?> type) {
+            for (String name : new String[]{"getDestinationBucketName", "getBucketName"}) {
+                try {
+                    Method getter = type.getMethod(name);
+                    if (getter.getReturnType() == String.class) {
+                        return getter;
+                    }
+                } catch (NoSuchMethodException e) {
+                    // try the next one
+                }
+            }
+            return null;
+        }
+    };
+
+    private final double requestsPerSecond;
+    private final int burst;
+
+    /**
+     * @param requestsPerSecond sustained number of requests per second and bucket
+     * @param burst             number of requests that may be sent at once after a quiet period
+     */
+    public RequestRateLimiter(double requestsPerSecond, int burst) {
+        if (requestsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate must be positive and burst at least 1, but were ["
+                    + requestsPerSecond + "] and [" + burst + "]");
+        }
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = burst;
+    }
+
+    @Override
+    public void beforeAttempt(HandlerBeforeAttemptContext context) {
+        try {
+            acquire(getBucketName(context.getRequest().getOriginalRequest()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("interrupted while waiting for the request rate limit", e);
+        }
+    }
+
+    @Override
+    public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+        try {
+            acquire(getBucketName(context.request()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw software.amazon.awssdk.core.exception.AbortedException.create(
+                    "interrupted while waiting for the request rate limit", e);
+        }
+    }
+
+    private void acquire(String bucketName) throws InterruptedException {
+        BUCKETS.computeIfAbsent(bucketName + "@" + requestsPerSecond + "/" + burst,
+                key -> new TokenBucket(requestsPerSecond, burst, System::nanoTime)).acquire();
+    }
+
+    /**
+     * @return the bucket a request is sent to, or an empty string for requests not addressing a bucket
+     */
+    static String getBucketName(AmazonWebServiceRequest request) {
+        Method getter = request == null ? null : BUCKET_NAME_GETTERS.get(request.getClass());
+        if (getter == null) {
+            return "";
+        }
+        try {
+            Object bucketName = getter.invoke(request);
+            return bucketName == null ? "" : (String) bucketName;
+        } catch (ReflectiveOperationException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @return the bucket an SDK v2 request is sent to, or an empty string for requests not addressing a bucket
+     */
+    static String getBucketName(SdkRequest request) {
+        for (String field : new String[]{"DestinationBucket", "Bucket"}) {
+            String bucketName = request.getValueForField(field, String.class).orElse(null);
+            if (bucketName != null) {
+                return bucketName;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Token bucket handing out tokens in order of arrival: a caller reserves the next token, possibly driving the
+     * balance negative, and then sleeps until the reserved token has been refilled.
+     */
+    static class TokenBucket {
+
+        private final double tokensPerNano;
+        private final int capacity;
+        private final LongSupplier clock;
+
+        private double tokens;
+        private long refilled;
+
+        TokenBucket(double tokensPerSecond, int capacity, LongSupplier clock) {
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.clock = clock;
+            this.tokens = capacity;
+            this.refilled = clock.getAsLong();
+        }
+
+        void acquire() throws InterruptedException {
+            long waitNanos = reserve();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+
+        /**
+         * @return how long to wait for the reserved token
+         */
+        synchronized long reserve() {
+            long now = clock.getAsLong();
+            tokens = Math.min(capacity, tokens + (now - refilled) * tokensPerNano);
+            refilled = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.WagonException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Downloads S3 objects into a partial file that is kept when the connection fails, so that the download continues
+ * from the last written byte instead of starting over, within the same call or in a later build.
+ * <p>
+ * The ETag and length of the object are recorded next to the partial file. A resumed download requests the remaining
+ * bytes with a ranged GET constrained to that ETag; when the object was replaced in the meantime, the partial file is
+ * discarded and the download starts from the beginning.
+ * </p>
+ */
+public class ResumableDownloader {
+
+    private static final Logger log = LoggerFactory.getLogger(ResumableDownloader.class);
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final String JOURNAL_SUFFIX = ".download";
+
+    private static final String ETAG = "etag";
+
+    private static final String LENGTH = "length";
+
+    private final AmazonS3 client;
+    private final File directory;
+    private final int attempts;
+
+    /**
+     * @param client    S3 client
+     * @param directory directory of partial downloads and their journals
+     * @param attempts  number of attempts per download, each continuing where the previous one failed
+     */
+    public ResumableDownloader(AmazonS3 client, File directory, int attempts) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("attempts must be positive, but found [" + attempts + "]");
+        }
+        this.client = client;
+        this.directory = directory;
+        this.attempts = attempts;
+    }
+
+    /**
+     * Download the requested object into the destination file, resuming a partial download of the same object.
+     *
+     * @param request  object to download
+     * @param destFile destination file
+     * @return metadata of the downloaded object
+     * @throws WagonException when the object does not exist, or the download did not complete within the attempts;
+     *                        in the latter case the partial download is kept for the next call
+     */
+    public ObjectMetadata download(GetObjectRequest request, File destFile) throws WagonException {
+        String resourceURI = S3Utils.getS3URI(request.getBucketName(), request.getKey());
+        File part = new File(directory, TransferJournal.getName(request.getBucketName(), request.getKey()) + PART_SUFFIX);
+        TransferJournal journal = TransferJournal.open(directory, request.getBucketName(), request.getKey(), JOURNAL_SUFFIX);
+        Exception failure = null;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            try {
+                FileUtils.forceMkdir(directory);
+                ObjectMetadata metadata = downloadRemaining(request, part, journal);
+                Files.move(part.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                journal.delete();
+                return metadata;
+            } catch (IOException | AmazonClientException e) {
+                if (!S3Utils.isRetryable(e)) {
+                    WagonException wagonException = S3Utils.toWagonException(request, e);
+                    if (wagonException instanceof ResourceDoesNotExistException) {
+                        discard(part, journal);
+                    }
+                    throw wagonException;
+                }
+                log.debug("attempt [" + attempt + "] to download [" + resourceURI + "] failed with [" + part.length() + "] bytes written", e);
+                failure = e;
+            }
+        }
+        throw new TransferFailedException("failed to download [" + resourceURI + "] after [" + attempts
+                + "] attempts, keeping [" + part.length() + "] bytes in [" + part.getAbsolutePath() + "] to resume from", failure);
+    }
+
+    private ObjectMetadata downloadRemaining(GetObjectRequest request, File part, TransferJournal journal) throws IOException {
+        String etag = journal.get(ETAG);
+        long length = NumberUtils.toLong(journal.get(LENGTH), -1);
+        long offset = etag != null && length >= 0 && part.exists() ? part.length() : 0;
+        if (offset > 0 && offset >= length) {
+            ObjectMetadata metadata = getObjectMetadata(request);
+            if (etag.equals(metadata.getETag()) && offset == length) {
+                return metadata;
+            }
+            offset = discard(part, journal);
+        }
+        GetObjectRequest rangeRequest = new GetObjectRequest(request.getBucketName(), request.getKey());
+        rangeRequest.setRequestMetricCollector(request.getRequestMetricCollector());
+        if (offset > 0) {
+            log.debug("resuming download of [" + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "] at byte [" + offset + "]");
+            rangeRequest.withRange(offset).withMatchingETagConstraint(etag);
+        }
+        S3Object object = client.getObject(rangeRequest);
+        if (object == null) {
+            log.debug("[" + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "] changed since the partial download, starting over");
+            discard(part, journal);
+            return downloadRemaining(request, part, journal);
+        }
+        try (S3Object content = object) {
+            ObjectMetadata metadata = content.getObjectMetadata();
+            length = metadata.getInstanceLength();
+            if (offset == 0) {
+                journal.clear();
+                journal.set(ETAG, metadata.getETag());
+                journal.set(LENGTH, Long.toString(length));
+                journal.save();
+            }
+            try (InputStream in = content.getObjectContent(); OutputStream out = new FileOutputStream(part, offset > 0)) {
+                IOUtils.copyLarge(in, out);
+            }
+            if (part.length() != length) {
+                throw new IOException("expected [" + length + "] bytes of [" + S3Utils.getS3URI(request.getBucketName(), request.getKey())
+                        + "], but received [" + part.length() + "] bytes");
+            }
+            metadata.setContentLength(length);
+            return metadata;
+        }
+    }
+
+    private ObjectMetadata getObjectMetadata(GetObjectRequest request) {
+        GetObjectMetadataRequest metadataRequest = new GetObjectMetadataRequest(request.getBucketName(), request.getKey());
+        metadataRequest.setRequestMetricCollector(request.getRequestMetricCollector());
+        return client.getObjectMetadata(metadataRequest);
+    }
+
+    private static long discard(File part, TransferJournal journal) {
+        FileUtils.deleteQuietly(part);
+        journal.delete();
+        return 0;
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.maven.wagon.TransferFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads files with a multipart upload whose progress is journaled locally, so that a failed upload keeps the parts
+ * already sent and a later attempt, within the same call or in a later build, only sends the missing parts.
+ * <p>
+ * The journal records the upload ID, the digest identifying the content and the ETag of every completed part. Parts
+ * are only reused for the same content and part size, and only if S3 still lists them with the same ETag; an upload
+ * that was aborted or expired on the server is started over, and the journaled upload of other content is aborted
+ * before a new one is started. Failed uploads are not aborted, so their parts are billed until they are resumed or
+ * removed by a bucket lifecycle rule.
+ * </p>
+ */
+public class ResumableUploader {
+
+    private static final Logger log = LoggerFactory.getLogger(ResumableUploader.class);
+
+    private static final String JOURNAL_SUFFIX = ".upload";
+
+    private static final String UPLOAD_ID = "uploadId";
+
+    private static final String DIGEST = "digest";
+
+    private static final String LENGTH = "length";
+
+    private static final String PART_SIZE = "partSize";
+
+    private static final String PART_PREFIX = "part.";
+
+    private static final int MAX_PARTS = 10000;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final AmazonS3 client;
+    private final File directory;
+    private final long partSize;
+    private final int concurrency;
+    private final int attempts;
+
+    /**
+     * @param client      S3 client
+     * @param directory   directory of the upload journals
+     * @param partSize    part size in bytes, at least {@link MultipartUploadOutputStream#MIN_PART_SIZE}; grown for files
+     *                    that would otherwise need more than 10000 parts
+     * @param concurrency number of parts uploaded concurrently
+     * @param attempts    number of attempts per upload, each reusing the parts sent by the previous ones
+     */
+    public ResumableUploader(AmazonS3 client, File directory, long partSize, int concurrency, int attempts) {
+        if (partSize < MultipartUploadOutputStream.MIN_PART_SIZE) {
+            throw new IllegalArgumentException("part size [" + partSize + "] must be at least [" + MultipartUploadOutputStream.MIN_PART_SIZE + "] bytes");
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive, but found [" + concurrency + "]");
+        }
+        if (attempts < 1) {
+            throw new IllegalArgumentException("attempts must be positive, but found [" + attempts + "]");
+        }
+        this.client = client;
+        this.directory = directory;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.attempts = attempts;
+    }
+
+    /**
+     * Upload the file of the request, resuming an earlier upload of the same content to the same key.
+     *
+     * @param request file upload; its metadata is applied when the multipart upload is initiated
+     * @param digest  digest of the file content, so that parts are never reused for different content
+     * @throws TransferFailedException when the upload did not complete within the attempts; the parts sent so far are
+     *                                 kept for the next call
+     */
+    public void upload(PutObjectRequest request, String digest) throws TransferFailedException {
+        String resourceURI = S3Utils.getS3URI(request.getBucketName(), request.getKey());
+        TransferJournal journal = TransferJournal.open(directory, request.getBucketName(), request.getKey(), JOURNAL_SUFFIX);
+        Exception failure = null;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            try {
+                uploadParts(request, digest, journal);
+                journal.delete();
+                return;
+            } catch (IOException | AmazonClientException e) {
+                if (!S3Utils.isRetryable(e)) {
+                    throw new TransferFailedException("failed to upload [" + resourceURI + "]", e);
+                }
+                log.debug("attempt [" + attempt + "] to upload [" + resourceURI + "] failed", e);
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransferFailedException("interrupted while uploading [" + resourceURI + "]", e);
+            }
+        }
+        throw new TransferFailedException("failed to upload [" + resourceURI + "] after [" + attempts
+                + "] attempts, keeping its parts in [" + journal.getFile().getAbsolutePath() + "] to resume from", failure);
+    }
+
+    private void uploadParts(PutObjectRequest request, String digest, TransferJournal journal) throws IOException, InterruptedException {
+        File file = request.getFile();
+        long length = file.length();
+        long size = Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+        int partCount = (int) Math.max(1, (length + size - 1) / size);
+        Map<Integer, PartETag> completed = resume(request, journal, digest, length, size);
+        if (completed == null) {
+            InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(
+                    request.getBucketName(), request.getKey(), request.getMetadata());
+            initiateRequest.setRequestMetricCollector(request.getRequestMetricCollector());
+            journal.clear();
+            journal.set(UPLOAD_ID, client.initiateMultipartUpload(initiateRequest).getUploadId());
+            journal.set(DIGEST, digest);
+            journal.set(LENGTH, Long.toString(length));
+            journal.set(PART_SIZE, Long.toString(size));
+            journal.save();
+            completed = new HashMap<>();
+        } else {
+            log.debug("resuming upload of [" + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "] with ["
+                    + completed.size() + "] of [" + partCount + "] parts already sent");
+        }
+        String uploadId = journal.get(UPLOAD_ID);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, partCount), runnable -> {
+            Thread thread = new Thread(runnable, "s3-wagon-resume-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<PartETag>> parts = new ArrayList<>();
+            for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+                if (completed.containsKey(partNumber)) {
+                    continue;
+                }
+                long offset = (partNumber - 1) * size;
+                UploadPartRequest partRequest = new UploadPartRequest()
+                        .withBucketName(request.getBucketName())
+                        .withKey(request.getKey())
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withFile(file)
+                        .withFileOffset(offset)
+                        .withPartSize(Math.min(size, length - offset));
+                partRequest.setRequestMetricCollector(request.getRequestMetricCollector());
+                parts.add(executor.submit(() -> {
+                    PartETag part = client.uploadPart(partRequest).getPartETag();
+                    journal.set(PART_PREFIX + part.getPartNumber(), part.getETag());
+                    journal.save();
+                    return part;
+                }));
+            }
+            // let the other parts complete after a failure, so that they are journaled for the next attempt
+            Exception failure = null;
+            for (Future<PartETag> part : parts) {
+                try {
+                    PartETag partETag = await(part);
+                    completed.put(partETag.getPartNumber(), partETag);
+                } catch (IOException | AmazonClientException e) {
+                    failure = failure == null ? e : failure;
+                }
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw (AmazonClientException) failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        List<PartETag> partETags = new ArrayList<>();
+        for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+            partETags.add(completed.get(partNumber));
+        }
+        CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest(
+                request.getBucketName(), request.getKey(), uploadId, partETags);
+        completeRequest.setRequestMetricCollector(request.getRequestMetricCollector());
+        client.completeMultipartUpload(completeRequest);
+        log.debug("completed upload of [" + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "] in [" + partCount + "] parts");
+    }
+
+    /**
+     * @return parts of the journaled upload that S3 still holds, or null if there is no upload to resume
+     */
+    private Map<Integer, PartETag> resume(PutObjectRequest request, TransferJournal journal, String digest, long length, long size) {
+        String uploadId = journal.get(UPLOAD_ID);
+        if (uploadId == null) {
+            return null;
+        }
+        if (!digest.equals(journal.get(DIGEST))
+                || length != NumberUtils.toLong(journal.get(LENGTH), -1)
+                || size != NumberUtils.toLong(journal.get(PART_SIZE), -1)) {
+            abort(request, uploadId);
+            return null;
+        }
+        Map<Integer, PartETag> parts = new HashMap<>();
+        ListPartsRequest listRequest = new ListPartsRequest(request.getBucketName(), request.getKey(), uploadId);
+        listRequest.setRequestMetricCollector(request.getRequestMetricCollector());
+        try {
+            PartListing listing;
+            do {
+                listing = client.listParts(listRequest);
+                for (PartSummary summary : listing.getParts()) {
+                    String etag = journal.get(PART_PREFIX + summary.getPartNumber());
+                    if (etag != null && etag.equals(summary.getETag())) {
+                        parts.put(summary.getPartNumber(), new PartETag(summary.getPartNumber(), etag));
+                    }
+                }
+                listRequest.setPartNumberMarker(listing.getNextPartNumberMarker());
+            } while (listing.isTruncated());
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                log.debug("upload [" + uploadId + "] of [" + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "] no longer exists");
+                return null;
+            }
+            throw e;
+        }
+        return parts;
+    }
+
+    /**
+     * Abort a journaled upload that cannot be resumed, so that its parts are no longer billed.
+     */
+    private void abort(PutObjectRequest request, String uploadId) {
+        AbortMultipartUploadRequest abortRequest = new AbortMultipartUploadRequest(request.getBucketName(), request.getKey(), uploadId);
+        abortRequest.setRequestMetricCollector(request.getRequestMetricCollector());
+        try {
+            client.abortMultipartUpload(abortRequest);
+            log.debug("aborted upload [" + uploadId + "] of other content to [" + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "]");
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+            log.debug("upload [" + uploadId + "] of [" + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "] no longer exists");
+        }
+    }
+
+    private static PartETag await(Future<PartETag> part) throws IOException, InterruptedException {
+        try {
+            return part.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AmazonClientException) {
+                throw (AmazonClientException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
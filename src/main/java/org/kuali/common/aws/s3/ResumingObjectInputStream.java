@@ -0,0 +1,123 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content of an S3 object that continues where a dropped connection broke off, instead of failing the whole read.
+ * <p>
+ * The remaining bytes are requested with a ranged GET constrained to the ETag of the object, so that the content of
+ * a replaced object is never mixed with the content read so far.
+ * </p>
+ */
+public class ResumingObjectInputStream extends InputStream {
+
+    private static final Logger log = LoggerFactory.getLogger(ResumingObjectInputStream.class);
+
+    private final AmazonS3 client;
+    private final GetObjectRequest request;
+    private final String etag;
+    private final long length;
+    private int attempts;
+    private S3ObjectInputStream in;
+    private long position;
+
+    /**
+     * @param client   S3 client
+     * @param request  request that returned the object, whose request metric collector is used to resume it
+     * @param object   object to read, from its first byte
+     * @param attempts number of attempts of reading the content, each continuing where the previous one failed
+     */
+    public ResumingObjectInputStream(AmazonS3 client, GetObjectRequest request, S3Object object, int attempts) {
+        this.client = client;
+        this.request = request;
+        this.etag = object.getObjectMetadata().getETag();
+        this.length = object.getObjectMetadata().getContentLength();
+        this.attempts = attempts;
+        this.in = object.getObjectContent();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (true) {
+            try {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    position += read;
+                } else if (read < 0 && position < length) {
+                    throw new EOFException("content ended after [" + position + "] of [" + length + "] bytes");
+                }
+                return read;
+            } catch (IOException e) {
+                if (--attempts < 1 || etag == null) {
+                    throw e;
+                }
+                log.debug("resuming [" + getS3URI() + "] after [" + position + "] bytes: " + e);
+                resume();
+            }
+        }
+    }
+
+    private void resume() throws IOException {
+        in.abort();
+        GetObjectRequest rangeRequest = new GetObjectRequest(request.getBucketName(), request.getKey())
+                .withRange(position)
+                .withMatchingETagConstraint(etag);
+        rangeRequest.setRequestMetricCollector(request.getRequestMetricCollector());
+        S3Object object;
+        try {
+            object = client.getObject(rangeRequest);
+        } catch (AmazonClientException e) {
+            throw new IOException("failed to resume [" + getS3URI() + "]", e);
+        }
+        if (object == null) {
+            throw new IOException("[" + getS3URI() + "] was replaced while reading it");
+        }
+        in = object.getObjectContent();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (position < length) {
+            // closing would read the rest of the content to reuse the connection
+            in.abort();
+        } else {
+            in.close();
+        }
+    }
+
+    private String getS3URI() {
+        return S3Utils.getS3URI(request.getBucketName(), request.getKey());
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide registry of S3 clients, so that wagons talking to the same endpoint with the same credentials and
+ * client settings share one connection pool, while wagons for other servers get a client of their own. The SDK v1
+ * clients and the SDK v2 clients of the asynchronous transfer engine are registered separately.
+ * <p>
+ * Clients are reference counted: every {@link #getClient(ClientKey, Supplier)} is paired with a
+ * {@link #releaseClient(ClientKey)}, and the client is shut down once the last wagon using it releases it. This keeps
+ * long-lived processes running many builds, such as the Maven daemon, from accumulating clients and their connections.
+ * </p>
+ */
+public class S3ClientRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(S3ClientRegistry.class);
+
+    private static final Map<ClientKey, Registration<AmazonS3>> CLIENTS = new HashMap<>();
+
+    private static final Map<ClientKey, Registration<S3AsyncClient>> ASYNC_CLIENTS = new HashMap<>();
+
+    /**
+     * Get the client registered for the given key, creating it on first use, and count the caller as one of its users.
+     *
+     * @param key     endpoint, region, credentials and settings of the client
+     * @param factory creates the client if none is registered yet
+     * @return shared client, to be released with {@link #releaseClient(ClientKey)}
+     */
+    public static AmazonS3 getClient(ClientKey key, Supplier<AmazonS3> factory) {
+        return acquire(CLIENTS, key, factory);
+    }
+
+    /**
+     * Release a client obtained with {@link #getClient(ClientKey, Supplier)}, shutting it down if no one else uses it.
+     *
+     * @param key endpoint, region, credentials and settings of the client
+     */
+    public static void releaseClient(ClientKey key) {
+        AmazonS3 unused = release(CLIENTS, key);
+        if (unused != null) {
+            log.debug("shutting down S3 client " + key);
+            unused.shutdown();
+        }
+    }
+
+    /**
+     * Get the SDK v2 client registered for the given key, creating it on first use, and count the caller as one of
+     * its users.
+     *
+     * @param key     endpoint, region, credentials and settings of the client
+     * @param factory creates the client if none is registered yet
+     * @return shared client, to be released with {@link #releaseAsyncClient(ClientKey)}
+     */
+    public static S3AsyncClient getAsyncClient(ClientKey key, Supplier<S3AsyncClient> factory) {
+        return acquire(ASYNC_CLIENTS, key, factory);
+    }
+
+    /**
+     * Release a client obtained with {@link #getAsyncClient(ClientKey, Supplier)}, closing it if no one else uses it.
+     *
+     * @param key endpoint, region, credentials and settings of the client
+     */
+    public static void releaseAsyncClient(ClientKey key) {
+        S3AsyncClient unused = release(ASYNC_CLIENTS, key);
+        if (unused != null) {
+            log.debug("closing asynchronous S3 client " + key);
+            unused.close();
+        }
+    }
+
+    /**
+     * @return number of registered clients
+     */
+    static int getClientCount() {
+        synchronized (S3ClientRegistry.class) {
+            return CLIENTS.size() + ASYNC_CLIENTS.size();
+        }
+    }
+
+    private static synchronized <T> T acquire(Map<ClientKey, Registration<T>> clients, ClientKey key, Supplier<T> factory) {
+        Registration<T> registration = clients.get(key);
+        if (registration == null) {
+            registration = new Registration<>(factory.get());
+            clients.put(key, registration);
+        }
+        registration.references++;
+        return registration.client;
+    }
+
+    /**
+     * @return the client if it has no users left, and needs to be shut down by the caller
+     */
+    private static synchronized <T> T release(Map<ClientKey, Registration<T>> clients, ClientKey key) {
+        Registration<T> registration = clients.get(key);
+        if (registration != null && --registration.references <= 0) {
+            clients.remove(key);
+            return registration.client;
+        }
+        return null;
+    }
+
+    private static class Registration<T> {
+        private final T client;
+        private int references;
+
+        Registration(T client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * Identifies a client by endpoint, region, credentials and client settings. Only a hash of the secret key is kept.
+     */
+    public static final class ClientKey {
+        private final String endpoint;
+        private final String region;
+        private final String accessKey;
+        private final String secretKeyHash;
+        private final Map<String, String> settings;
+
+        public ClientKey(String endpoint, String region, String accessKey, String secretKey, Map<String, String> settings) {
+            this.endpoint = endpoint;
+            this.region = region;
+            this.accessKey = accessKey;
+            this.secretKeyHash = secretKey == null ? null : DigestUtils.sha256Hex(secretKey);
+            this.settings = new TreeMap<>(settings);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ClientKey other = (ClientKey) o;
+            return Objects.equals(endpoint, other.endpoint)
+                    && Objects.equals(region, other.region)
+                    && Objects.equals(accessKey, other.accessKey)
+                    && Objects.equals(secretKeyHash, other.secretKeyHash)
+                    && settings.equals(other.settings);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(endpoint, region, accessKey, secretKeyHash, settings);
+        }
+
+        @Override
+        public String toString() {
+            return "[" + endpoint + "] [" + region + "] [" + accessKey + "] " + settings;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.core.retry.RetryPolicyContext;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Retry policy of the S3 client, replacing the SDK defaults with settings that can be configured per server.
+ * <p>
+ * Throttled requests (<code>503 SlowDown</code>, <code>429</code> and the other throttling error codes), server errors
+ * (<code>5xx</code>), request timeouts, clock skew and I/O failures such as socket timeouts and connection resets are
+ * retried; other client errors are not. The delay before a retry is drawn at random between zero and an exponentially
+ * growing ceiling ("full jitter"), so that the parallel transfers of a deploy that fail together do not retry in
+ * lockstep. Throttled requests back off from a larger base delay than other failures, since retrying them soon only
+ * adds to the load that caused the throttling.
+ * </p>
+ * <p>
+ * The same policy applies to the SDK v2 client of the asynchronous transfer engine, see {@link #toSdk2RetryPolicy(int)}.
+ * </p>
+ */
+public class S3RetryPolicy implements RetryPolicy.RetryCondition, RetryPolicy.BackoffStrategy {
+
+    /**
+     * Error codes of the SDK v2 client retried despite a status code that is otherwise not retried, as the SDK v1
+     * client does.
+     */
+    private static final Set<String> RETRYABLE_ERROR_CODES = new HashSet<>(Arrays.asList(
+            "RequestTimeout", "RequestTimeoutException", "PriorRequestNotComplete"));
+
+    private final long baseDelayMillis;
+    private final long throttledBaseDelayMillis;
+    private final long maxBackoffMillis;
+    private final LongUnaryOperator random;
+
+    /**
+     * @param baseDelayMillis          ceiling of the delay before the first retry of a failed request
+     * @param throttledBaseDelayMillis ceiling of the delay before the first retry of a throttled request
+     * @param maxBackoffMillis         upper bound of the ceiling as it doubles with each retry
+     */
+    public S3RetryPolicy(long baseDelayMillis, long throttledBaseDelayMillis, long maxBackoffMillis) {
+        this(baseDelayMillis, throttledBaseDelayMillis, maxBackoffMillis,
+                bound -> ThreadLocalRandom.current().nextLong(bound + 1));
+    }
+
+    S3RetryPolicy(long baseDelayMillis, long throttledBaseDelayMillis, long maxBackoffMillis, LongUnaryOperator random) {
+        if (baseDelayMillis < 0 || throttledBaseDelayMillis < 0 || maxBackoffMillis < 0) {
+            throw new IllegalArgumentException("retry delays must not be negative");
+        }
+        this.baseDelayMillis = baseDelayMillis;
+        this.throttledBaseDelayMillis = throttledBaseDelayMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.random = random;
+    }
+
+    /**
+     * @param maxAttempts number of attempts of a request, including the first one
+     * @return SDK retry policy with this condition and backoff, ignoring the retry count of the client configuration
+     */
+    public RetryPolicy toRetryPolicy(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1, but was [" + maxAttempts + "]");
+        }
+        return new RetryPolicy(this, this, maxAttempts - 1, false);
+    }
+
+    /**
+     * @param maxAttempts number of attempts of a request, including the first one
+     * @return SDK v2 retry policy with this condition and backoff, without the retry quota of the SDK defaults
+     */
+    public software.amazon.awssdk.core.retry.RetryPolicy toSdk2RetryPolicy(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1, but was [" + maxAttempts + "]");
+        }
+        return software.amazon.awssdk.core.retry.RetryPolicy.builder()
+                .numRetries(maxAttempts - 1)
+                .retryCondition(context -> isRetryable(context.exception()))
+                .retryCapacityCondition(null)
+                .backoffStrategy(this::computeDelayBeforeNextRetry)
+                .throttlingBackoffStrategy(this::computeDelayBeforeNextRetry)
+                .build();
+    }
+
+    @Override
+    public boolean shouldRetry(AmazonWebServiceRequest request, AmazonClientException exception, int retriesAttempted) {
+        return isRetryable(exception);
+    }
+
+    @Override
+    public long delayBeforeNextRetry(AmazonWebServiceRequest request, AmazonClientException exception, int retriesAttempted) {
+        return delayBeforeNextRetry(isThrottling(exception), retriesAttempted);
+    }
+
+    Duration computeDelayBeforeNextRetry(RetryPolicyContext context) {
+        return Duration.ofMillis(delayBeforeNextRetry(isThrottling(context.exception()), context.retriesAttempted()));
+    }
+
+    private long delayBeforeNextRetry(boolean throttled, int retriesAttempted) {
+        long base = throttled ? throttledBaseDelayMillis : baseDelayMillis;
+        int shift = Math.min(Math.max(retriesAttempted, 0), 30);
+        long ceiling = Math.min(maxBackoffMillis, base << shift);
+        return ceiling <= 0 ? 0 : random.applyAsLong(ceiling);
+    }
+
+    /**
+     * @return true if S3 asked the client to slow down
+     */
+    public static boolean isThrottling(Exception exception) {
+        if (exception instanceof SdkServiceException) {
+            SdkServiceException serviceException = (SdkServiceException) exception;
+            return serviceException.isThrottlingException()
+                    || serviceException.statusCode() == 503
+                    || serviceException.statusCode() == 429;
+        }
+        if (exception instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) exception;
+            return RetryUtils.isThrottlingException(serviceException)
+                    || serviceException.getStatusCode() == 503
+                    || serviceException.getStatusCode() == 429;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a failed request may succeed when sent again: throttling, server errors, timeouts and I/O failures
+     */
+    public static boolean isRetryable(Exception exception) {
+        if (exception instanceof SdkServiceException) {
+            SdkServiceException serviceException = (SdkServiceException) exception;
+            int status = serviceException.statusCode();
+            return isThrottling(serviceException)
+                    || status >= 500
+                    || status == 408
+                    || serviceException.isClockSkewException()
+                    || serviceException.retryable()
+                    || RETRYABLE_ERROR_CODES.contains(getErrorCode(serviceException));
+        }
+        if (exception instanceof SdkException) {
+            return exception.getCause() instanceof IOException || ((SdkException) exception).retryable();
+        }
+        if (exception instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) exception;
+            int status = serviceException.getStatusCode();
+            return isThrottling(serviceException)
+                    || status >= 500
+                    || status == 408
+                    || RetryUtils.isRetryableServiceException(serviceException)
+                    || RetryUtils.isClockSkewError(serviceException);
+        }
+        if (exception instanceof AmazonClientException) {
+            return exception.getCause() instanceof IOException || ((AmazonClientException) exception).isRetryable();
+        }
+        return exception instanceof IOException;
+    }
+
+    private static String getErrorCode(SdkServiceException exception) {
+        if (exception instanceof AwsServiceException && ((AwsServiceException) exception).awsErrorDetails() != null) {
+            return ((AwsServiceException) exception).awsErrorDetails().errorCode();
+        }
+        return null;
+    }
+}
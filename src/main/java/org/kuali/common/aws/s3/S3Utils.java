@@ -16,57 +16,226 @@
 package org.kuali.common.aws.s3;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.transfer.Download;
 import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.model.CopyResult;
 import org.apache.maven.wagon.ResourceDoesNotExistException;
 import org.apache.maven.wagon.TransferFailedException;
 import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.authorization.AuthorizationException;
 import org.apache.maven.wagon.repository.Repository;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Utility methods related to Amazon S3
  */
 public class S3Utils {
 
-    private static final File TEMP_DIR = getCanonicalFile(System.getProperty("java.io.tmpdir"));
-    private static final String TEMP_DIR_PATH = TEMP_DIR.getAbsolutePath();
+    private static final int CANONICAL_KEY_CACHE_SIZE = 1024;
 
-    public static void download(GetObjectRequest request,
-                                TransferManager manager,
-                                File destFile)
+    /**
+     * Recently normalized keys that were not canonical already, most recently used last.
+     */
+    private static final Map<String, String> CANONICAL_KEYS = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > CANONICAL_KEY_CACHE_SIZE;
+                }
+            });
+
+    public static ObjectMetadata download(GetObjectRequest request,
+                                          TransferManager manager,
+                                          File destFile)
             throws WagonException {
 
         try {
-            manager
-                    .download(request, destFile)
-                    .waitForCompletion();
+            Download download = manager.download(request, destFile);
+            download.waitForCompletion();
+            return download.getObjectMetadata();
         } catch (AmazonClientException | InterruptedException ex) {
-            String resourceURI = getS3URI(request.getBucketName(), request.getKey());
-            if (ex instanceof AmazonS3Exception) {
-                if (404 == ((AmazonS3Exception) ex).getStatusCode()) {
-                    throw new ResourceDoesNotExistException("requested non-existing resource [" + resourceURI + "]", ex);
-                }
+            throw toWagonException(request, ex);
+        }
+    }
+
+    /**
+     * Open the content of an S3 object as a stream, without staging it locally.
+     * The caller is responsible for closing the content stream of the returned object.
+     *
+     * @param request object to open
+     * @param client  S3 client
+     * @return S3 object with open content stream
+     * @throws WagonException when the object does not exist or cannot be accessed
+     */
+    public static S3Object getObject(GetObjectRequest request, AmazonS3 client) throws WagonException {
+        try {
+            return client.getObject(request);
+        } catch (AmazonClientException ex) {
+            throw toWagonException(request, ex);
+        }
+    }
+
+    /**
+     * Look up the metadata of an S3 object with a HEAD request, without transferring its content.
+     *
+     * @param request object to look up
+     * @param client  S3 client
+     * @return metadata of the object, including its length and last modified time
+     * @throws WagonException when the object does not exist or cannot be accessed
+     */
+    public static ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request, AmazonS3 client) throws WagonException {
+        try {
+            return client.getObjectMetadata(request);
+        } catch (AmazonClientException ex) {
+            throw toWagonException(request.getBucketName(), request.getKey(), ex);
+        }
+    }
+
+    static WagonException toWagonException(GetObjectRequest request, Exception ex) {
+        return toWagonException(request.getBucketName(), request.getKey(), ex);
+    }
+
+    /**
+     * Map a failed request of the SDK v1 or v2 client for an object to the wagon exception telling why it failed.
+     */
+    public static WagonException toWagonException(String bucketName, String key, Exception ex) {
+        String resourceURI = getS3URI(bucketName, key);
+        if (ex instanceof AmazonS3Exception || ex instanceof SdkServiceException) {
+            if (404 == getStatusCode(ex)) {
+                return new ResourceDoesNotExistException("requested non-existing resource [" + resourceURI + "]", ex);
             }
-            throw new TransferFailedException("failed to access [" + resourceURI + "]", ex);
         }
+        return toFailure("access", resourceURI, ex);
+    }
+
+    /**
+     * Map a failed request of the SDK v1 or v2 client to the wagon exception telling why it failed: access denied,
+     * throttled or otherwise failed.
+     *
+     * @param action      what the request did, such as <code>upload</code>
+     * @param resourceURI S3 URI of the object
+     * @param ex          failure of the request
+     * @return {@link AuthorizationException} or {@link TransferFailedException}
+     */
+    public static WagonException toFailure(String action, String resourceURI, Exception ex) {
+        if (403 == getStatusCode(ex)) {
+            return new AuthorizationException("access denied to [" + resourceURI + "]: " + getErrorMessage(ex), ex);
+        }
+        if (S3RetryPolicy.isThrottling(ex)) {
+            return new TransferFailedException("S3 kept throttling requests to " + action + " [" + resourceURI + "], "
+                    + "consider fewer concurrent transfers or a lower requestRate", ex);
+        }
+        return new TransferFailedException("failed to " + action + " [" + resourceURI + "]", ex);
+    }
+
+    private static int getStatusCode(Exception ex) {
+        if (ex instanceof AmazonServiceException) {
+            return ((AmazonServiceException) ex).getStatusCode();
+        }
+        if (ex instanceof SdkServiceException) {
+            return ((SdkServiceException) ex).statusCode();
+        }
+        return 0;
+    }
+
+    private static String getErrorMessage(Exception ex) {
+        if (ex instanceof AmazonServiceException) {
+            return ((AmazonServiceException) ex).getErrorMessage();
+        }
+        if (ex instanceof AwsServiceException && ((AwsServiceException) ex).awsErrorDetails() != null) {
+            return ((AwsServiceException) ex).awsErrorDetails().errorMessage();
+        }
+        return ex.getMessage();
+    }
+
+    /**
+     * @return true if a failed transfer may succeed when attempted again: connection failures, throttling and server errors
+     */
+    static boolean isRetryable(Exception ex) {
+        return !(ex instanceof AmazonClientException) || S3RetryPolicy.isRetryable(ex);
     }
 
-    public static void upload(PutObjectRequest request, TransferManager manager) throws TransferFailedException {
+    public static void upload(PutObjectRequest request, TransferManager manager) throws TransferFailedException, AuthorizationException {
 
         try {
             manager
                     .upload(request)
                     .waitForCompletion();
-        } catch (Exception e) {
-            throw new TransferFailedException("Unexpected error uploading file", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("interrupted while uploading [" + getS3URI(request.getBucketName(), request.getKey()) + "]", e);
+        } catch (AmazonClientException e) {
+            failUpload(request, e);
+        }
+    }
+
+    /**
+     * Copy an object within S3, without moving its content through the client. The transfer manager copies large
+     * objects with parallel <code>UploadPartCopy</code> requests.
+     *
+     * @param request object to copy and its destination
+     * @param manager transfer manager
+     * @return result of the copy, including the ETag of the new object
+     * @throws WagonException when the source does not exist, or the object cannot be copied
+     */
+    public static CopyResult copy(CopyObjectRequest request, TransferManager manager) throws WagonException {
+        String sourceURI = getS3URI(request.getSourceBucketName(), request.getSourceKey());
+        try {
+            return manager
+                    .copy(request)
+                    .waitForCopyResult();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("interrupted while copying [" + sourceURI + "]", e);
+        } catch (AmazonClientException e) {
+            if (e instanceof AmazonServiceException && 404 == ((AmazonServiceException) e).getStatusCode()) {
+                throw toWagonException(request.getSourceBucketName(), request.getSourceKey(), e);
+            }
+            throw toFailure("copy [" + sourceURI + "] to", getS3URI(request.getDestinationBucketName(), request.getDestinationKey()), e);
+        }
+    }
+
+    /**
+     * Upload content that is already in memory or on disk with a single PUT request, without a transfer manager.
+     *
+     * @param request object to put
+     * @param client  S3 client
+     * @throws TransferFailedException when the upload fails
+     * @throws AuthorizationException  when the credentials may not write the object
+     */
+    public static void putObject(PutObjectRequest request, AmazonS3 client) throws TransferFailedException, AuthorizationException {
+        try {
+            client.putObject(request);
+        } catch (AmazonClientException e) {
+            failUpload(request, e);
         }
     }
 
+    private static void failUpload(PutObjectRequest request, AmazonClientException e)
+            throws TransferFailedException, AuthorizationException {
+        WagonException exception = toFailure("upload", getS3URI(request.getBucketName(), request.getKey()), e);
+        if (exception instanceof AuthorizationException) {
+            throw (AuthorizationException) exception;
+        }
+        throw (TransferFailedException) exception;
+    }
+
     public static String getS3URI(String bucketName, String key) {
         return "s3://" + bucketName + "/" + key;
     }
@@ -109,26 +278,84 @@ public class S3Utils {
 
     /**
      * Normalize the key to our S3 object:<br>
-     * Convert <code>./css/style.css</code> into <code>/css/style.css</code><br>
-     * Convert <code>/foo/bar/../../css/style.css</code> into <code>/css/style.css</code><br>
+     * Convert <code>./css/style.css</code> into <code>css/style.css</code><br>
+     * Convert <code>/foo/bar/../../css/style.css</code> into <code>css/style.css</code><br>
+     * Convert <code>css\style.css</code> into <code>css/style.css</code><br>
+     * <p>
+     * Empty segments and trailing slashes are dropped and <code>..</code> never climbs above the bucket root.
+     * The key is normalized as a string, without consulting the local file system.
+     * </p>
      *
      * @param baseDir path prefix
      * @param key S3 Key string.
      * @return Normalized version of {@code key}.
      */
     public static String getCanonicalKey(String baseDir, String key) {
-        // release/./css/style.css
         String path = getKey(baseDir, key);
+        if (isCanonical(path)) {
+            return path;
+        }
+        String canonical = CANONICAL_KEYS.get(path);
+        if (canonical == null) {
+            canonical = normalize(path);
+            CANONICAL_KEYS.put(path, canonical);
+        }
+        return canonical;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '/' || c == '\\';
+    }
 
-        // /temp/release/css/style.css
-        File file = getCanonicalFile(new File(TEMP_DIR, path));
-        String canonical = file.getAbsolutePath();
+    /**
+     * @return true if the path has no empty, <code>.</code> or <code>..</code> segments and only forward slashes
+     */
+    static boolean isCanonical(String path) {
+        int segmentStart = 0;
+        for (int i = 0; i <= path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == '/') {
+                if (isDotSegment(path, segmentStart, i) || i == segmentStart) {
+                    return false;
+                }
+                segmentStart = i + 1;
+            } else if (path.charAt(i) == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // release/css/style.css
-        int pos = TEMP_DIR_PATH.length() + 1;
-        String suffix = canonical.substring(pos);
+    private static boolean isDotSegment(String path, int start, int end) {
+        return (end - start == 1 && path.charAt(start) == '.')
+                || (end - start == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.');
+    }
 
-        // Always replace backslash with forward slash just in case we are running on Windows
-        return suffix.replace("\\", "/");
+    static String normalize(String path) {
+        char[] normalized = new char[path.length()];
+        int length = 0;
+        // start offsets of the segments copied so far, to drop them again on ".."
+        int[] segmentStarts = new int[path.length() / 2 + 1];
+        int depth = 0;
+        int start = 0;
+        while (start < path.length()) {
+            int end = start;
+            while (end < path.length() && !isSeparator(path.charAt(end))) {
+                end++;
+            }
+            if (end - start == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.') {
+                if (depth > 0) {
+                    length = segmentStarts[--depth];
+                }
+            } else if (end > start && !isDotSegment(path, start, end)) {
+                segmentStarts[depth++] = length;
+                if (length > 0) {
+                    normalized[length++] = '/';
+                }
+                path.getChars(start, end, normalized, length);
+                length += end - start;
+            }
+            start = end + 1;
+        }
+        return new String(normalized, 0, length);
     }
 }
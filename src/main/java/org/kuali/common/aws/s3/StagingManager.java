@@ -0,0 +1,176 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out temporary files staging uploads and downloads, in a configurable directory and within a byte budget.
+ * <p>
+ * Staging a file of known size waits while the staged files would exceed the budget, unless nothing is staged at all,
+ * so that a single file larger than the budget still gets through. Files of unknown size are staged without waiting,
+ * and count against the budget once their size is known. The budget is shared by all managers of the process with the
+ * same directory and size.
+ * </p>
+ * <p>
+ * Staged files are deleted when released. Files still staged when the JVM exits are deleted by a single shutdown hook,
+ * instead of registering every file with {@link File#deleteOnExit()}, which keeps its entries until the JVM exits.
+ * </p>
+ */
+public class StagingManager {
+
+    private static final Logger log = LoggerFactory.getLogger(StagingManager.class);
+
+    private static final String PREFIX = "maven.wagon.s3.";
+
+    private static final Map<String, Budget> BUDGETS = new ConcurrentHashMap<>();
+
+    private static final Set<File> STAGED = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (File file : STAGED) {
+                FileUtils.deleteQuietly(file);
+            }
+        }, "s3-wagon-staging-cleanup"));
+    }
+
+    private final File directory;
+    private final Budget budget;
+    private final Map<File, Long> reservations = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory directory of staged files, or <code>null</code> for the default temporary directory
+     * @param maxSize   maximum number of bytes of all staged files, or <code>0</code> for no limit
+     */
+    public StagingManager(File directory, long maxSize) {
+        this(directory, BUDGETS.computeIfAbsent((directory == null ? "" : directory.getAbsolutePath()) + "@" + maxSize,
+                key -> new Budget(maxSize)));
+    }
+
+    StagingManager(File directory, Budget budget) {
+        this.directory = directory;
+        this.budget = budget;
+    }
+
+    /**
+     * Create an empty staged file, waiting for room in the budget if its size is known.
+     *
+     * @param name describes what the file stages, such as <code>upload</code>
+     * @param size expected size of the file in bytes, or <code>0</code> if unknown
+     * @return the staged file
+     * @throws InterruptedIOException if interrupted while waiting for room in the budget
+     */
+    public File stage(String name, long size) throws IOException {
+        long reserved = Math.max(0, size);
+        try {
+            budget.acquire(reserved);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for [" + reserved + "] bytes of staging space");
+        }
+        File file;
+        try {
+            if (directory != null) {
+                FileUtils.forceMkdir(directory);
+            }
+            file = File.createTempFile(PREFIX + name, ".tmp", directory);
+        } catch (IOException | RuntimeException e) {
+            budget.release(reserved);
+            throw e;
+        }
+        STAGED.add(file);
+        reservations.put(file, reserved);
+        return file;
+    }
+
+    /**
+     * Account for the actual size of a staged file, once known. Never waits, even if the budget is exceeded.
+     */
+    public void resize(File file, long size) {
+        reservations.computeIfPresent(file, (staged, reserved) -> {
+            budget.adjust(size - reserved);
+            return size;
+        });
+    }
+
+    /**
+     * Delete a staged file and return its bytes to the budget. Releasing a file again has no effect.
+     */
+    public void release(File file) {
+        if (file == null) {
+            return;
+        }
+        Long reserved = reservations.remove(file);
+        if (!FileUtils.deleteQuietly(file) && file.exists()) {
+            log.debug("failed to delete staged file [" + file.getAbsolutePath() + "]");
+        }
+        STAGED.remove(file);
+        if (reserved != null) {
+            budget.release(reserved);
+        }
+    }
+
+    /**
+     * @return bytes staged against the budget by all managers sharing it
+     */
+    public long getStagedBytes() {
+        return budget.getUsed();
+    }
+
+    static class Budget {
+        private final long maxSize;
+        private long used;
+
+        Budget(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized void acquire(long bytes) throws InterruptedException {
+            if (maxSize > 0 && bytes > 0) {
+                while (used > 0 && used + bytes > maxSize) {
+                    wait();
+                }
+            }
+            used += bytes;
+        }
+
+        synchronized void adjust(long bytes) {
+            used += bytes;
+            if (bytes < 0) {
+                notifyAll();
+            }
+        }
+
+        synchronized void release(long bytes) {
+            used -= bytes;
+            notifyAll();
+        }
+
+        synchronized long getUsed() {
+            return used;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Progress of a resumable transfer, kept in a properties file so that it survives failed builds.
+ * Every {@link #save()} replaces the file atomically, so that a crash never leaves a torn journal behind.
+ */
+class TransferJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(TransferJournal.class);
+
+    private final File file;
+    private final Properties properties = new Properties();
+
+    private TransferJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param directory directory of the journals
+     * @param bucketName bucket of the transferred object
+     * @param key key of the transferred object
+     * @param suffix file name suffix telling the kind of transfer
+     * @return journal of the object, empty if there was none or it could not be read
+     */
+    static TransferJournal open(File directory, String bucketName, String key, String suffix) {
+        TransferJournal journal = new TransferJournal(new File(directory, getName(bucketName, key) + suffix));
+        if (journal.file.exists()) {
+            try (InputStream in = new FileInputStream(journal.file)) {
+                journal.properties.load(in);
+            } catch (IOException e) {
+                log.debug("ignoring unreadable journal [" + journal.file.getAbsolutePath() + "]", e);
+                journal.properties.clear();
+            }
+        }
+        return journal;
+    }
+
+    static String getName(String bucketName, String key) {
+        return DigestUtils.sha1Hex(S3Utils.getS3URI(bucketName, key));
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    synchronized boolean isEmpty() {
+        return properties.isEmpty();
+    }
+
+    synchronized String get(String name) {
+        return properties.getProperty(name);
+    }
+
+    synchronized void set(String name, String value) {
+        properties.setProperty(name, value);
+    }
+
+    synchronized void clear() {
+        properties.clear();
+    }
+
+    synchronized void save() throws IOException {
+        FileUtils.forceMkdir(file.getParentFile());
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (OutputStream out = new FileOutputStream(tmpFile)) {
+                properties.store(out, null);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteQuietly(tmpFile);
+        }
+    }
+
+    synchronized void delete() {
+        properties.clear();
+        FileUtils.deleteQuietly(file);
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+
+/**
+ * Forwards the retry count and connection pool pressure of individual SDK requests to {@link TransferMetrics}.
+ * <p>
+ * Set it on the requests to measure with
+ * {@link com.amazonaws.AmazonWebServiceRequest#setRequestMetricCollector(RequestMetricCollector)}, so that S3
+ * clients shared with other wagons are not affected.
+ * </p>
+ */
+public class TransferMetricCollector extends RequestMetricCollector {
+
+    private final TransferMetrics metrics;
+
+    public TransferMetricCollector(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void collectMetrics(Request<?> request, Response<?> response) {
+        AWSRequestMetrics requestMetrics = request.getAWSRequestMetrics();
+        if (requestMetrics == null) {
+            return;
+        }
+        TimingInfo timingInfo = requestMetrics.getTimingInfo();
+        Number retries = timingInfo.getCounter(AWSRequestMetrics.Field.HttpClientRetryCount.name());
+        if (retries != null && retries.longValue() > 0) {
+            metrics.recordRetries(retries.longValue());
+        }
+        Number pending = timingInfo.getCounter(AWSRequestMetrics.Field.HttpClientPoolPendingCount.name());
+        if (pending != null) {
+            metrics.recordPoolPending(pending.longValue());
+        }
+    }
+}
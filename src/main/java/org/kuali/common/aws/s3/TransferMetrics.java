@@ -0,0 +1,67 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+/**
+ * Receives measurements of S3 transfers. All methods do nothing by default, so implementations only override
+ * what they are interested in. Implementations must be thread-safe.
+ */
+public interface TransferMetrics {
+
+    String GET = "get";
+    String PUT = "put";
+    String HEAD = "head";
+    String LIST = "list";
+
+    /**
+     * Discards all measurements.
+     */
+    TransferMetrics NONE = new TransferMetrics() {
+    };
+
+    /**
+     * @param operation     one of {@link #GET}, {@link #PUT}, {@link #HEAD} or {@link #LIST}
+     * @param bytes         number of bytes transferred
+     * @param durationNanos time from the start of the operation until it completed
+     */
+    default void recordTransfer(String operation, long bytes, long durationNanos) {
+    }
+
+    /**
+     * @param operation     operation that received data
+     * @param durationNanos time from the start of the operation until its first byte was available
+     */
+    default void recordTimeToFirstByte(String operation, long durationNanos) {
+    }
+
+    /**
+     * @param retries number of times the SDK retried a request
+     */
+    default void recordRetries(long retries) {
+    }
+
+    /**
+     * @param pending number of requests waiting for a pooled connection when a request was sent
+     */
+    default void recordPoolPending(long pending) {
+    }
+
+    /**
+     * @param hit true if a download was served from the local cache without transferring content
+     */
+    default void recordCacheLookup(boolean hit) {
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link DefaultTransferMetrics}.
+ */
+public interface TransferMetricsMXBean {
+
+    /**
+     * @return statistics by name, e.g. <code>get.count</code>, <code>get.bytesPerSecond</code> or
+     * <code>put.latencyMicros.p99</code>
+     */
+    Map<String, Long> getStatistics();
+
+    void reset();
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.WagonException;
+import org.kuali.common.aws.s3.RequestRateLimiter;
+import org.kuali.common.aws.s3.S3Utils;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.ProxyConfiguration;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Transfers with the SDK v2 {@link S3AsyncClient} on a Netty event loop, so that many transfers can be in flight
+ * without a thread per transfer. Objects above the multipart threshold are sent in parts, as the SDK v1 transfer
+ * manager does, so that objects of more than 5 GB can be uploaded.
+ */
+class AsyncTransferEngine implements TransferEngine {
+
+    private static final String DEFAULT_REGION = "us-east-1";
+
+    /**
+     * Maximum number of parts of a multipart upload.
+     */
+    private static final int MAX_PARTS = 10000;
+
+    private final S3AsyncClient client;
+    private final Runnable release;
+    private final long multipartThreshold;
+    private final long minimumPartSize;
+
+    /**
+     * @param client             client, possibly shared with other engines
+     * @param release            releases the client when the engine is shut down
+     * @param multipartThreshold size in bytes above which files are uploaded in parts
+     * @param minimumPartSize    size in bytes of the parts, unless more than the maximum number of parts would be needed
+     */
+    AsyncTransferEngine(S3AsyncClient client, Runnable release, long multipartThreshold, long minimumPartSize) {
+        this.client = client;
+        this.release = release;
+        this.multipartThreshold = multipartThreshold;
+        this.minimumPartSize = minimumPartSize;
+    }
+
+    /**
+     * @param endpoint         custom endpoint, or null for AWS
+     * @param region           region of the bucket or signing region of the endpoint, or null for the default
+     * @param accessKey        access key
+     * @param secretKey        secret key
+     * @param configuration    timeouts and proxy of the SDK v1 client, applied to the SDK v2 client as well
+     * @param retryPolicy      retry policy, matching the one of the SDK v1 client
+     * @param rateLimiter      request rate limiter sharing its token buckets with the SDK v1 client, or null
+     * @param maxConcurrency   maximum number of concurrent connections; further transfers wait for a connection
+     * @param eventLoopThreads number of Netty event loop threads
+     * @return new client
+     */
+    static S3AsyncClient createClient(String endpoint, String region, String accessKey, String secretKey,
+                                      ClientConfiguration configuration, RetryPolicy retryPolicy,
+                                      RequestRateLimiter rateLimiter, int maxConcurrency, int eventLoopThreads) {
+        NettyNioAsyncHttpClient.Builder httpClient = NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(maxConcurrency)
+                .maxPendingConnectionAcquires(Integer.MAX_VALUE)
+                .connectionAcquisitionTimeout(Duration.ofMinutes(10))
+                .connectionTimeout(Duration.ofMillis(configuration.getConnectionTimeout()))
+                .readTimeout(Duration.ofMillis(configuration.getSocketTimeout()))
+                .writeTimeout(Duration.ofMillis(configuration.getSocketTimeout()))
+                .eventLoopGroupBuilder(SdkEventLoopGroup.builder().numberOfThreads(eventLoopThreads));
+        if (StringUtils.isNotBlank(configuration.getProxyHost())) {
+            Set<String> nonProxyHosts = new HashSet<>();
+            for (String host : StringUtils.split(StringUtils.defaultString(configuration.getNonProxyHosts()), '|')) {
+                nonProxyHosts.add(host.trim());
+            }
+            httpClient.proxyConfiguration(ProxyConfiguration.builder()
+                    .scheme("http")
+                    .host(configuration.getProxyHost())
+                    .port(configuration.getProxyPort())
+                    .username(configuration.getProxyUsername())
+                    .password(configuration.getProxyPassword())
+                    .nonProxyHosts(nonProxyHosts)
+                    .build());
+        }
+        S3AsyncClientBuilder builder = S3AsyncClient.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(accessKey, secretKey)))
+                .region(Region.of(StringUtils.isBlank(region) ? DEFAULT_REGION : region))
+                .httpClientBuilder(httpClient);
+        ClientOverrideConfiguration.Builder overrideConfiguration = ClientOverrideConfiguration.builder()
+                .retryPolicy(retryPolicy);
+        if (rateLimiter != null) {
+            overrideConfiguration.addExecutionInterceptor(rateLimiter);
+        }
+        if (configuration.getRequestTimeout() > 0) {
+            overrideConfiguration.apiCallAttemptTimeout(Duration.ofMillis(configuration.getRequestTimeout()));
+        }
+        builder.overrideConfiguration(overrideConfiguration.build());
+        if (StringUtils.isNotBlank(endpoint)) {
+            builder.endpointOverride(URI.create(endpoint.contains("://") ? endpoint : "https://" + endpoint))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public CompletableFuture<ObjectMetadata> download(GetObjectRequest request, File destination) {
+        software.amazon.awssdk.services.s3.model.GetObjectRequest getRequest = software.amazon.awssdk.services.s3.model.GetObjectRequest.builder()
+                .bucket(request.getBucketName())
+                .key(request.getKey())
+                .build();
+        return translate("download", request.getBucketName(), request.getKey(),
+                client.getObject(getRequest, AsyncResponseTransformer.toFile(destination.toPath()))
+                        .thenApply(AsyncTransferEngine::toObjectMetadata)
+                        .whenComplete((metadata, failure) -> {
+                            if (failure != null) {
+                                FileUtils.deleteQuietly(destination);
+                            }
+                        }));
+    }
+
+    @Override
+    public CompletableFuture<Void> upload(PutObjectRequest request) {
+        long length = request.getFile().length();
+        if (length > multipartThreshold) {
+            return translate("upload", request.getBucketName(), request.getKey(), uploadParts(request, length));
+        }
+        software.amazon.awssdk.services.s3.model.PutObjectRequest.Builder putRequest = software.amazon.awssdk.services.s3.model.PutObjectRequest.builder()
+                .bucket(request.getBucketName())
+                .key(request.getKey())
+                .contentLength(length);
+        ObjectMetadata metadata = request.getMetadata();
+        if (metadata != null) {
+            putRequest.metadata(metadata.getUserMetadata())
+                    .contentMD5(metadata.getContentMD5())
+                    .contentType(metadata.getContentType())
+                    .contentEncoding(metadata.getContentEncoding());
+        }
+        return translate("upload", request.getBucketName(), request.getKey(),
+                client.putObject(putRequest.build(), AsyncRequestBody.fromFile(request.getFile().toPath()))
+                        .thenApply(response -> null));
+    }
+
+    /**
+     * Upload a file with a multipart upload, sending all parts at once; they wait for a connection of the client.
+     * The upload is aborted if a part fails.
+     */
+    private CompletableFuture<Void> uploadParts(PutObjectRequest request, long length) {
+        String bucketName = request.getBucketName();
+        String key = request.getKey();
+        CreateMultipartUploadRequest.Builder createRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key);
+        ObjectMetadata metadata = request.getMetadata();
+        if (metadata != null) {
+            createRequest.metadata(metadata.getUserMetadata())
+                    .contentType(metadata.getContentType())
+                    .contentEncoding(metadata.getContentEncoding());
+        }
+        Path path = request.getFile().toPath();
+        long partSize = Math.max(minimumPartSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+        return client.createMultipartUpload(createRequest.build()).thenCompose(upload -> {
+            String uploadId = upload.uploadId();
+            List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+            for (long position = 0; position < length; position += partSize) {
+                final int partNumber = parts.size() + 1;
+                final long offset = position;
+                final long size = Math.min(partSize, length - position);
+                UploadPartRequest partRequest = UploadPartRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .contentLength(size)
+                        .build();
+                parts.add(client.uploadPart(partRequest, AsyncRequestBody.fromFile(body -> body.path(path).position(offset).numBytesToRead(size)))
+                        .thenApply(response -> CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build()));
+            }
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                    .thenCompose(completed -> {
+                        List<CompletedPart> completedParts = new ArrayList<>(parts.size());
+                        for (CompletableFuture<CompletedPart> part : parts) {
+                            completedParts.add(part.join());
+                        }
+                        return client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                                .bucket(bucketName)
+                                .key(key)
+                                .uploadId(uploadId)
+                                .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                                .build());
+                    })
+                    .whenComplete((response, failure) -> {
+                        if (failure != null) {
+                            client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                                    .bucket(bucketName)
+                                    .key(key)
+                                    .uploadId(uploadId)
+                                    .build());
+                        }
+                    });
+        }).thenApply(response -> null);
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        release.run();
+    }
+
+    private static ObjectMetadata toObjectMetadata(GetObjectResponse response) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(response.contentLength() == null ? 0 : response.contentLength());
+        if (response.lastModified() != null) {
+            metadata.setLastModified(Date.from(response.lastModified()));
+        }
+        if (response.eTag() != null) {
+            metadata.setHeader(Headers.ETAG, StringUtils.strip(response.eTag(), "\""));
+        }
+        metadata.setUserMetadata(response.metadata());
+        return metadata;
+    }
+
+    /**
+     * Complete exceptionally with the {@link WagonException} matching the SDK failure, as the SDK v1 transfers do.
+     */
+    private static <T> CompletableFuture<T> translate(String action, String bucketName, String key, CompletableFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, failure) -> {
+            if (failure == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(toWagonException(action, bucketName, key, failure));
+            }
+        });
+        return result;
+    }
+
+    private static WagonException toWagonException(String action, String bucketName, String key, Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause()
+                : failure;
+        if (!(cause instanceof Exception)) {
+            return new TransferFailedException("failed to " + action + " [" + S3Utils.getS3URI(bucketName, key) + "]", cause);
+        }
+        if ("download".equals(action)) {
+            return S3Utils.toWagonException(bucketName, key, (Exception) cause);
+        }
+        return S3Utils.toFailure(action, S3Utils.getS3URI(bucketName, key), (Exception) cause);
+    }
+}
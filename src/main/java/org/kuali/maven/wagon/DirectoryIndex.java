@@ -0,0 +1,457 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.WagonException;
+import org.kuali.common.aws.s3.ObjectListingIterator;
+import org.kuali.common.aws.s3.S3Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index objects that list the files and subdirectories of a directory of the repository, so that listing a directory
+ * takes a single GET instead of one or more pages of <code>listObjects</code>.
+ * <p>
+ * The index of a directory is the object {@value #INDEX_NAME} in that directory: a UTF-8 text with a header line and
+ * one line per entry, either a subdirectory name with a trailing slash, or a file name followed by its size, ETag and
+ * last modified time in milliseconds, separated by tabs. When a name appears more than once, the last line wins.
+ * </p>
+ * <p>
+ * Uploads are recorded in memory and merged into the index of their directory, and of each parent directory up to the
+ * base directory, by {@link #flush()}. A missing index is seeded from a real listing first, so that objects uploaded
+ * before the index existed are kept. Updates are conditional on the ETag of the index that was merged, and are retried
+ * when another writer got there first.
+ * </p>
+ * <p>
+ * Indexes that were read are kept in memory and revalidated with a conditional GET. {@link #list(String)} returns null
+ * for a missing index, so that callers fall back to a real listing. An index that was neither updated nor verified
+ * within the maximum age is verified: it is replaced with a real listing of its directory, which picks up objects
+ * written or deleted without the wagon, conditional on its ETag. Until then the index is trusted.
+ * </p>
+ */
+class DirectoryIndex {
+
+    static final String INDEX_NAME = ".s3-wagon-index";
+
+    private static final Logger log = LoggerFactory.getLogger(DirectoryIndex.class);
+
+    private static final String HEADER = "# s3-wagon-index 1";
+
+    private static final String CONTENT_TYPE = "text/tab-separated-values; charset=UTF-8";
+
+    private static final String UNKNOWN_ETAG = "-";
+
+    private static final int MAX_UPDATE_ATTEMPTS = 5;
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final String baseDir;
+    private final long maxAgeMillis;
+    private final RequestMetricCollector metricCollector;
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private volatile boolean readOnly;
+    private final Map<String, Map<String, Entry>> pending = new TreeMap<>();
+
+    /**
+     * @param client          S3 client
+     * @param bucketName      bucket of the repository
+     * @param baseDir         base directory of the repository, empty or ending with a slash
+     * @param maxAgeMillis    time after the last update or verification after which an index is verified, or 0 for never
+     * @param metricCollector collector set on index requests, or null
+     */
+    DirectoryIndex(AmazonS3 client, String bucketName, String baseDir, long maxAgeMillis, RequestMetricCollector metricCollector) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.baseDir = baseDir;
+        this.maxAgeMillis = maxAgeMillis;
+        this.metricCollector = metricCollector;
+    }
+
+    /**
+     * @return true if the key names an index object, which is not part of any listing
+     */
+    static boolean isIndex(String key) {
+        return key.equals(INDEX_NAME) || key.endsWith("/" + INDEX_NAME);
+    }
+
+    /**
+     * Record an uploaded object, to be merged into the indexes by {@link #flush()}.
+     *
+     * @param key          key of the object
+     * @param size         size of the object in bytes
+     * @param etag         ETag of the object, or null if unknown
+     * @param lastModified time of the upload in milliseconds
+     */
+    synchronized void record(String key, long size, String etag, long lastModified) {
+        int slash = key.lastIndexOf('/');
+        String prefix = key.substring(0, slash + 1);
+        String name = key.substring(slash + 1);
+        if (name.isEmpty() || isIndex(name)) {
+            return;
+        }
+        pending(prefix).put(name, Entry.file(name, size, etag, lastModified));
+        while (prefix.length() > baseDir.length() && prefix.startsWith(baseDir)) {
+            int parentEnd = prefix.lastIndexOf('/', prefix.length() - 2);
+            String parent = prefix.substring(0, parentEnd + 1);
+            String directory = prefix.substring(parentEnd + 1);
+            pending(parent).put(directory, Entry.directory(directory));
+            prefix = parent;
+        }
+    }
+
+    private Map<String, Entry> pending(String prefix) {
+        return pending.computeIfAbsent(prefix, p -> new TreeMap<>());
+    }
+
+    /**
+     * List a directory from its index, including uploads recorded but not yet flushed.
+     *
+     * @param prefix key prefix of the directory, ending with a slash
+     * @return entries of the directory, or null if the index is missing
+     * @throws WagonException when the index cannot be read
+     */
+    List<Entry> list(String prefix) throws WagonException {
+        Snapshot snapshot = read(prefix);
+        if (snapshot == null) {
+            log.debug("no index of [" + S3Utils.getS3URI(bucketName, prefix) + "]");
+            return null;
+        }
+        if (maxAgeMillis > 0 && snapshot.lastModified + maxAgeMillis < System.currentTimeMillis()) {
+            log.debug("verifying stale index of [" + S3Utils.getS3URI(bucketName, prefix) + "]");
+            snapshot = verify(prefix, snapshot);
+        }
+        Map<String, Entry> entries = new TreeMap<>(snapshot.entries);
+        synchronized (this) {
+            Map<String, Entry> recorded = pending.get(prefix);
+            if (recorded != null) {
+                entries.putAll(recorded);
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Merge the recorded uploads into the index objects.
+     *
+     * @throws TransferFailedException when an index cannot be updated
+     */
+    void flush() throws TransferFailedException {
+        Map<String, Map<String, Entry>> updates;
+        synchronized (this) {
+            updates = new TreeMap<>(pending);
+            pending.clear();
+        }
+        for (Map.Entry<String, Map<String, Entry>> update : updates.entrySet()) {
+            try {
+                update(update.getKey(), update.getValue());
+            } catch (WagonException | AmazonClientException | IOException e) {
+                throw new TransferFailedException("failed to update index of [" + S3Utils.getS3URI(bucketName, update.getKey()) + "]", e);
+            }
+        }
+    }
+
+    private void update(String prefix, Map<String, Entry> entries) throws WagonException, IOException {
+        for (int attempt = 1; ; attempt++) {
+            Snapshot current = read(prefix);
+            Map<String, Entry> merged = current == null
+                    ? listEntries(prefix)
+                    : new TreeMap<>(current.entries);
+            if (current != null && merged.entrySet().containsAll(entries.entrySet())) {
+                return;
+            }
+            merged.putAll(entries);
+            if (write(prefix, merged, current == null ? null : current.etag)) {
+                log.debug("updated index of [" + S3Utils.getS3URI(bucketName, prefix) + "] with [" + entries.size() + "] entries");
+                return;
+            }
+            if (attempt == MAX_UPDATE_ATTEMPTS) {
+                throw new TransferFailedException("index of [" + S3Utils.getS3URI(bucketName, prefix)
+                        + "] kept changing after [" + attempt + "] attempts");
+            }
+            log.debug("index of [" + S3Utils.getS3URI(bucketName, prefix) + "] was changed concurrently, merging again");
+        }
+    }
+
+    /**
+     * Replace a stale index with a real listing of its directory, unless it was changed since it was read. The listing
+     * is used even if the index cannot be written, for example with read-only credentials, which are then no longer
+     * tried.
+     */
+    private Snapshot verify(String prefix, Snapshot stale) {
+        Map<String, Entry> entries = listEntries(prefix);
+        if (!readOnly) {
+            try {
+                if (write(prefix, entries, stale.etag)) {
+                    return snapshots.get(prefix);
+                }
+            } catch (AmazonServiceException e) {
+                if (e.getStatusCode() != 403) {
+                    throw e;
+                }
+                readOnly = true;
+                log.debug("no permission to update index of [" + S3Utils.getS3URI(bucketName, prefix) + "]", e);
+            }
+        }
+        return new Snapshot(stale.etag, System.currentTimeMillis(), entries);
+    }
+
+    private Snapshot read(String prefix) throws WagonException {
+        Snapshot cached = snapshots.get(prefix);
+        GetObjectRequest request = metered(new GetObjectRequest(bucketName, prefix + INDEX_NAME));
+        if (cached != null) {
+            request.withNonmatchingETagConstraint(cached.etag);
+        }
+        S3Object object;
+        try {
+            object = S3Utils.getObject(request, client);
+        } catch (ResourceDoesNotExistException e) {
+            snapshots.remove(prefix);
+            return null;
+        }
+        if (object == null) {
+            // not modified
+            return cached;
+        }
+        try (S3Object content = object) {
+            Date lastModified = content.getObjectMetadata().getLastModified();
+            Snapshot snapshot = new Snapshot(
+                    content.getObjectMetadata().getETag(),
+                    lastModified == null ? System.currentTimeMillis() : lastModified.getTime(),
+                    parse(content.getObjectContent()));
+            snapshots.put(prefix, snapshot);
+            return snapshot;
+        } catch (IOException | AmazonClientException e) {
+            throw new TransferFailedException("failed to read index of [" + S3Utils.getS3URI(bucketName, prefix) + "]", e);
+        }
+    }
+
+    /**
+     * @return false if the index was changed since it was read
+     */
+    private boolean write(String prefix, Map<String, Entry> entries, String expectedETag) {
+        byte[] content = format(entries.values());
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        metadata.setContentType(CONTENT_TYPE);
+        metadata.setContentMD5(Base64.encodeBase64String(DigestUtils.md5(content)));
+        PutObjectRequest request = metered(new PutObjectRequest(
+                bucketName, prefix + INDEX_NAME, new ByteArrayInputStream(content), metadata));
+        if (expectedETag == null) {
+            request.putCustomRequestHeader("If-None-Match", "*");
+        } else {
+            request.putCustomRequestHeader("If-Match", "\"" + expectedETag + "\"");
+        }
+        try {
+            PutObjectResult result = client.putObject(request);
+            snapshots.put(prefix, new Snapshot(result.getETag(), System.currentTimeMillis(), entries));
+            return true;
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 412 || e.getStatusCode() == 409) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Entries of a directory from a real listing, used to seed its index.
+     */
+    private Map<String, Entry> listEntries(String prefix) {
+        Map<String, Entry> entries = new TreeMap<>();
+        ListObjectsV2Request request = metered(new ListObjectsV2Request()
+                .withBucketName(bucketName)
+                .withPrefix(prefix)
+                .withDelimiter("/"));
+        Iterator<ListObjectsV2Result> pages = new ObjectListingIterator(client, request, true);
+        while (pages.hasNext()) {
+            ListObjectsV2Result page = pages.next();
+            for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                String name = summary.getKey().substring(prefix.length());
+                if (!name.isEmpty() && !isIndex(name)) {
+                    entries.put(name, Entry.file(name, summary.getSize(), summary.getETag(),
+                            summary.getLastModified() == null ? 0 : summary.getLastModified().getTime()));
+                }
+            }
+            for (String commonPrefix : page.getCommonPrefixes()) {
+                String name = commonPrefix.substring(prefix.length());
+                entries.put(name, Entry.directory(name));
+            }
+        }
+        return entries;
+    }
+
+    private <T extends AmazonWebServiceRequest> T metered(T request) {
+        if (metricCollector != null) {
+            request.setRequestMetricCollector(metricCollector);
+        }
+        return request;
+    }
+
+    static byte[] format(Iterable<Entry> entries) {
+        StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        for (Entry entry : entries) {
+            sb.append(StringEscapeUtils.escapeJava(entry.getName()));
+            if (!entry.isDirectory()) {
+                sb.append('\t').append(entry.getSize())
+                        .append('\t').append(entry.getETag() == null ? UNKNOWN_ETAG : entry.getETag())
+                        .append('\t').append(entry.getLastModified());
+            }
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static Map<String, Entry> parse(InputStream in) throws IOException {
+        Map<String, Entry> entries = new TreeMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = StringUtils.splitPreserveAllTokens(line, '\t');
+            String name = StringEscapeUtils.unescapeJava(fields[0]);
+            if (fields.length == 1 && name.endsWith("/")) {
+                entries.put(name, Entry.directory(name));
+            } else if (fields.length >= 4) {
+                try {
+                    entries.put(name, Entry.file(name, Long.parseLong(fields[1]),
+                            UNKNOWN_ETAG.equals(fields[2]) ? null : fields[2], Long.parseLong(fields[3])));
+                } catch (NumberFormatException e) {
+                    log.debug("skipped malformed index line [" + line + "]");
+                }
+            } else {
+                log.debug("skipped malformed index line [" + line + "]");
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * A file or subdirectory of an indexed directory.
+     */
+    static final class Entry {
+        private final String name;
+        private final long size;
+        private final String etag;
+        private final long lastModified;
+
+        private Entry(String name, long size, String etag, long lastModified) {
+            this.name = name;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        static Entry file(String name, long size, String etag, long lastModified) {
+            return new Entry(name, size, etag, lastModified);
+        }
+
+        static Entry directory(String name) {
+            return new Entry(name, -1, null, 0);
+        }
+
+        /**
+         * @return name relative to the directory, with a trailing slash for subdirectories
+         */
+        String getName() {
+            return name;
+        }
+
+        boolean isDirectory() {
+            return size < 0;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getETag() {
+            return etag;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return size == other.size
+                    && lastModified == other.lastModified
+                    && name.equals(other.name)
+                    && Objects.equals(etag, other.etag);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, size, etag, lastModified);
+        }
+    }
+
+    private static final class Snapshot {
+        private final String etag;
+        private final long lastModified;
+        private final Map<String, Entry> entries;
+
+        private Snapshot(String etag, long lastModified, Map<String, Entry> entries) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.entries = entries;
+        }
+    }
+}
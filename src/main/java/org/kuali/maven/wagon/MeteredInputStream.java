@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon;
+
+import org.kuali.common.aws.s3.TransferMetrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Records the time to the first byte, and the bytes read and the duration of a download once closed.
+ */
+class MeteredInputStream extends FilterInputStream {
+
+    private final TransferMetrics metrics;
+    private final String operation;
+    private final long startNanos;
+    private long bytes = 0;
+    private boolean firstByte = true;
+    private boolean closed = false;
+
+    /**
+     * @param in         stream to measure
+     * @param metrics    receives the measurements
+     * @param operation  name of the measured operation
+     * @param startNanos {@link System#nanoTime()} at the start of the operation
+     */
+    MeteredInputStream(InputStream in, TransferMetrics metrics, String operation, long startNanos) {
+        super(in);
+        this.metrics = metrics;
+        this.operation = operation;
+        this.startNanos = startNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        count(b == -1 ? -1 : 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        count(count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        bytes += skipped;
+        return skipped;
+    }
+
+    private void count(int count) {
+        if (count > 0) {
+            if (firstByte) {
+                firstByte = false;
+                metrics.recordTimeToFirstByte(operation, System.nanoTime() - startNanos);
+            }
+            bytes += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!closed) {
+                closed = true;
+                metrics.recordTransfer(operation, bytes, System.nanoTime() - startNanos);
+            }
+        }
+    }
+}
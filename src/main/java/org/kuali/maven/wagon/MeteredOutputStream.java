@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon;
+
+import org.kuali.common.aws.s3.TransferMetrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the bytes written and the duration of an upload that completes when the stream is closed.
+ */
+class MeteredOutputStream extends FilterOutputStream {
+
+    private final TransferMetrics metrics;
+    private final String operation;
+    private final long startNanos = System.nanoTime();
+    private long bytes = 0;
+    private boolean closed = false;
+
+    MeteredOutputStream(OutputStream out, TransferMetrics metrics, String operation) {
+        super(out);
+        this.metrics = metrics;
+        this.operation = operation;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytes += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out.close();
+        metrics.recordTransfer(operation, bytes, System.nanoTime() - startNanos);
+    }
+}
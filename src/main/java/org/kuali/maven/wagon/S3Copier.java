@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.model.CopyResult;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.WagonException;
+import org.kuali.common.aws.s3.ObjectListingIterator;
+import org.kuali.common.aws.s3.S3Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+
+/**
+ * Copies objects within S3, from one key or prefix to another, without moving their content through the client.
+ * <p>
+ * Prefixes are copied with a bounded number of concurrent copies. Repository metadata is copied last, and only if all
+ * other objects were copied, so that readers of the destination never see metadata pointing at missing artifacts.
+ * Objects at or above the multipart copy threshold are copied in parallel parts by the transfer manager; their
+ * metadata is carried over explicitly, since a multipart copy does not copy it.
+ * </p>
+ */
+class S3Copier {
+
+    private static final Logger log = LoggerFactory.getLogger(S3Copier.class);
+
+    private static final String[] CONTENT_HEADERS = {
+            Headers.CONTENT_TYPE, Headers.CONTENT_ENCODING, Headers.CONTENT_DISPOSITION, Headers.CACHE_CONTROL};
+
+    /**
+     * Notified of every object copied.
+     */
+    interface Listener {
+        void copied(String key, long size, String etag);
+    }
+
+    private final TransferManager transferManager;
+    private final long multipartCopyThreshold;
+    private final int concurrency;
+
+    S3Copier(TransferManager transferManager, long multipartCopyThreshold, int concurrency) {
+        this.transferManager = transferManager;
+        this.multipartCopyThreshold = multipartCopyThreshold;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Copy a single object.
+     *
+     * @return ETag of the copy
+     */
+    String copy(String sourceBucket, String sourceKey, String destinationBucket, String destinationKey, Listener listener)
+            throws WagonException {
+        ObjectMetadata metadata = S3Utils.getObjectMetadata(
+                new GetObjectMetadataRequest(sourceBucket, sourceKey), transferManager.getAmazonS3Client());
+        return copy(sourceBucket, sourceKey, metadata.getContentLength(), metadata, destinationBucket, destinationKey, listener);
+    }
+
+    /**
+     * Copy all objects below a prefix to another prefix, keeping their keys relative to the prefix.
+     *
+     * @return number of objects copied
+     * @throws TransferFailedException listing every object that failed to copy, or if the prefixes overlap within a
+     *                                 bucket, since the lazily listed source would then include the copies
+     */
+    int copyPrefix(String sourceBucket, String sourcePrefix, String destinationBucket, String destinationPrefix,
+                   Listener listener) throws TransferFailedException {
+        if (sourceBucket.equals(destinationBucket)
+                && (destinationPrefix.startsWith(sourcePrefix) || sourcePrefix.startsWith(destinationPrefix))) {
+            throw new TransferFailedException("cannot copy [" + S3Utils.getS3URI(sourceBucket, sourcePrefix) + "] to ["
+                    + S3Utils.getS3URI(destinationBucket, destinationPrefix) + "], since they overlap");
+        }
+        TransferBatch batch = new TransferBatch(concurrency, "copy");
+        int count = 0;
+        try {
+            ListObjectsV2Request request = new ListObjectsV2Request()
+                    .withBucketName(sourceBucket)
+                    .withPrefix(sourcePrefix);
+            ObjectListingIterator pages = new ObjectListingIterator(transferManager.getAmazonS3Client(), request, true);
+            while (pages.hasNext()) {
+                ListObjectsV2Result page = pages.next();
+                for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                    if (DirectoryIndex.isIndex(summary.getKey())) {
+                        // the index of the destination is maintained by the listener
+                        continue;
+                    }
+                    String relativeKey = summary.getKey().substring(sourcePrefix.length());
+                    String destinationKey = destinationPrefix + relativeKey;
+                    batch.submit(relativeKey, () -> {
+                        ObjectMetadata metadata = summary.getSize() < multipartCopyThreshold
+                                ? null
+                                : S3Utils.getObjectMetadata(new GetObjectMetadataRequest(sourceBucket, summary.getKey()),
+                                transferManager.getAmazonS3Client());
+                        copy(sourceBucket, summary.getKey(), summary.getSize(), metadata, destinationBucket, destinationKey, listener);
+                        return null;
+                    });
+                    count++;
+                }
+            }
+            batch.await();
+        } catch (AmazonClientException e) {
+            throw new TransferFailedException("failed to list [" + S3Utils.getS3URI(sourceBucket, sourcePrefix) + "]", e);
+        } finally {
+            batch.shutdown();
+        }
+        log.debug("copied [" + count + "] objects from [" + S3Utils.getS3URI(sourceBucket, sourcePrefix)
+                + "] to [" + S3Utils.getS3URI(destinationBucket, destinationPrefix) + "]");
+        return count;
+    }
+
+    private String copy(String sourceBucket, String sourceKey, long size, ObjectMetadata metadata,
+                        String destinationBucket, String destinationKey, Listener listener) throws WagonException {
+        CopyObjectRequest request = new CopyObjectRequest(sourceBucket, sourceKey, destinationBucket, destinationKey);
+        if (size >= multipartCopyThreshold) {
+            request.setNewObjectMetadata(copyOf(metadata));
+        }
+        CopyResult result = S3Utils.copy(request, transferManager);
+        listener.copied(destinationKey, size, result.getETag());
+        return result.getETag();
+    }
+
+    /**
+     * @return the headers of an object that describe its content, without those describing the stored object
+     */
+    private static ObjectMetadata copyOf(ObjectMetadata metadata) {
+        ObjectMetadata copy = new ObjectMetadata();
+        for (String header : CONTENT_HEADERS) {
+            if (metadata.getRawMetadataValue(header) != null) {
+                copy.setHeader(header, metadata.getRawMetadataValue(header));
+            }
+        }
+        copy.setUserMetadata(new HashMap<>(metadata.getUserMetadata()));
+        return copy;
+    }
+}
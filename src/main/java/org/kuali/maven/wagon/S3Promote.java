@@ -0,0 +1,86 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.repository.Repository;
+
+import java.util.Properties;
+
+/**
+ * Promotes the artifacts of one repository to another within S3, for example a staged release from
+ * <code>s3://bucket/staging</code> to <code>s3://bucket/release</code>, copying them server-side with
+ * {@link S3StreamWagon#copyDirectory(String, String)}.
+ * <p>
+ * Usage: <code>S3Promote &lt;source repository URL&gt; &lt;destination repository URL&gt; [directory]</code>.
+ * Credentials are looked up like the AWS SDK does, e.g. from <code>AWS_ACCESS_KEY_ID</code> and
+ * <code>AWS_SECRET_ACCESS_KEY</code>. The system property <code>s3.endpoint</code> selects a custom endpoint, and
+ * other <code>s3.*</code> system properties are passed to the wagon as configuration, such as
+ * <code>-Ds3.copyConcurrency=16</code>.
+ * </p>
+ */
+public class S3Promote {
+
+    private static final String PREFIX = "s3.";
+
+    public static void main(String[] args) throws WagonException {
+        if (args.length < 2 || args.length > 3) {
+            // no System.exit(), which would end the Maven build when run with exec:java
+            throw new IllegalArgumentException("usage: S3Promote <source repository URL> <destination repository URL> [directory]");
+        }
+        AWSCredentials credentials = DefaultAWSCredentialsProviderChain.getInstance().getCredentials();
+        AuthenticationInfo authenticationInfo = new AuthenticationInfo();
+        authenticationInfo.setUserName(credentials.getAWSAccessKeyId());
+        authenticationInfo.setPassword(credentials.getAWSSecretKey());
+
+        Properties parameters = new Properties();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX)) {
+                parameters.setProperty(name.substring(PREFIX.length()), System.getProperty(name));
+            }
+        }
+        String directory = args.length > 2 ? args[2] : "";
+        int count = promote(args[0], directory, args[1], authenticationInfo, parameters);
+        System.out.println("promoted [" + count + "] resources from [" + args[0] + "] to [" + args[1] + "]");
+    }
+
+    /**
+     * Copy all resources below a directory of a repository to the same directory of another repository.
+     *
+     * @param sourceUrl          URL of the source repository
+     * @param directory          directory to promote, or an empty string for the whole repository
+     * @param destinationUrl     URL of the destination repository
+     * @param authenticationInfo access key as user name and secret key as password
+     * @param parameters         wagon configuration, including the <code>endpoint</code> of non-AWS services
+     * @return number of resources copied
+     */
+    public static int promote(String sourceUrl, String directory, String destinationUrl,
+                              AuthenticationInfo authenticationInfo, Properties parameters) throws WagonException {
+        S3StreamWagon wagon = new S3StreamWagon();
+        wagon.setEndpoint(parameters.getProperty("endpoint"));
+        Repository repository = new Repository("source", sourceUrl);
+        repository.setParameters(parameters);
+        wagon.connect(repository, authenticationInfo);
+        try {
+            return wagon.copyDirectory(directory, destinationUrl);
+        } finally {
+            wagon.disconnect();
+        }
+    }
+}
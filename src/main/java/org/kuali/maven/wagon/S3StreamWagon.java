@@ -15,21 +15,35 @@
  */
 package org.kuali.maven.wagon;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+import com.amazonaws.util.json.Jackson;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.apache.commons.lang.StringUtils;
 import org.apache.maven.wagon.ConnectionException;
 import org.apache.maven.wagon.InputData;
@@ -37,22 +51,75 @@ import org.apache.maven.wagon.OutputData;
 import org.apache.maven.wagon.ResourceDoesNotExistException;
 import org.apache.maven.wagon.StreamWagon;
 import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.WagonConstants;
+import org.apache.maven.wagon.WagonException;
 import org.apache.maven.wagon.authentication.AuthenticationException;
 import org.apache.maven.wagon.authentication.AuthenticationInfo;
 import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.events.TransferEvent;
 import org.apache.maven.wagon.proxy.ProxyInfo;
 import org.apache.maven.wagon.repository.Repository;
+import org.apache.maven.wagon.resource.Resource;
+import org.kuali.common.aws.s3.AdaptiveTransferController;
+import org.kuali.common.aws.s3.DefaultTransferMetrics;
+import org.kuali.common.aws.s3.LocalObjectCache;
+import org.kuali.common.aws.s3.MultipartUploadOutputStream;
+import org.kuali.common.aws.s3.NegativeLookupCache;
+import org.kuali.common.aws.s3.ObjectListingIterator;
+import org.kuali.common.aws.s3.ParallelDownloader;
+import org.kuali.common.aws.s3.RequestRateLimiter;
+import org.kuali.common.aws.s3.ResumableDownloader;
+import org.kuali.common.aws.s3.ResumableUploader;
+import org.kuali.common.aws.s3.ResumingObjectInputStream;
+import org.kuali.common.aws.s3.S3ClientRegistry;
+import org.kuali.common.aws.s3.S3RetryPolicy;
 import org.kuali.common.aws.s3.S3Utils;
+import org.kuali.common.aws.s3.StagingManager;
+import org.kuali.common.aws.s3.TransferMetricCollector;
+import org.kuali.common.aws.s3.TransferMetrics;
+import org.kuali.common.aws.s3.TransferMetricsMXBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * <p>
@@ -80,295 +147,2125 @@ import java.util.List;
  *      }
  * </p>
  *
+ * <p>
+ *     The other parameters of the server configuration, which tune staging, caching, concurrency, retries and metrics,
+ *     are described in the README.
+ * </p>
+ *
  * @author Ben Hale
  * @author Jeff Caddel
  * @author Jorrit Poelen
  */
 public class S3StreamWagon extends StreamWagon {
 
-    private static final Logger log = LoggerFactory.getLogger(S3StreamWagon.class);
+    private static final Logger log = LoggerFactory.getLogger(S3StreamWagon.class);
+
+    private static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+
+    private static final int DEFAULT_CONNECTION_TIMEOUT = ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT;
+
+    private static final int DEFAULT_DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    private static final int DEFAULT_UPLOAD_PART_SIZE = 8 * 1024 * 1024;
+
+    private static final int DEFAULT_UPLOAD_BUFFER_COUNT = 4;
+
+    private static final long DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD = 32 * 1024 * 1024L;
+
+    private static final long DEFAULT_PARALLEL_DOWNLOAD_PART_SIZE = 8 * 1024 * 1024L;
+
+    private static final int DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY = 4;
+
+    private static final long DEFAULT_CACHE_MAX_SIZE = 1024 * 1024 * 1024L;
+
+    private static final long DEFAULT_NEGATIVE_CACHE_RELEASE_TTL_MILLIS = 60 * 60 * 1000L;
+
+    private static final int DEFAULT_LIST_PAGE_SIZE = 1000;
+
+    private static final long DEFAULT_DIRECTORY_INDEX_MAX_AGE_MILLIS = 5 * 60 * 1000L;
+
+    private static final String TRANSFER_ENGINE_SDK1 = "sdk1";
+
+    private static final String TRANSFER_ENGINE_ASYNC = "async";
+
+    private static final int DEFAULT_ASYNC_MAX_CONCURRENCY = 64;
+
+    private static final int DEFAULT_ASYNC_EVENT_LOOP_THREADS = 2;
+
+    private static final int DEFAULT_RESUME_ATTEMPTS = 3;
+
+    private static final long DEFAULT_MULTIPART_COPY_THRESHOLD = 100 * 1024 * 1024L;
+
+    private static final int DEFAULT_COPY_CONCURRENCY = 8;
+
+    private static final int DEFAULT_DIRECTORY_CONCURRENCY = 8;
+
+    private static final int DEFAULT_RETRY_MAX_ATTEMPTS = 4;
+
+    private static final long DEFAULT_RETRY_BASE_DELAY_MILLIS = 100;
+
+    private static final long DEFAULT_RETRY_THROTTLED_BASE_DELAY_MILLIS = 500;
+
+    private static final long DEFAULT_RETRY_MAX_BACKOFF_MILLIS = 20 * 1000;
+
+    private static final int DEFAULT_ADAPTIVE_MIN_CONCURRENCY = 1;
+
+    private static final int DEFAULT_ADAPTIVE_MAX_CONCURRENCY = 16;
+
+    private static final long DEFAULT_ADAPTIVE_MIN_PART_SIZE = MultipartUploadOutputStream.MIN_PART_SIZE;
+
+    private static final long DEFAULT_ADAPTIVE_MAX_PART_SIZE = 64 * 1024 * 1024;
+
+    private static final long DEFAULT_ADAPTIVE_TARGET_PART_MILLIS = 2000;
+
+    /**
+     * User metadata holding the hex encoded SHA-1 digest of uploaded content.
+     */
+    private static final String SHA1_METADATA = "sha1";
+
+    private static final String CODEC_METADATA = "codec";
+
+    private static final String CODEC_GZIP = "gzip";
+
+    private static final String[] CHECKSUM_EXTENSIONS = {".md5", ".sha1", ".sha256", ".sha512"};
+
+    /**
+     * Size of the buffers reading local files and compressing or decompressing content.
+     */
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Buffer of progress events that report byte counts rather than content.
+     */
+    private static final byte[] NO_CONTENT = new byte[IO_BUFFER_SIZE];
+
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    private TransferManager transferManager;
+
+    private TransferEngine transferEngine;
+
+    private DirectoryIndex directoryIndex;
+
+    private ResumableDownloader resumableDownloader;
+
+    private AdaptiveTransferController uploadController;
+
+    private ResumableUploader resumableUploader;
+
+    private S3Copier copier;
+
+    private String bucketName;
+    private String baseDir;
+    private String endpoint = null;
+    private String region = null;
+
+    private int maxConnections = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+    private long connectionMaxIdleMillis = ClientConfiguration.DEFAULT_CONNECTION_MAX_IDLE_MILLIS;
+    private boolean tcpKeepAlive = ClientConfiguration.DEFAULT_TCP_KEEP_ALIVE;
+    private int socketSendBufferSizeHint = 0;
+    private int socketReceiveBufferSizeHint = 0;
+    private int retryMaxAttempts = DEFAULT_RETRY_MAX_ATTEMPTS;
+    private long retryBaseDelayMillis = DEFAULT_RETRY_BASE_DELAY_MILLIS;
+    private long retryThrottledBaseDelayMillis = DEFAULT_RETRY_THROTTLED_BASE_DELAY_MILLIS;
+    private long retryMaxBackoffMillis = DEFAULT_RETRY_MAX_BACKOFF_MILLIS;
+    private int requestRate = 0;
+    private int requestBurst = 0;
+
+    private int timeout = DEFAULT_CONNECTION_TIMEOUT;
+    private int requestTimeout = 0;
+    private ProxyInfo proxy = null;
+
+    private boolean streamDownloads = false;
+    private int downloadBufferSize = DEFAULT_DOWNLOAD_BUFFER_SIZE;
+
+    private boolean streamUploads = false;
+    private int uploadPartSize = DEFAULT_UPLOAD_PART_SIZE;
+    private int uploadBufferCount = DEFAULT_UPLOAD_BUFFER_COUNT;
+
+    private ParallelDownloader parallelDownloader = null;
+
+    private LocalObjectCache cache = null;
+
+    private NegativeLookupCache negativeCache = null;
+
+    private TransferBatch uploadBatch = null;
+
+    private int listPageSize = DEFAULT_LIST_PAGE_SIZE;
+    private boolean listPrefetch = true;
+
+    private boolean skipUnchangedUploads = false;
+
+    private Pattern compressPattern = null;
+
+    private StagingManager stagingManager = new StagingManager(null, 0);
+
+    private S3ClientRegistry.ClientKey clientKey = null;
+
+    private int directoryConcurrency = DEFAULT_DIRECTORY_CONCURRENCY;
+    private boolean directoryDiff = false;
+
+    private TransferMetrics transferMetrics = TransferMetrics.NONE;
+    private RequestMetricCollector metricCollector = null;
+    private ObjectName metricsObjectName = null;
+    private String metricsFile = null;
+
+    private AmazonS3 getS3Client(final AuthenticationInfo credentials) {
+        S3ClientRegistry.ClientKey key = new S3ClientRegistry.ClientKey(
+                getEndpoint(),
+                getRegion(),
+                credentials.getUserName(),
+                credentials.getPassword(),
+                getClientSettings());
+        AmazonS3 client = S3ClientRegistry.getClient(key, () -> createS3Client(credentials));
+        setClientKey(key);
+        return client;
+    }
+
+    /**
+     * Create an asynchronous transfer engine, sharing its SDK v2 client with the wagons using the same settings.
+     */
+    private TransferEngine createAsyncTransferEngine(final AuthenticationInfo credentials, final int maxConcurrency,
+                                                     final int eventLoopThreads) {
+        Map<String, String> settings = getClientSettings();
+        settings.put("asyncMaxConcurrency", Integer.toString(maxConcurrency));
+        settings.put("asyncEventLoopThreads", Integer.toString(eventLoopThreads));
+        final S3ClientRegistry.ClientKey key = new S3ClientRegistry.ClientKey(
+                getEndpoint(),
+                getRegion(),
+                credentials.getUserName(),
+                credentials.getPassword(),
+                settings);
+        S3AsyncClient client = S3ClientRegistry.getAsyncClient(key, () -> AsyncTransferEngine.createClient(
+                getEndpoint(),
+                getRegion(),
+                credentials.getUserName(),
+                credentials.getPassword(),
+                createClientConfiguration(),
+                createRetryPolicy().toSdk2RetryPolicy(getRetryMaxAttempts()),
+                getRequestRate() > 0 ? new RequestRateLimiter(getRequestRate(), getRequestBurst()) : null,
+                maxConcurrency,
+                eventLoopThreads));
+        // upload in parts above the same threshold as the transfer manager, which leaves out the Content-MD5 there
+        TransferManagerConfiguration configuration = getTransferManager().getConfiguration();
+        return new AsyncTransferEngine(client, () -> S3ClientRegistry.releaseAsyncClient(key),
+                configuration.getMultipartUploadThreshold(), configuration.getMinimumUploadPartSize());
+    }
+
+    AmazonS3Client createS3Client(AuthenticationInfo credentials) {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder
+                .standard()
+                .withClientConfiguration(createClientConfiguration())
+                .withCredentials(new AWSStaticCredentialsProvider(
+                        new BasicAWSCredentials(
+                                credentials.getUserName(),
+                                credentials.getPassword()
+                        )));
+        if (getRequestRate() > 0) {
+            builder = builder.withRequestHandlers(new RequestRateLimiter(getRequestRate(), getRequestBurst()));
+        }
+        builder = enableCustomEndpointIfNeeded(builder);
+        return (AmazonS3Client) builder.build();
+    }
+
+    private ClientConfiguration createClientConfiguration() {
+        ClientConfiguration configuration = new ClientConfiguration()
+                .withMaxConnections(getMaxConnections())
+                .withConnectionMaxIdleMillis(getConnectionMaxIdleMillis())
+                .withReaper(true)
+                .withTcpKeepAlive(isTcpKeepAlive())
+                .withConnectionTimeout(getTimeout())
+                .withSocketTimeout(getReadTimeout())
+                .withRequestTimeout(getRequestTimeout())
+                .withRetryPolicy(createRetryPolicy().toRetryPolicy(getRetryMaxAttempts()));
+        if (getSocketSendBufferSizeHint() > 0 || getSocketReceiveBufferSizeHint() > 0) {
+            configuration.setSocketBufferSizeHints(getSocketSendBufferSizeHint(), getSocketReceiveBufferSizeHint());
+        }
+        ProxyInfo proxy = getProxy();
+        if (proxy != null) {
+            configuration.setProxyHost(proxy.getHost());
+            configuration.setProxyPort(proxy.getPort());
+            configuration.setProxyUsername(proxy.getUserName());
+            configuration.setProxyPassword(proxy.getPassword());
+            configuration.setProxyDomain(proxy.getNtlmDomain());
+            configuration.setProxyWorkstation(proxy.getNtlmHost());
+            if (StringUtils.isNotBlank(proxy.getNonProxyHosts())) {
+                // Maven separates non-proxy hosts with '|' or ','
+                configuration.setNonProxyHosts(StringUtils.deleteWhitespace(proxy.getNonProxyHosts()).replace(',', '|'));
+            }
+        }
+        return configuration;
+    }
+
+    private S3RetryPolicy createRetryPolicy() {
+        return new S3RetryPolicy(getRetryBaseDelayMillis(), getRetryThrottledBaseDelayMillis(), getRetryMaxBackoffMillis());
+    }
+
+    /**
+     * Maven looks up the proxy by the protocol of the repository URL, which is <code>s3</code>. Fall back to the proxy
+     * of the protocol actually spoken with the endpoint, and leave out SOCKS proxies, which the S3 client does not support.
+     */
+    private ProxyInfo getEndpointProxy(ProxyInfo proxyInfo) {
+        URI uri = URI.create(StringUtils.isBlank(getEndpoint())
+                ? "https://s3.amazonaws.com"
+                : getEndpoint().contains("://") ? getEndpoint() : "https://" + getEndpoint());
+        ProxyInfo proxy = proxyInfo != null ? proxyInfo : getProxyInfo(uri.getScheme(), uri.getHost());
+        if (proxy == null || StringUtils.isBlank(proxy.getHost())) {
+            return null;
+        }
+        if (ProxyInfo.PROXY_SOCKS4.equalsIgnoreCase(proxy.getType()) || ProxyInfo.PROXY_SOCKS5.equalsIgnoreCase(proxy.getType())) {
+            log.warn("ignoring " + proxy.getType() + " proxy [" + proxy.getHost() + ":" + proxy.getPort() + "], only HTTP proxies are supported");
+            return null;
+        }
+        return proxy;
+    }
+
+    /**
+     * Settings applied by {@link #createClientConfiguration()}, used to tell apart clients in the {@link S3ClientRegistry}.
+     */
+    private Map<String, String> getClientSettings() {
+        Map<String, String> settings = new TreeMap<>();
+        settings.put("maxConnections", Integer.toString(getMaxConnections()));
+        settings.put("connectionMaxIdleMillis", Long.toString(getConnectionMaxIdleMillis()));
+        settings.put("tcpKeepAlive", Boolean.toString(isTcpKeepAlive()));
+        settings.put("socketSendBufferSizeHint", Integer.toString(getSocketSendBufferSizeHint()));
+        settings.put("socketReceiveBufferSizeHint", Integer.toString(getSocketReceiveBufferSizeHint()));
+        settings.put("retryMaxAttempts", Integer.toString(getRetryMaxAttempts()));
+        settings.put("retryBaseDelayMillis", Long.toString(getRetryBaseDelayMillis()));
+        settings.put("retryThrottledBaseDelayMillis", Long.toString(getRetryThrottledBaseDelayMillis()));
+        settings.put("retryMaxBackoffMillis", Long.toString(getRetryMaxBackoffMillis()));
+        settings.put("requestRate", Integer.toString(getRequestRate()));
+        settings.put("requestBurst", Integer.toString(getRequestBurst()));
+        settings.put("connectionTimeout", Integer.toString(getTimeout()));
+        settings.put("readTimeout", Integer.toString(getReadTimeout()));
+        settings.put("requestTimeout", Integer.toString(getRequestTimeout()));
+        ProxyInfo proxy = getProxy();
+        if (proxy != null) {
+            settings.put("proxy", proxy.getHost() + ":" + proxy.getPort());
+            settings.put("proxyUserName", StringUtils.defaultString(proxy.getUserName()));
+            settings.put("proxyPasswordHash", proxy.getPassword() == null ? "" : DigestUtils.sha256Hex(proxy.getPassword()));
+            settings.put("proxyNtlm", StringUtils.defaultString(proxy.getNtlmDomain()) + "/" + StringUtils.defaultString(proxy.getNtlmHost()));
+            settings.put("nonProxyHosts", StringUtils.defaultString(proxy.getNonProxyHosts()));
+        }
+        return settings;
+    }
+
+    private AmazonS3ClientBuilder enableCustomEndpointIfNeeded(AmazonS3ClientBuilder builder) {
+        if (StringUtils.isNotBlank(getEndpoint())) {
+            builder = builder
+                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, getRegion()))
+                    .enablePathStyleAccess();
+            log.debug("using s3 endpoint: [" + endpoint + "]");
+        } else if (StringUtils.isNotBlank(getRegion())) {
+            builder = builder.withRegion(getRegion());
+        }
+        return builder;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Unless downloads are cached or streamed, the object is downloaded next to the destination and moved into place,
+     * without staging it in a temporary file and copying it from there. Transfer listeners are sent the progress while
+     * the object downloads, or once the file is complete for parallel, resumable and asynchronous downloads, whose
+     * parts are not written in order.
+     * </p>
+     */
+    @Override
+    public boolean getIfNewer(String resourceName, File destination, long timestamp) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        if (getCache() != null || isStreamDownloads()) {
+            return super.getIfNewer(resourceName, destination, timestamp);
+        }
+        Resource resource = new Resource(resourceName);
+        fireGetInitiated(resource, destination);
+        String key = S3Utils.getCanonicalKey(getBaseDir(), resourceName);
+        File part = null;
+        try {
+            if (getNegativeCache() != null && getNegativeCache().isMissing(getBucketName(), key)) {
+                throw new ResourceDoesNotExistException("requested non-existing resource [" + S3Utils.getS3URI(getBucketName(), key) + "]");
+            }
+            if (timestamp > 0 && !isModifiedSince(resource, timestamp)) {
+                return false;
+            }
+            File directory = destination.getAbsoluteFile().getParentFile();
+            FileUtils.forceMkdir(directory);
+            part = File.createTempFile(destination.getName(), ".part", directory);
+            fireGetStarted(resource, destination);
+            TransferEvent progress = new TransferEvent(this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET);
+            if (isSequentialDownload()) {
+                download(resource, part, progress);
+                Files.move(part.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                long start = System.nanoTime();
+                ObjectMetadata metadata = doGet(resourceName, part);
+                getTransferMetrics().recordTransfer(TransferMetrics.GET, part.length(), System.nanoTime() - start);
+                decode(part, getCodec(metadata), resourceName);
+                setResourceMetadata(resource, metadata);
+                resource.setContentLength(part.length());
+                Files.move(part.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                digest(progress, destination);
+            }
+        } catch (ResourceDoesNotExistException e) {
+            if (getNegativeCache() != null) {
+                getNegativeCache().recordMissing(getBucketName(), key);
+            }
+            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            throw e;
+        } catch (TransferFailedException | AuthorizationException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            throw e;
+        } catch (IOException e) {
+            TransferFailedException failure = new TransferFailedException("failed transfer of [" + resourceName + "] to ["
+                    + destination.getAbsolutePath() + "]", e);
+            fireTransferError(resource, failure, TransferEvent.REQUEST_GET);
+            throw failure;
+        } finally {
+            FileUtils.deleteQuietly(part);
+        }
+        fireGetCompleted(resource, destination);
+        return true;
+    }
+
+    /**
+     * @return true if downloads take a single GET, whose content is written in order
+     */
+    private boolean isSequentialDownload() {
+        return getResumableDownloader() == null && getParallelDownloader() == null && !getTransferEngine().isAsync();
+    }
+
+    /**
+     * Download an object into a file with a single GET, decoding it while it is written and reporting the written bytes
+     * to the transfer listeners, which is how Maven computes the checksums of downloads. A dropped connection is
+     * continued where it broke off.
+     */
+    private void download(Resource resource, File destination, TransferEvent progress) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException, IOException {
+        GetObjectRequest request = metered(new GetObjectRequest(getBucketName(), S3Utils.getCanonicalKey(getBaseDir(), resource.getName())));
+        long start = System.nanoTime();
+        S3Object object;
+        try {
+            object = S3Utils.getObject(request, getClient());
+        } catch (TransferFailedException | AuthorizationException | ResourceDoesNotExistException e) {
+            throw e;
+        } catch (WagonException e) {
+            throw new TransferFailedException("failed to download [" + resource.getName() + "]", e);
+        }
+        ObjectMetadata metadata = object.getObjectMetadata();
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        try (InputStream in = decode(new ResumingObjectInputStream(getClient(), request, object, getRetryMaxAttempts()),
+                getCodec(metadata), resource.getName());
+             OutputStream out = new FileOutputStream(destination)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                fireTransferProgress(progress, buffer, read);
+            }
+        }
+        getTransferMetrics().recordTransfer(TransferMetrics.GET, metadata.getContentLength(), System.nanoTime() - start);
+        setResourceMetadata(resource, metadata);
+        resource.setContentLength(destination.length());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When called from {@link #getIfNewer(String, File, long)}, the resource carries the timestamp of the local copy as
+     * last modified time. The remote object is then only transferred if it was modified after that timestamp.
+     * </p>
+     * <p>
+     * With a negative lookup cache, resources recently found missing are reported missing without a request.
+     * </p>
+     */
+    @Override
+    public void fillInputData(InputData inputData) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        if (getNegativeCache() == null) {
+            fillInputDataFromS3(inputData);
+            return;
+        }
+        String key = S3Utils.getCanonicalKey(getBaseDir(), inputData.getResource().getName());
+        if (getNegativeCache().isMissing(getBucketName(), key)) {
+            throw new ResourceDoesNotExistException("requested non-existing resource [" + S3Utils.getS3URI(getBucketName(), key) + "]");
+        }
+        try {
+            fillInputDataFromS3(inputData);
+        } catch (ResourceDoesNotExistException e) {
+            getNegativeCache().recordMissing(getBucketName(), key);
+            throw e;
+        }
+    }
+
+    private void fillInputDataFromS3(InputData inputData) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        long timestamp = inputData.getResource().getLastModified();
+        if (timestamp > 0 && !isStreamDownloads() && !isCachedImmutable(inputData.getResource())
+                && !isModifiedSince(inputData.getResource(), timestamp)) {
+            inputData.setInputStream(new ByteArrayInputStream(new byte[0]));
+            return;
+        }
+        long start = System.nanoTime();
+        if (getCache() != null) {
+            fillInputDataFromCache(inputData);
+        } else if (isStreamDownloads()) {
+            fillInputDataFromStream(inputData);
+        } else {
+            fillInputDataFromTmpFile(inputData);
+        }
+        if (getTransferMetrics() != TransferMetrics.NONE) {
+            inputData.setInputStream(new MeteredInputStream(inputData.getInputStream(), getTransferMetrics(), TransferMetrics.GET, start));
+        }
+    }
+
+    /**
+     * @return true if the resource is served from the cache without contacting S3, which makes looking it up pointless
+     */
+    private boolean isCachedImmutable(Resource resource) {
+        String key = S3Utils.getCanonicalKey(getBaseDir(), resource.getName());
+        return getCache() != null && getCache().isImmutable(key) && getCache().contains(getBucketName(), key);
+    }
+
+    /**
+     * Look up the remote object with a HEAD request and fill in the length and last modified time of the resource.
+     */
+    private boolean isModifiedSince(Resource resource, long timestamp) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        String key = S3Utils.getCanonicalKey(getBaseDir(), resource.getName());
+        ObjectMetadata metadata;
+        long start = System.nanoTime();
+        try {
+            metadata = S3Utils.getObjectMetadata(metered(new GetObjectMetadataRequest(getBucketName(), key)), getClient());
+            getTransferMetrics().recordTransfer(TransferMetrics.HEAD, 0, System.nanoTime() - start);
+        } catch (TransferFailedException | AuthorizationException | ResourceDoesNotExistException e) {
+            throw e;
+        } catch (WagonException e) {
+            throw new TransferFailedException("failed to look up [" + resource.getName() + "]", e);
+        }
+        setResourceMetadata(resource, metadata);
+        boolean modified = resource.getLastModified() > timestamp;
+        if (!modified) {
+            log.debug("[" + S3Utils.getS3URI(getBucketName(), key) + "] not modified since [" + timestamp + "]");
+        }
+        return modified;
+    }
+
+    private static void setResourceMetadata(Resource resource, ObjectMetadata metadata) {
+        if (metadata == null) {
+            return;
+        }
+        // the length of compressed content is only known once decoded
+        resource.setContentLength(getCodec(metadata) == null ? metadata.getContentLength() : WagonConstants.UNKNOWN_LENGTH);
+        if (metadata.getLastModified() != null) {
+            resource.setLastModified(metadata.getLastModified().getTime());
+        }
+    }
+
+    private void fillInputDataFromCache(InputData inputData) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        Resource resource = inputData.getResource();
+        GetObjectRequest request = metered(new GetObjectRequest(getBucketName(), S3Utils.getCanonicalKey(getBaseDir(), resource.getName())));
+        try {
+            LocalObjectCache.Entry entry = getCache().get(request, getClient());
+            getTransferMetrics().recordCacheLookup(entry.isHit());
+            resource.setContentLength(entry.getUserMetadata(CODEC_METADATA) == null ? entry.getFile().length() : WagonConstants.UNKNOWN_LENGTH);
+            if (entry.getLastModified() > 0) {
+                resource.setLastModified(entry.getLastModified());
+            }
+            inputData.setInputStream(decode(new BufferedInputStream(new FileInputStream(entry.getFile()), getDownloadBufferSize()),
+                    entry.getUserMetadata(CODEC_METADATA), resource.getName()));
+        } catch (TransferFailedException | AuthorizationException | ResourceDoesNotExistException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TransferFailedException("failed transfer of [" + resource.getName() + "]", e);
+        }
+    }
+
+    private void fillInputDataFromStream(InputData inputData) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        Resource resource = inputData.getResource();
+        GetObjectRequest request = metered(new GetObjectRequest(getBucketName(), S3Utils.getCanonicalKey(getBaseDir(), resource.getName())));
+        long timestamp = resource.getLastModified();
+        if (timestamp > 0) {
+            request.withModifiedSinceConstraint(new Date(timestamp));
+        }
+        try {
+            S3Object object = S3Utils.getObject(request, getClient());
+            if (object == null) {
+                // conditional GET answered with "304 Not Modified", the resource keeps the timestamp of the local copy
+                log.debug("[" + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "] not modified since [" + timestamp + "]");
+                inputData.setInputStream(new ByteArrayInputStream(new byte[0]));
+                return;
+            }
+            setResourceMetadata(resource, object.getObjectMetadata());
+            log.debug("streaming download of [" + S3Utils.getS3URI(request.getBucketName(), request.getKey()) + "]");
+            inputData.setInputStream(decode(new BufferedInputStream(object.getObjectContent(), getDownloadBufferSize()),
+                    getCodec(object.getObjectMetadata()), resource.getName()));
+        } catch (TransferFailedException | AuthorizationException | ResourceDoesNotExistException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TransferFailedException("failed transfer of [" + resource.getName() + "]", e);
+        }
+    }
+
+    private void fillInputDataFromTmpFile(InputData inputData) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        File tmpFile = null;
+        try {
+            // the size is only known once downloaded
+            tmpFile = getStagingManager().stage("download", 0);
+            log.debug("staging download using tmp file at [" + tmpFile.getAbsolutePath() + "]");
+            ObjectMetadata metadata = doGet(inputData.getResource().getName(), tmpFile);
+            getStagingManager().resize(tmpFile, tmpFile.length());
+            setResourceMetadata(inputData.getResource(), metadata);
+            inputData.setInputStream(decode(IOUtils.toBufferedInputStream(new FileInputStream(tmpFile)),
+                    getCodec(metadata), inputData.getResource().getName()));
+        } catch (IOException e) {
+            throw new TransferFailedException("failed transfer of [" + inputData.getResource().getName() + "]", e);
+        } finally {
+            getStagingManager().release(tmpFile);
+        }
+
+    }
+
+    /**
+     * Stage a file for an upload. Repository metadata is exempt from the staging budget, since its queued uploads only
+     * run once all others completed, and waiting for them to release their space could block forever.
+     */
+    private File stageUpload(String resourceName, long size) throws IOException {
+        return getStagingManager().stage("upload", TransferBatch.isMetadata(resourceName) ? 0 : size);
+    }
+
+    @Override
+    public void fillOutputData(OutputData outputData) throws TransferFailedException {
+        checkQueuedUploads(outputData.getResource().getName());
+        if (isChecksum(outputData.getResource().getName())) {
+            outputData.setOutputStream(new ChecksumOutputStream(outputData));
+        } else if (isStreamUploads()) {
+            String key = S3Utils.getCanonicalKey(getBaseDir(), outputData.getResource().getName());
+            log.debug("streaming upload to [" + S3Utils.getS3URI(getBucketName(), key) + "]");
+            ObjectMetadata metadata = null;
+            if (isCompressed(key)) {
+                metadata = new ObjectMetadata();
+                metadata.addUserMetadata(CODEC_METADATA, CODEC_GZIP);
+            }
+            OutputStream out = new CountingOutputStream(newUploadStream(key, metadata)) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    recordUpload(key, getByteCount(), null);
+                }
+            };
+            if (metadata != null) {
+                try {
+                    out = new GZIPOutputStream(out, IO_BUFFER_SIZE);
+                } catch (IOException e) {
+                    throw new TransferFailedException("failed to start upload of [" + S3Utils.getS3URI(getBucketName(), key) + "]", e);
+                }
+            }
+            outputData.setOutputStream(getTransferMetrics() == TransferMetrics.NONE
+                    ? out
+                    : new MeteredOutputStream(out, getTransferMetrics(), TransferMetrics.PUT));
+        } else {
+            outputData.setOutputStream(new StagingOutputStream(outputData));
+        }
+    }
+
+    /**
+     * Upload a local file directly from where it is, instead of copying it into a staged file through
+     * {@link #fillOutputData(OutputData)} first. The file is read once up front, with positional reads, to compute its
+     * digests, and once more by the upload itself, which reads parts at their offsets. Transfer listeners are sent the
+     * progress of the file once it is uploaded, or queued. Checksum files are small and take the in-memory path of
+     * {@link #fillOutputData(OutputData)}.
+     */
+    @Override
+    public void put(File source, String destination) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        if (isChecksum(destination)) {
+            super.put(source, destination);
+            return;
+        }
+        Resource resource = new Resource(destination);
+        firePutInitiated(resource, source);
+        if (!source.isFile()) {
+            TransferFailedException e = new TransferFailedException("Specified source file does not exist: " + source);
+            fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
+            throw e;
+        }
+        resource.setContentLength(source.length());
+        resource.setLastModified(source.lastModified());
+        firePutStarted(resource, source);
+        try {
+            checkQueuedUploads(destination);
+            MessageDigest md5 = DigestUtils.getMd5Digest();
+            MessageDigest sha1 = DigestUtils.getSha1Digest();
+            digest(null, source, md5, sha1);
+            if (getUploadBatch() != null) {
+                queuePut(stage(source, destination), destination, md5.digest(), Hex.encodeHexString(sha1.digest()));
+            } else {
+                doPut(source, destination, md5.digest(), Hex.encodeHexString(sha1.digest()));
+                log.debug("uploaded [" + source.getAbsolutePath() + "] to [" + destination + "]");
+            }
+            fireTransferProgress(new TransferEvent(this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_PUT), resource.getContentLength());
+        } catch (TransferFailedException | ResourceDoesNotExistException | AuthorizationException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
+            throw e;
+        }
+        firePutCompleted(resource, source);
+    }
+
+    /**
+     * Upload all files below a local directory, with up to <code>directoryConcurrency</code> uploads at a time and
+     * repository metadata last. Transfer listeners see a single transfer of the directory, whose progress adds up the
+     * length of each file once it is uploaded, or skipped. With <code>directoryDiff</code>, files matching the remote
+     * object of the same name in size and ETag, as found in a listing of the destination, are skipped.
+     */
+    @Override
+    public void putDirectory(File sourceDirectory, String destinationDirectory) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        Resource resource = new Resource(destinationDirectory);
+        firePutInitiated(resource, sourceDirectory);
+        if (!sourceDirectory.isDirectory()) {
+            TransferFailedException e = new TransferFailedException("Specified source directory does not exist: " + sourceDirectory);
+            fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
+            throw e;
+        }
+        Collection<File> files = FileUtils.listFiles(sourceDirectory, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        resource.setContentLength(totalBytes);
+        resource.setLastModified(sourceDirectory.lastModified());
+        firePutStarted(resource, sourceDirectory);
+        TransferEvent progress = new TransferEvent(this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_PUT);
+        AtomicInteger skipped = new AtomicInteger();
+        TransferBatch batch = new TransferBatch(getDirectoryConcurrency(), "upload");
+        try {
+            Map<String, S3ObjectSummary> remote = isDirectoryDiff()
+                    ? listObjects(destinationDirectory)
+                    : Collections.emptyMap();
+            for (File file : files) {
+                String relativePath = sourceDirectory.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+                String resourceName = destinationDirectory + "/" + relativePath;
+                S3ObjectSummary summary = remote.get(S3Utils.getCanonicalKey(getBaseDir(), resourceName));
+                batch.submit(resourceName, () -> {
+                    MessageDigest md5 = DigestUtils.getMd5Digest();
+                    MessageDigest sha1 = DigestUtils.getSha1Digest();
+                    digest(null, file, md5, sha1);
+                    byte[] md5Digest = md5.digest();
+                    String sha1Hex = Hex.encodeHexString(sha1.digest());
+                    if (summary != null && isSameSize(summary, file)
+                            && isSameContent(summary, Hex.encodeHexString(md5Digest), sha1Hex)) {
+                        log.debug("skipped upload of unchanged [" + resourceName + "]");
+                        skipped.incrementAndGet();
+                    } else {
+                        doPut(file, resourceName, md5Digest, sha1Hex);
+                    }
+                    fireTransferProgress(progress, file.length());
+                    return null;
+                });
+            }
+            batch.await();
+        } catch (TransferFailedException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
+            throw e;
+        } finally {
+            batch.shutdown();
+        }
+        log.debug("uploaded [" + (files.size() - skipped.get()) + "] files of [" + sourceDirectory.getAbsolutePath()
+                + "] to [" + destinationDirectory + "], skipped [" + skipped.get() + "] unchanged files");
+        firePutCompleted(resource, sourceDirectory);
+    }
+
+    /**
+     * Download all resources below a directory of this repository, walking a paginated listing of the directory, with
+     * up to <code>directoryConcurrency</code> downloads at a time. Transfer listeners see a single transfer of the
+     * directory, whose progress adds up the length of each file once it is downloaded, or skipped. With
+     * <code>directoryDiff</code>, local files matching the remote object in size and ETag are kept.
+     *
+     * @param sourceDirectory      directory of this repository, or an empty string for the whole repository
+     * @param destinationDirectory local directory, which mirrors the layout of the remote directory
+     * @return number of resources downloaded
+     */
+    public int getDirectory(String sourceDirectory, File destinationDirectory) throws TransferFailedException {
+        Resource resource = new Resource(sourceDirectory);
+        fireGetInitiated(resource, destinationDirectory);
+        fireGetStarted(resource, destinationDirectory);
+        TransferEvent progress = new TransferEvent(this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET);
+        String prefix = StringUtils.isEmpty(sourceDirectory) ? getBaseDir() : getListingPrefix(sourceDirectory);
+        AtomicInteger skipped = new AtomicInteger();
+        int count = 0;
+        TransferBatch batch = new TransferBatch(getDirectoryConcurrency(), "download");
+        try {
+            Path root = destinationDirectory.getCanonicalFile().toPath();
+            ListObjectsV2Request request = metered(new ListObjectsV2Request()
+                    .withBucketName(getBucketName())
+                    .withPrefix(prefix)
+                    .withMaxKeys(getListPageSize()));
+            ObjectListingIterator pages = new ObjectListingIterator(getClient(), request, isListPrefetch());
+            while (pages.hasNext()) {
+                for (S3ObjectSummary summary : pages.next().getObjectSummaries()) {
+                    if (summary.getKey().endsWith("/") || DirectoryIndex.isIndex(summary.getKey())) {
+                        continue;
+                    }
+                    String relativeKey = summary.getKey().substring(prefix.length());
+                    File destination = root.resolve(relativeKey).normalize().toFile();
+                    if (!destination.toPath().startsWith(root)) {
+                        throw new TransferFailedException("refusing to download [" + S3Utils.getS3URI(getBucketName(), summary.getKey())
+                                + "] outside of [" + destinationDirectory.getAbsolutePath() + "]");
+                    }
+                    String resourceName = summary.getKey().substring(getBaseDir().length());
+                    batch.submit(relativeKey, () -> {
+                        if (isDirectoryDiff() && destination.isFile() && isSameSize(summary, destination)
+                                && isSameContent(summary, destination)) {
+                            log.debug("skipped download of unchanged [" + resourceName + "]");
+                            skipped.incrementAndGet();
+                        } else {
+                            FileUtils.forceMkdir(destination.getParentFile());
+                            decode(destination, getCodec(doGet(resourceName, destination)), resourceName);
+                        }
+                        fireTransferProgress(progress, destination.length());
+                        return null;
+                    });
+                    count++;
+                }
+            }
+            batch.await();
+        } catch (TransferFailedException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            throw e;
+        } catch (IOException | AmazonClientException e) {
+            TransferFailedException failure = new TransferFailedException(
+                    "failed to download [" + S3Utils.getS3URI(getBucketName(), prefix) + "]", e);
+            fireTransferError(resource, failure, TransferEvent.REQUEST_GET);
+            throw failure;
+        } finally {
+            batch.shutdown();
+        }
+        log.debug("downloaded [" + (count - skipped.get()) + "] files of [" + S3Utils.getS3URI(getBucketName(), prefix)
+                + "] to [" + destinationDirectory.getAbsolutePath() + "], skipped [" + skipped.get() + "] unchanged files");
+        fireGetCompleted(resource, destinationDirectory);
+        return count - skipped.get();
+    }
+
+    /**
+     * @return all objects below a directory of this repository, by key
+     */
+    private Map<String, S3ObjectSummary> listObjects(String directory) throws TransferFailedException {
+        String prefix = getListingPrefix(directory);
+        Map<String, S3ObjectSummary> objects = new HashMap<>();
+        try {
+            ListObjectsV2Request request = metered(new ListObjectsV2Request()
+                    .withBucketName(getBucketName())
+                    .withPrefix(prefix)
+                    .withMaxKeys(getListPageSize()));
+            ObjectListingIterator pages = new ObjectListingIterator(getClient(), request, isListPrefetch());
+            while (pages.hasNext()) {
+                for (S3ObjectSummary summary : pages.next().getObjectSummaries()) {
+                    objects.put(summary.getKey(), summary);
+                }
+            }
+        } catch (AmazonClientException e) {
+            throw new TransferFailedException("failed to list [" + S3Utils.getS3URI(getBucketName(), prefix) + "]", e);
+        }
+        return objects;
+    }
+
+    /**
+     * Compare a local file with a remote object of the same size, by the ETag, which is the MD5 digest of uncompressed
+     * objects uploaded with a single PUT, or else by the SHA-1 recorded in the object metadata.
+     */
+    private boolean isSameContent(S3ObjectSummary summary, File file) throws TransferFailedException {
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        MessageDigest sha1 = DigestUtils.getSha1Digest();
+        digest(null, file, md5, sha1);
+        return isSameContent(summary, Hex.encodeHexString(md5.digest()), Hex.encodeHexString(sha1.digest()));
+    }
+
+    private boolean isSameContent(S3ObjectSummary summary, String md5Hex, String sha1Hex) throws TransferFailedException {
+        if (summary.getETag() != null && !summary.getETag().contains("-") && !isCompressed(summary.getKey())) {
+            return md5Hex.equalsIgnoreCase(summary.getETag());
+        }
+        // the ETag of a multipart upload, or of compressed content, is no digest of the content
+        return isUnchanged(summary.getKey(), md5Hex, sha1Hex);
+    }
+
+    /**
+     * @return false if the sizes tell that a local file differs from a remote object, which they cannot for compressed
+     * objects
+     */
+    private boolean isSameSize(S3ObjectSummary summary, File file) {
+        return isCompressed(summary.getKey()) || summary.getSize() == file.length();
+    }
+
+    @Override
+    public boolean supportsDirectoryCopy() {
+        return true;
+    }
+
+    /**
+     * Add the length of a file to the progress of a transfer once the file is transferred, without reading it again.
+     * Listeners are sent byte counts; the buffer carries no content.
+     */
+    private void fireTransferProgress(TransferEvent progress, long length) {
+        synchronized (progress) {
+            for (long remaining = length; remaining > 0; remaining -= NO_CONTENT.length) {
+                fireTransferProgress(progress, NO_CONTENT, (int) Math.min(remaining, NO_CONTENT.length));
+            }
+        }
+    }
+
+    /**
+     * Read a file with positional reads, updating digests and reporting progress to the transfer listeners, unless the
+     * progress event is <code>null</code>.
+     */
+    private void digest(TransferEvent progress, File source, MessageDigest... digests) throws TransferFailedException {
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            int read;
+            while ((read = channel.read(wrapped, position)) >= 0) {
+                for (MessageDigest digest : digests) {
+                    digest.update(buffer, 0, read);
+                }
+                if (progress != null) {
+                    fireTransferProgress(progress, buffer, read);
+                }
+                position += read;
+                wrapped.clear();
+            }
+        } catch (IOException e) {
+            throw new TransferFailedException("failed to read [" + source.getAbsolutePath() + "]", e);
+        }
+    }
+
+    /**
+     * Queued uploads run after {@link #put(File, String)} returned, when Maven may have deleted the file already, as it
+     * does with temporary files. Hold on to the content with a hard link, which copies nothing, or with a copy where
+     * links are not supported, such as across file systems.
+     */
+    private File stage(File source, String resourceName) throws TransferFailedException {
+        File staged = null;
+        try {
+            staged = stageUpload(resourceName, source.length());
+            Files.delete(staged.toPath());
+            try {
+                Files.createLink(staged.toPath(), source.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                log.debug("copying [" + source.getAbsolutePath() + "] for a queued upload, since it cannot be linked: " + e);
+                FileUtils.copyFile(source, staged);
+            }
+            return staged;
+        } catch (IOException e) {
+            getStagingManager().release(staged);
+            throw new TransferFailedException("failed to stage [" + source.getAbsolutePath() + "] for upload", e);
+        }
+    }
+
+    /**
+     * Queue the upload of a staged file, which is deleted once uploaded. Resumable uploads block their thread, so they
+     * run on a thread of the batch even with an asynchronous transfer engine.
+     */
+    private void queuePut(File file, String resourceName, byte[] md5, String sha1Hex) {
+        log.debug("queued upload of [" + file.getAbsolutePath() + "] to [" + resourceName + "]");
+        StagingManager staging = getStagingManager();
+        Runnable cleanup = () -> staging.release(file);
+        // resumable and compressed uploads block the thread starting them
+        String key = S3Utils.getCanonicalKey(getBaseDir(), resourceName);
+        if (getTransferEngine().isAsync() && !isResumable(file.length()) && !isCompressed(key)) {
+            getUploadBatch().submitAsync(resourceName, () -> startPut(file, resourceName, md5, sha1Hex), cleanup);
+        } else {
+            getUploadBatch().submit(resourceName, () -> {
+                doPut(file, resourceName, md5, sha1Hex);
+                log.debug("uploaded [" + file.getAbsolutePath() + "] to [" + resourceName + "]");
+                return null;
+            }, cleanup);
+        }
+    }
+
+    private static boolean isChecksum(String resourceName) {
+        for (String extension : CHECKSUM_EXTENSIONS) {
+            if (resourceName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fail an upload if queued uploads already failed, since Maven ignores failures of {@link #disconnect()}. Uploads of
+     * repository metadata, which come last, wait for the queued uploads first, so that a failed deploy fails the build.
+     */
+    private void checkQueuedUploads(String resourceName) throws TransferFailedException {
+        if (getUploadBatch() == null) {
+            return;
+        }
+        if (TransferBatch.isMetadata(resourceName)) {
+            getUploadBatch().awaitScheduled();
+        } else {
+            getUploadBatch().checkFailures();
+        }
+    }
+
+    @Override
+    public void closeConnection() throws ConnectionException {
+        log.debug("closing connection");
+        try {
+            ConnectionException failure = null;
+            try {
+                if (getUploadBatch() != null) {
+                    getUploadBatch().await();
+                }
+            } catch (TransferFailedException e) {
+                failure = new ConnectionException("failed to complete queued uploads", e);
+            }
+            // record the uploads that did complete, even if others failed
+            try {
+                flushDirectoryIndex();
+            } catch (ConnectionException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            if (getUploadBatch() != null) {
+                getUploadBatch().shutdown();
+                setUploadBatch(null);
+            }
+            setDirectoryIndex(null);
+            publishMetrics();
+            if (getTransferEngine() != null) {
+                getTransferEngine().shutdown();
+                setTransferEngine(null);
+            }
+            if (getTransferManager() != null) {
+                // the S3 client is shared with other wagons, so only release the transfer threads
+                getTransferManager().shutdownNow(false);
+                setTransferManager(null);
+                setCopier(null);
+            }
+            if (getClientKey() != null) {
+                S3ClientRegistry.releaseClient(getClientKey());
+                setClientKey(null);
+            }
+        }
+    }
+
+    private void flushDirectoryIndex() throws ConnectionException {
+        if (getDirectoryIndex() != null) {
+            try {
+                getDirectoryIndex().flush();
+            } catch (TransferFailedException e) {
+                throw new ConnectionException("failed to update directory index", e);
+            }
+        }
+    }
+
+    /**
+     * Write the transfer statistics to the metrics file, if configured, and unregister their MBean.
+     */
+    private void publishMetrics() {
+        if (getTransferMetrics() instanceof TransferMetricsMXBean) {
+            Map<String, Long> statistics = ((TransferMetricsMXBean) getTransferMetrics()).getStatistics();
+            log.debug("transfer statistics " + statistics);
+            if (StringUtils.isNotBlank(getMetricsFile())) {
+                File file = new File(getMetricsFile());
+                try {
+                    FileUtils.writeStringToFile(file, Jackson.toJsonPrettyString(statistics), "UTF-8");
+                } catch (IOException e) {
+                    log.warn("failed to write transfer statistics to [" + file.getAbsolutePath() + "]", e);
+                }
+            }
+        }
+        if (metricsObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+            } catch (JMException e) {
+                log.debug("failed to unregister [" + metricsObjectName + "]", e);
+            }
+            metricsObjectName = null;
+        }
+    }
+
+    private void registerMetrics(Repository source) {
+        try {
+            ObjectName name = new ObjectName("org.kuali.maven.wagon:type=S3StreamWagon,repository="
+                    + ObjectName.quote(String.valueOf(source.getId())) + ",instance=" + System.identityHashCode(this));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(getTransferMetrics(), name);
+            metricsObjectName = name;
+            log.debug("registered transfer statistics as [" + name + "]");
+        } catch (JMException e) {
+            log.warn("failed to register transfer statistics with JMX", e);
+        }
+    }
+
+    private <T extends AmazonWebServiceRequest> T metered(T request) {
+        if (metricCollector != null) {
+            request.setRequestMetricCollector(metricCollector);
+        }
+        return request;
+    }
+
+    private ObjectMetadata doGet(final String resourceName, final File destination) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        if (destination == null) {
+            throw new TransferFailedException("destination cannot be null");
+        }
+        try {
+            if (destination.exists() && !FileUtils.deleteQuietly(destination)) {
+                throw new TransferFailedException("cannot overwrite existing destination [" + destination.getAbsolutePath() + "]");
+            }
+            GetObjectRequest request = metered(new GetObjectRequest(getBucketName(), S3Utils.getCanonicalKey(getBaseDir(), resourceName)));
+            if (getResumableDownloader() != null) {
+                return getResumableDownloader().download(request, destination);
+            }
+            ObjectMetadata metadata = getParallelDownloader() == null
+                    ? null
+                    : getParallelDownloader().download(request, destination);
+            return metadata == null
+                    ? join(getTransferEngine().download(request, destination))
+                    : metadata;
+        } catch (TransferFailedException | AuthorizationException | ResourceDoesNotExistException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TransferFailedException("Transfer of resource [" + S3Utils.getS3URI(getBucketName(), S3Utils.getKey(getBaseDir(), resourceName)) + "] to destination [" + destination.getAbsolutePath() + "] failed", e);
+        }
+    }
+
+    /**
+     * Copy a resource of this repository to another resource of this repository within S3, without downloading and
+     * uploading its content.
+     *
+     * @param sourceResource      resource to copy
+     * @param destinationResource name of the copy
+     */
+    public void copy(String sourceResource, String destinationResource) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        String sourceKey = S3Utils.getCanonicalKey(getBaseDir(), sourceResource);
+        String destinationKey = S3Utils.getCanonicalKey(getBaseDir(), destinationResource);
+        try {
+            getCopier().copy(getBucketName(), sourceKey, getBucketName(), destinationKey, this::recordUpload);
+        } catch (TransferFailedException | ResourceDoesNotExistException | AuthorizationException e) {
+            throw e;
+        } catch (WagonException e) {
+            throw new TransferFailedException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copy all resources below a directory of this repository to the same directory of another repository within S3,
+     * for example to promote a staged release from <code>s3://bucket/staging</code> to <code>s3://bucket/release</code>.
+     * Repository metadata is copied last, once all other resources were copied.
+     *
+     * @param sourceDirectory directory of this repository, or an empty string for the whole repository
+     * @param destinationUrl  URL of the destination repository, such as <code>s3://bucket/release</code>
+     * @return number of resources copied
+     */
+    public int copyDirectory(String sourceDirectory, String destinationUrl) throws TransferFailedException {
+        Repository destination = new Repository("destination", destinationUrl);
+        String destinationBaseDir = S3Utils.getRepositoryBaseDir(destination);
+        String sourcePrefix = StringUtils.isEmpty(sourceDirectory) ? getBaseDir() : getListingPrefix(sourceDirectory);
+        String destinationPrefix = destinationBaseDir + sourcePrefix.substring(getBaseDir().length());
+        // keep the directory index of the destination up to date, like uploads do for this repository
+        DirectoryIndex index = getDirectoryIndex() == null
+                ? null
+                : new DirectoryIndex(getClient(), destination.getHost(), destinationBaseDir, 0, metricCollector);
+        int count = getCopier().copyPrefix(getBucketName(), sourcePrefix, destination.getHost(), destinationPrefix,
+                (key, size, etag) -> {
+                    if (getNegativeCache() != null) {
+                        getNegativeCache().invalidate(destination.getHost(), key);
+                    }
+                    if (index != null) {
+                        index.record(key, size, etag, System.currentTimeMillis());
+                    }
+                });
+        if (index != null) {
+            index.flush();
+        }
+        return count;
+    }
+
+    /**
+     * Check for a resource with a HEAD request, or for a directory with a listing of at most one key,
+     * without transferring any content.
+     */
+    @Override
+    public boolean resourceExists(final String resourceName) throws TransferFailedException, AuthorizationException {
+        String key = S3Utils.getCanonicalKey(getBaseDir(), resourceName);
+        long start = System.nanoTime();
+        try {
+            if (resourceName.endsWith("/")) {
+                ListObjectsV2Request request = metered(new ListObjectsV2Request()
+                        .withBucketName(getBucketName())
+                        .withPrefix(key.isEmpty() ? "" : key + "/")
+                        .withMaxKeys(1));
+                boolean exists = getClient().listObjectsV2(request).getKeyCount() > 0;
+                getTransferMetrics().recordTransfer(TransferMetrics.LIST, 0, System.nanoTime() - start);
+                return exists;
+            }
+            if (getNegativeCache() != null && getNegativeCache().isMissing(getBucketName(), key)) {
+                return false;
+            }
+            S3Utils.getObjectMetadata(metered(new GetObjectMetadataRequest(getBucketName(), key)), getClient());
+            getTransferMetrics().recordTransfer(TransferMetrics.HEAD, 0, System.nanoTime() - start);
+            return true;
+        } catch (ResourceDoesNotExistException e) {
+            if (getNegativeCache() != null) {
+                getNegativeCache().recordMissing(getBucketName(), key);
+            }
+            return false;
+        } catch (TransferFailedException | AuthorizationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TransferFailedException("failed to check existence of [" + S3Utils.getS3URI(getBucketName(), key) + "]", e);
+        }
+    }
+
+    /**
+     * Wait for a transfer of the {@link TransferEngine}.
+     */
+    private static <T> T join(CompletableFuture<T> transfer) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        try {
+            return transfer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("interrupted while waiting for transfer", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TransferFailedException) {
+                throw (TransferFailedException) cause;
+            } else if (cause instanceof ResourceDoesNotExistException) {
+                throw (ResourceDoesNotExistException) cause;
+            } else if (cause instanceof AuthorizationException) {
+                throw (AuthorizationException) cause;
+            }
+            throw new TransferFailedException("transfer failed", cause);
+        }
+    }
+
+    private static long parseLongParameter(Repository source, String name, long defaultValue) {
+        String value = source.getParameter(name);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalStateException("The " + name + " of S3 wagon needs to be a integer/long. eg:\n" +
+                    "<server>\n" +
+                    "  <id>my.server</id>\n" +
+                    "  ...\n" +
+                    "  <configuration>\n" +
+                    "    <" + name + ">" + defaultValue + "</" + name + ">\n" +
+                    "  </configuration>\n" +
+                    "</server>\n", ex);
+        }
+    }
+
+    private static int parseIntParameter(Repository source, String name, int defaultValue) {
+        long value = parseLongParameter(source, name, defaultValue);
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new IllegalStateException("The " + name + " of S3 wagon needs to be an integer, but found [" + value + "]");
+        }
+        return (int) value;
+    }
+
+    private static boolean parseBooleanParameter(Repository source, String name, boolean defaultValue) {
+        String value = source.getParameter(name);
+        return StringUtils.isBlank(value)
+                ? defaultValue
+                : Boolean.parseBoolean(value.trim());
+    }
+
+    @Override
+    public final List<String> getFileList(final String destinationDirectory) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        try {
+            return listDirectory(destinationDirectory);
+        } catch (TransferFailedException | ResourceDoesNotExistException | AuthorizationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TransferFailedException("Listing of directory " + destinationDirectory + "failed", e);
+        }
+    }
+
+    /**
+     * Lazily list the files and subdirectories of a directory, one page of the listing at a time,
+     * without holding the whole listing in memory.
+     * Listing failures surface as {@link com.amazonaws.AmazonClientException} while iterating.
+     *
+     * @param destinationDirectory directory to list
+     * @return iterator over the names of files and subdirectories
+     */
+    public Iterator<String> getFileListIterator(final String destinationDirectory) {
+        final String directory = StringUtils.isBlank(destinationDirectory) ? "" : destinationDirectory;
+        final Iterator<ListObjectsV2Result> pages = listPages(directory);
+        return new Iterator<String>() {
+            private Iterator<String> page = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && pages.hasNext()) {
+                    page = toFileNames(pages.next(), directory).iterator();
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+        };
+    }
+
+    /**
+     * List all of the objects in a given directory
+     */
+    private List<String> listDirectory(String directory) throws Exception {
+        if (StringUtils.isBlank(directory)) {
+            directory = "";
+        }
+        long start = System.nanoTime();
+        List<String> fileNames = getDirectoryIndex() == null
+                ? null
+                : listIndex(directory);
+        if (fileNames != null) {
+            getTransferMetrics().recordTransfer(TransferMetrics.LIST, 0, System.nanoTime() - start);
+            return fileNames;
+        }
+        fileNames = new ArrayList<>();
+        Iterator<ListObjectsV2Result> pages = listPages(directory);
+        while (pages.hasNext()) {
+            fileNames.addAll(toFileNames(pages.next(), directory));
+        }
+        getTransferMetrics().recordTransfer(TransferMetrics.LIST, 0, System.nanoTime() - start);
+        return fileNames;
+    }
+
+    /**
+     * List a directory from its index.
+     *
+     * @return names relative to the base directory, or null if the directory has no usable index
+     */
+    private List<String> listIndex(String directory) throws WagonException {
+        String prefix = getListingPrefix(directory);
+        List<DirectoryIndex.Entry> entries = getDirectoryIndex().list(prefix);
+        if (entries == null) {
+            return null;
+        }
+        String relativePrefix = prefix.startsWith(getBaseDir())
+                ? prefix.substring(getBaseDir().length())
+                : prefix;
+        List<String> fileNames = new ArrayList<>(entries.size());
+        for (DirectoryIndex.Entry entry : entries) {
+            fileNames.add(relativePrefix + entry.getName());
+        }
+        return fileNames;
+    }
+
+    private Iterator<ListObjectsV2Result> listPages(String directory) {
+        ListObjectsV2Request request = metered(new ListObjectsV2Request()
+                .withBucketName(getBucketName())
+                .withPrefix(getListingPrefix(directory))
+                .withDelimiter("/")
+                .withMaxKeys(getListPageSize()));
+        return new ObjectListingIterator(getClient(), request, isListPrefetch());
+    }
+
+    private String getListingPrefix(String directory) {
+        String prefix = S3Utils.getKey(getBaseDir(), directory);
+        return prefix.endsWith("/")
+                ? prefix
+                : prefix + "/";
+    }
+
+    private List<String> toFileNames(ListObjectsV2Result page, String directory) {
+        List<String> fileNames = new ArrayList<>();
+        for (S3ObjectSummary summary : page.getObjectSummaries()) {
+            String key = summary.getKey();
+            String relativeKey = key.startsWith(getBaseDir())
+                    ? key.substring(getBaseDir().length())
+                    : key;
+
+            boolean add = !StringUtils.isBlank(relativeKey)
+                    && !relativeKey.equals(directory)
+                    && !DirectoryIndex.isIndex(relativeKey);
+            if (add) {
+                fileNames.add(relativeKey);
+            }
+        }
+        for (String commonPrefix : page.getCommonPrefixes()) {
+            String value = commonPrefix.startsWith(getBaseDir())
+                    ? commonPrefix.substring(getBaseDir().length())
+                    : commonPrefix;
+            fileNames.add(value);
+        }
+        return fileNames;
+    }
+
+    /**
+     * Create a PutObjectRequest based on the source file and destination passed in.
+     *
+     * @param source      Local file to upload.
+     * @param destination Destination S3 key.
+     * @return {@link PutObjectRequest} instance.
+     */
+    private PutObjectRequest createPutObjectRequest(File source, String destination) {
+        String key = S3Utils.getCanonicalKey(getBaseDir(), destination);
+        return new PutObjectRequest(getBucketName(), key, source);
+    }
+
+    private String getBaseDir() {
+        return baseDir;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+
+    @Override
+    protected void openConnectionInternal() throws ConnectionException, AuthenticationException {
+        if (transferManager == null) {
+            doConnect(repository, getAuthenticationInfo(), getProxyInfo());
+        }
+    }
+
+
+    private void doConnect(final Repository source, final AuthenticationInfo authenticationInfo,
+                           final ProxyInfo proxyInfo) throws ConnectionException {
+        repository = source;
+        log.debug("Connecting to " + repository.getUrl());
+        try {
+            if (authenticationInfo == null
+                    || StringUtils.isBlank(authenticationInfo.getPassword())
+                    || StringUtils.isBlank(authenticationInfo.getUserName())) {
+                throw new IllegalStateException("The S3 wagon needs an Access Key set as the username and Secret Key set as the password. eg:\n" +
+                        "<server>\n" +
+                        "  <id>my.server</id>\n" +
+                        "  <username>[Access Key ID]</username>\n" +
+                        "  <password>[Secret Access Key]</password>\n" +
+                        "</server>\n");
+            }
+
+
+            setRegion(StringUtils.trimToNull(source.getParameter("region")));
+            setMaxConnections(parseIntParameter(source, "maxConnections", ClientConfiguration.DEFAULT_MAX_CONNECTIONS));
+            setConnectionMaxIdleMillis(parseLongParameter(source, "connectionMaxIdleMillis", ClientConfiguration.DEFAULT_CONNECTION_MAX_IDLE_MILLIS));
+            setTcpKeepAlive(parseBooleanParameter(source, "tcpKeepAlive", ClientConfiguration.DEFAULT_TCP_KEEP_ALIVE));
+            setSocketSendBufferSizeHint(parseIntParameter(source, "socketSendBufferSizeHint", 0));
+            setSocketReceiveBufferSizeHint(parseIntParameter(source, "socketReceiveBufferSizeHint", 0));
+            setRetryMaxAttempts(parseIntParameter(source, "retryMaxAttempts", DEFAULT_RETRY_MAX_ATTEMPTS));
+            setRetryBaseDelayMillis(parseLongParameter(source, "retryBaseDelayMillis", DEFAULT_RETRY_BASE_DELAY_MILLIS));
+            setRetryThrottledBaseDelayMillis(parseLongParameter(source, "retryThrottledBaseDelayMillis", DEFAULT_RETRY_THROTTLED_BASE_DELAY_MILLIS));
+            setRetryMaxBackoffMillis(parseLongParameter(source, "retryMaxBackoffMillis", DEFAULT_RETRY_MAX_BACKOFF_MILLIS));
+            setRequestRate(parseIntParameter(source, "requestRate", 0));
+            setRequestBurst(parseIntParameter(source, "requestBurst", Math.max(1, getRequestRate())));
+            setRequestTimeout(parseIntParameter(source, "requestTimeout", 0));
+            setProxy(getEndpointProxy(proxyInfo));
+
+            // reduce default copy part size to increase friendliness to cloudflare and nginx
+            long multipartCopyPartSize = parseLongParameter(source, "multipartCopyPartSize", 1024 * 1024 * 10L);
+            long multipartCopyThreshold = parseLongParameter(source, "multipartCopyThreshold", DEFAULT_MULTIPART_COPY_THRESHOLD);
+
+            setTransferManager(TransferManagerBuilder
+                    .standard()
+                    .withMultipartCopyPartSize(multipartCopyPartSize)
+                    .withMultipartCopyThreshold(multipartCopyThreshold)
+                    .withS3Client(getS3Client(authenticationInfo))
+                    .build());
+            setCopier(new S3Copier(getTransferManager(), multipartCopyThreshold,
+                    parseIntParameter(source, "copyConcurrency", DEFAULT_COPY_CONCURRENCY)));
+
+            String engine = StringUtils.defaultIfBlank(source.getParameter("transferEngine"), TRANSFER_ENGINE_SDK1).trim();
+            if (TRANSFER_ENGINE_ASYNC.equals(engine)) {
+                setTransferEngine(createAsyncTransferEngine(authenticationInfo,
+                        parseIntParameter(source, "asyncMaxConcurrency", DEFAULT_ASYNC_MAX_CONCURRENCY),
+                        parseIntParameter(source, "asyncEventLoopThreads", DEFAULT_ASYNC_EVENT_LOOP_THREADS)));
+            } else if (TRANSFER_ENGINE_SDK1.equals(engine)) {
+                setTransferEngine(new TransferManagerEngine(getTransferManager()));
+            } else {
+                throw new IllegalStateException("The transferEngine of S3 wagon needs to be ["
+                        + TRANSFER_ENGINE_SDK1 + "] or [" + TRANSFER_ENGINE_ASYNC + "], but found [" + engine + "]");
+            }
+            log.debug("using transfer engine [" + engine + "]");
+
+            setStreamDownloads(parseBooleanParameter(source, "streamDownloads", false));
+            setDownloadBufferSize(parseIntParameter(source, "downloadBufferSize", DEFAULT_DOWNLOAD_BUFFER_SIZE));
+            setStreamUploads(parseBooleanParameter(source, "streamUploads", false));
+            setUploadPartSize(parseIntParameter(source, "uploadPartSize", DEFAULT_UPLOAD_PART_SIZE));
+            setUploadBufferCount(parseIntParameter(source, "uploadBufferCount", DEFAULT_UPLOAD_BUFFER_COUNT));
+
+            long parallelDownloadPartSize = parseLongParameter(source, "parallelDownloadPartSize", DEFAULT_PARALLEL_DOWNLOAD_PART_SIZE);
+            int parallelDownloadConcurrency = parseIntParameter(source, "parallelDownloadConcurrency", DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY);
+            AdaptiveTransferController downloadController = AdaptiveTransferController.fixed(parallelDownloadConcurrency, parallelDownloadPartSize);
+            if (parseBooleanParameter(source, "adaptiveTransfers", false)) {
+                int minConcurrency = parseIntParameter(source, "adaptiveMinConcurrency", DEFAULT_ADAPTIVE_MIN_CONCURRENCY);
+                int maxConcurrency = parseIntParameter(source, "adaptiveMaxConcurrency", DEFAULT_ADAPTIVE_MAX_CONCURRENCY);
+                long minPartSize = parseLongParameter(source, "adaptiveMinPartSize", DEFAULT_ADAPTIVE_MIN_PART_SIZE);
+                long maxPartSize = parseLongParameter(source, "adaptiveMaxPartSize", DEFAULT_ADAPTIVE_MAX_PART_SIZE);
+                long targetPartMillis = parseLongParameter(source, "adaptiveTargetPartMillis", DEFAULT_ADAPTIVE_TARGET_PART_MILLIS);
+                downloadController = new AdaptiveTransferController(minConcurrency, maxConcurrency, parallelDownloadConcurrency,
+                        minPartSize, maxPartSize, parallelDownloadPartSize, targetPartMillis);
+                // parts of multipart uploads, except the last one, cannot be smaller than 5 MiB
+                setUploadController(new AdaptiveTransferController(minConcurrency, maxConcurrency, getUploadBufferCount(),
+                        Math.max(minPartSize, MultipartUploadOutputStream.MIN_PART_SIZE),
+                        Math.max(maxPartSize, MultipartUploadOutputStream.MIN_PART_SIZE), getUploadPartSize(), targetPartMillis));
+            }
+
+            if (parseBooleanParameter(source, "parallelDownloads", false)) {
+                setParallelDownloader(new ParallelDownloader(
+                        getClient(),
+                        downloadController,
+                        parseLongParameter(source, "parallelDownloadThreshold", DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD)));
+            }
+
+            String cacheDirectory = source.getParameter("cacheDirectory");
+            String immutablePattern = source.getParameter("cacheImmutablePattern");
+            Pattern immutableKeys = Pattern.compile(StringUtils.isBlank(immutablePattern)
+                    ? LocalObjectCache.DEFAULT_IMMUTABLE_PATTERN
+                    : immutablePattern.trim());
+            if (StringUtils.isNotBlank(cacheDirectory)) {
+                setCache(new LocalObjectCache(
+                        new File(cacheDirectory.trim()),
+                        parseLongParameter(source, "cacheMaxSize", DEFAULT_CACHE_MAX_SIZE),
+                        immutableKeys));
+                log.debug("caching downloads in [" + cacheDirectory + "]");
+            }
+
+            long negativeCacheTtlMillis = parseLongParameter(source, "negativeCacheTtlMillis", 0);
+            if (negativeCacheTtlMillis > 0) {
+                setNegativeCache(new NegativeLookupCache(
+                        StringUtils.isBlank(cacheDirectory) ? null : new File(cacheDirectory.trim(), "missing"),
+                        getEndpoint(),
+                        negativeCacheTtlMillis,
+                        parseLongParameter(source, "negativeCacheReleaseTtlMillis",
+                                Math.max(negativeCacheTtlMillis, DEFAULT_NEGATIVE_CACHE_RELEASE_TTL_MILLIS)),
+                        immutableKeys));
+            }
+
+            setListPageSize(parseIntParameter(source, "listPageSize", DEFAULT_LIST_PAGE_SIZE));
+            setListPrefetch(parseBooleanParameter(source, "listPrefetch", true));
+
+            setSkipUnchangedUploads(parseBooleanParameter(source, "skipUnchangedUploads", false));
+
+            String compressPattern = source.getParameter("compressPattern");
+            setCompressPattern(StringUtils.isBlank(compressPattern) ? null : Pattern.compile(compressPattern.trim()));
+
+            setDirectoryConcurrency(parseIntParameter(source, "directoryConcurrency", DEFAULT_DIRECTORY_CONCURRENCY));
+            setDirectoryDiff(parseBooleanParameter(source, "directoryDiff", false));
+
+            String stagingDirectory = source.getParameter("stagingDirectory");
+            setStagingManager(new StagingManager(
+                    StringUtils.isBlank(stagingDirectory) ? null : new File(stagingDirectory.trim()),
+                    parseLongParameter(source, "stagingMaxSize", 0)));
+
+            boolean metricsJmx = parseBooleanParameter(source, "metricsJmx", false);
+            setMetricsFile(StringUtils.trimToNull(source.getParameter("metricsFile")));
+            if ((metricsJmx || getMetricsFile() != null) && getTransferMetrics() == TransferMetrics.NONE) {
+                setTransferMetrics(new DefaultTransferMetrics());
+            }
+            metricCollector = getTransferMetrics() == TransferMetrics.NONE
+                    ? null
+                    : new TransferMetricCollector(getTransferMetrics());
+            if (metricsJmx) {
+                registerMetrics(source);
+            }
+
+            int concurrentUploads = parseIntParameter(source, "concurrentUploads", 1);
+            if (concurrentUploads > 1) {
+                setUploadBatch(new TransferBatch(concurrentUploads));
+            }
+
+            setBucketName(source.getHost());
+            setBaseDir(S3Utils.getRepositoryBaseDir(source));
+
+            String resumeDirectory = source.getParameter("resumeDirectory");
+            if (StringUtils.isNotBlank(resumeDirectory)) {
+                File directory = new File(resumeDirectory.trim());
+                int attempts = parseIntParameter(source, "resumeAttempts", DEFAULT_RESUME_ATTEMPTS);
+                setResumableDownloader(new ResumableDownloader(getClient(), directory, attempts));
+                setResumableUploader(new ResumableUploader(getClient(), directory, getUploadPartSize(), getUploadBufferCount(), attempts));
+                log.debug("journaling transfers in [" + directory.getAbsolutePath() + "]");
+            }
+
+            if (parseBooleanParameter(source, "directoryIndex", false)) {
+                setDirectoryIndex(new DirectoryIndex(
+                        getClient(),
+                        getBucketName(),
+                        getBaseDir(),
+                        parseLongParameter(source, "directoryIndexMaxAgeMillis", DEFAULT_DIRECTORY_INDEX_MAX_AGE_MILLIS),
+                        metricCollector));
+            }
+        } catch (Exception e) {
+            // release the shared client and the threads started so far
+            try {
+                closeConnection();
+            } catch (ConnectionException closeFailure) {
+                log.debug("failed to close the connection after connecting failed", closeFailure);
+            }
+            throw new ConnectionException("Could not connect to repository", e);
+        }
+    }
+
+
+    private void doPut(final File source, final String destination, final byte[] md5, final String sha1Hex) throws
+            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        join(startPut(source, destination, md5, sha1Hex));
+    }
+
+    /**
+     * Start uploading a staged file with the {@link TransferEngine}.
+     *
+     * @return completes once the file is uploaded, or right away if the upload was skipped
+     */
+    private CompletableFuture<Void> startPut(final File source, final String destination, final byte[] md5, final String sha1Hex) throws
+            TransferFailedException {
+        PutObjectRequest request = metered(createPutObjectRequest(source, destination));
+        if (isSkipUnchangedUploads() && isUnchanged(request.getKey(), Hex.encodeHexString(md5), sha1Hex)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ObjectMetadata metadata = new ObjectMetadata();
+        // the SHA-1 is that of the content Maven sees, which is what its checksum files refer to
+        metadata.addUserMetadata(SHA1_METADATA, sha1Hex);
+        if (isCompressed(request.getKey())) {
+            return uploadCompressed(source, request.getKey(), metadata);
+        }
+        final long length = source.length();
+        boolean resumable = isResumable(length);
+        // multipart uploads have no single digest of the whole content
+        if (!resumable && length <= getTransferManager().getConfiguration().getMultipartUploadThreshold()) {
+            metadata.setContentMD5(Base64.encodeBase64String(md5));
+        }
+        request.setMetadata(metadata);
+        final String key = request.getKey();
+        final String etag = metadata.getContentMD5() == null ? null : Hex.encodeHexString(md5);
+        final long start = System.nanoTime();
+        CompletableFuture<Void> upload = resumable
+                ? uploadResumable(request, Hex.encodeHexString(md5))
+                : getTransferEngine().upload(request);
+        return upload.thenRun(() -> {
+            getTransferMetrics().recordTransfer(TransferMetrics.PUT, length, System.nanoTime() - start);
+            recordUpload(key, length, etag);
+        });
+    }
+
+    /**
+     * Upload a file compressed with gzip, compressing it while its parts are uploaded, so the compressed content is never
+     * written to disk. Compressed uploads are neither resumable nor asynchronous, and complete before this returns.
+     */
+    private CompletableFuture<Void> uploadCompressed(File source, String key, ObjectMetadata metadata) {
+        metadata.addUserMetadata(CODEC_METADATA, CODEC_GZIP);
+        MultipartUploadOutputStream upload = newUploadStream(key, metadata);
+        CountingOutputStream counter = new CountingOutputStream(upload);
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try (InputStream in = new FileInputStream(source)) {
+            OutputStream out = new GZIPOutputStream(counter, IO_BUFFER_SIZE);
+            IOUtils.copyLarge(in, out, new byte[IO_BUFFER_SIZE]);
+            out.close();
+        } catch (IOException | AmazonClientException e) {
+            upload.abort();
+            result.completeExceptionally(new TransferFailedException("failed to upload [" + source.getAbsolutePath() + "] to ["
+                    + S3Utils.getS3URI(getBucketName(), key) + "]", e));
+            return result;
+        }
+        long length = counter.getByteCount();
+        log.debug("compressed [" + source.getAbsolutePath() + "] from [" + source.length() + "] to [" + length + "] bytes");
+        getTransferMetrics().recordTransfer(TransferMetrics.PUT, length, System.nanoTime() - start);
+        recordUpload(key, length, null);
+        result.complete(null);
+        return result;
+    }
+
+    /**
+     * @param metadata metadata of the object, or <code>null</code> for none
+     */
+    private MultipartUploadOutputStream newUploadStream(String key, ObjectMetadata metadata) {
+        return getUploadController() == null
+                ? new MultipartUploadOutputStream(getClient(), getBucketName(), key, metadata, getUploadPartSize(), getUploadBufferCount())
+                : new MultipartUploadOutputStream(getClient(), getBucketName(), key, metadata, getUploadController(), getUploadBufferCount());
+    }
+
+    private boolean isCompressed(String key) {
+        return getCompressPattern() != null && getCompressPattern().matcher(key).matches();
+    }
+
+    /**
+     * Undo the compression of downloaded content, as recorded by the codec of its object metadata.
+     */
+    private static InputStream decode(InputStream in, String codec, String resourceName) throws IOException, TransferFailedException {
+        if (codec == null) {
+            return in;
+        }
+        if (CODEC_GZIP.equals(codec)) {
+            return new GZIPInputStream(in, IO_BUFFER_SIZE);
+        }
+        IOUtils.closeQuietly(in);
+        throw new TransferFailedException("unsupported codec [" + codec + "] of [" + resourceName + "]");
+    }
+
+    /**
+     * Undo the compression of a downloaded file in place.
+     */
+    private static void decode(File file, String codec, String resourceName) throws IOException, TransferFailedException {
+        if (codec == null) {
+            return;
+        }
+        File decoded = new File(file.getParentFile(), file.getName() + ".decoded");
+        try {
+            try (InputStream in = decode(new FileInputStream(file), codec, resourceName)) {
+                FileUtils.copyInputStreamToFile(in, decoded);
+            }
+            Files.move(decoded.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            FileUtils.deleteQuietly(decoded);
+        }
+    }
+
+    private static String getCodec(ObjectMetadata metadata) {
+        return metadata == null ? null : metadata.getUserMetaDataOf(CODEC_METADATA);
+    }
+
+    private boolean isResumable(long length) {
+        return getResumableUploader() != null && length > getUploadPartSize();
+    }
+
+    private CompletableFuture<Void> uploadResumable(PutObjectRequest request, String md5Hex) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            getResumableUploader().upload(request, md5Hex);
+            result.complete(null);
+        } catch (TransferFailedException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void doPut(final byte[] content, final String destination) throws TransferFailedException, AuthorizationException {
+        String key = S3Utils.getCanonicalKey(getBaseDir(), destination);
+        byte[] md5 = DigestUtils.md5(content);
+        if (isSkipUnchangedUploads() && isUnchanged(key, Hex.encodeHexString(md5), null)) {
+            return;
+        }
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        metadata.setContentMD5(Base64.encodeBase64String(md5));
+        long start = System.nanoTime();
+        S3Utils.putObject(metered(new PutObjectRequest(getBucketName(), key, new ByteArrayInputStream(content), metadata)), getClient());
+        getTransferMetrics().recordTransfer(TransferMetrics.PUT, content.length, System.nanoTime() - start);
+        recordUpload(key, content.length, Hex.encodeHexString(md5));
+    }
+
+    private void recordUpload(String key, long length, String etag) {
+        if (getNegativeCache() != null) {
+            getNegativeCache().invalidate(getBucketName(), key);
+        }
+        if (getDirectoryIndex() != null) {
+            getDirectoryIndex().record(key, length, etag, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Compare content about to be uploaded with the remote object, by the SHA-1 recorded in its metadata or by its
+     * ETag, which is the MD5 digest of objects uploaded with a single PUT.
+     */
+    private boolean isUnchanged(String key, String md5Hex, String sha1Hex) throws TransferFailedException {
+        ObjectMetadata remote;
+        long start = System.nanoTime();
+        try {
+            remote = S3Utils.getObjectMetadata(metered(new GetObjectMetadataRequest(getBucketName(), key)), getClient());
+            getTransferMetrics().recordTransfer(TransferMetrics.HEAD, 0, System.nanoTime() - start);
+        } catch (ResourceDoesNotExistException e) {
+            return false;
+        } catch (WagonException e) {
+            throw new TransferFailedException("failed to look up [" + S3Utils.getS3URI(getBucketName(), key) + "]", e);
+        }
+        boolean unchanged = (sha1Hex != null && sha1Hex.equals(remote.getUserMetaDataOf(SHA1_METADATA)))
+                || md5Hex.equalsIgnoreCase(remote.getETag());
+        if (unchanged) {
+            log.debug("skipped upload of unchanged [" + S3Utils.getS3URI(getBucketName(), key) + "]");
+        }
+        return unchanged;
+    }
+
+    @Override
+    public int getTimeout() {
+        return this.timeout;
+    }
+
+    @Override
+    public void setTimeout(final int timeoutValue) {
+        this.timeout = timeoutValue;
+    }
+
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    private TransferManager getTransferManager() {
+        return transferManager;
+    }
+
+    private TransferEngine getTransferEngine() {
+        return transferEngine;
+    }
+
+    private void setTransferEngine(TransferEngine transferEngine) {
+        this.transferEngine = transferEngine;
+    }
+
+    private AdaptiveTransferController getUploadController() {
+        return uploadController;
+    }
+
+    private void setUploadController(AdaptiveTransferController uploadController) {
+        this.uploadController = uploadController;
+    }
+
+    private ResumableDownloader getResumableDownloader() {
+        return resumableDownloader;
+    }
+
+    private void setResumableDownloader(ResumableDownloader resumableDownloader) {
+        this.resumableDownloader = resumableDownloader;
+    }
+
+    private ResumableUploader getResumableUploader() {
+        return resumableUploader;
+    }
+
+    private void setResumableUploader(ResumableUploader resumableUploader) {
+        this.resumableUploader = resumableUploader;
+    }
+
+    private DirectoryIndex getDirectoryIndex() {
+        return directoryIndex;
+    }
+
+    private void setDirectoryIndex(DirectoryIndex directoryIndex) {
+        this.directoryIndex = directoryIndex;
+    }
+
+    private S3ClientRegistry.ClientKey getClientKey() {
+        return clientKey;
+    }
+
+    private void setClientKey(S3ClientRegistry.ClientKey clientKey) {
+        this.clientKey = clientKey;
+    }
+
+    private AmazonS3 getClient() {
+        return getTransferManager().getAmazonS3Client();
+    }
+
+    private void setTransferManager(TransferManager transferManager) {
+        this.transferManager = transferManager;
+    }
+
+    private String getBucketName() {
+        return bucketName;
+    }
+
+    private void setBucketName(String bucketName) {
+        this.bucketName = bucketName;
+    }
+
+    private void setBaseDir(String baseDir) {
+        this.baseDir = baseDir;
+    }
 
-    private static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+    private String getEndpoint() {
+        return endpoint;
+    }
 
-    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
 
-    private TransferManager transferManager;
+    private String getRegion() {
+        return region;
+    }
 
-    private static AmazonS3Client client;
+    private void setRegion(String region) {
+        this.region = region;
+    }
 
-    private String bucketName;
-    private String baseDir;
-    private String endpoint = null;
+    private int getMaxConnections() {
+        return maxConnections;
+    }
 
-    private int timeout;
+    private void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
 
-    private AmazonS3Client getS3Client(final AuthenticationInfo credentials) {
-        if (client == null) {
-            client = createS3Client(credentials);
-        }
-        return client;
+    private long getConnectionMaxIdleMillis() {
+        return connectionMaxIdleMillis;
     }
 
-    AmazonS3Client createS3Client(AuthenticationInfo credentials) {
-        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder
-                .standard()
-                .withClientConfiguration(new ClientConfiguration())
-                .withCredentials(new AWSStaticCredentialsProvider(
-                        new BasicAWSCredentials(
-                                credentials.getUserName(),
-                                credentials.getPassword()
-                        )));
-        builder = enableCustomEndpointIfNeeded(builder);
-        return (AmazonS3Client) builder.build();
+    private void setConnectionMaxIdleMillis(long connectionMaxIdleMillis) {
+        this.connectionMaxIdleMillis = connectionMaxIdleMillis;
     }
 
-    private AmazonS3ClientBuilder enableCustomEndpointIfNeeded(AmazonS3ClientBuilder builder) {
-        if (StringUtils.isNotBlank(getEndpoint())) {
-            builder = builder
-                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, null))
-                    .enablePathStyleAccess();
-            log.debug("using s3 endpoint: [" + endpoint + "]");
-        }
-        return builder;
+    private boolean isTcpKeepAlive() {
+        return tcpKeepAlive;
     }
 
-    @Override
-    public void fillInputData(InputData inputData) throws
-            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
-        File tmpFile = null;
-        try {
-            tmpFile = createTmpFile("download");
-            log.debug("staging download using tmp file at [" + tmpFile.getAbsolutePath() + "]");
-            doGet(inputData.getResource().getName(), tmpFile);
-            inputData.setInputStream(IOUtils.toBufferedInputStream(new FileInputStream(tmpFile)));
-        } catch (IOException e) {
-            throw new TransferFailedException("failed transfer of [" + inputData.getResource().getName() + "]", e);
-        } finally {
-            FileUtils.deleteQuietly(tmpFile);
-        }
+    private void setTcpKeepAlive(boolean tcpKeepAlive) {
+        this.tcpKeepAlive = tcpKeepAlive;
+    }
 
+    private int getSocketSendBufferSizeHint() {
+        return socketSendBufferSizeHint;
     }
 
-    private static File createTmpFile(String verb) throws IOException {
-        File tmpFile = File.createTempFile("maven.wagon.s3." + verb, "tmp");
-        tmpFile.deleteOnExit();
-        return tmpFile;
+    private void setSocketSendBufferSizeHint(int socketSendBufferSizeHint) {
+        this.socketSendBufferSizeHint = socketSendBufferSizeHint;
     }
 
-    @Override
-    public void fillOutputData(OutputData outputData) throws TransferFailedException {
-        outputData.setOutputStream(new StagingOutputStream(outputData));
+    private int getSocketReceiveBufferSizeHint() {
+        return socketReceiveBufferSizeHint;
     }
 
-    @Override
-    public void closeConnection() throws ConnectionException {
-        log.debug("closing connection");
+    private void setSocketReceiveBufferSizeHint(int socketReceiveBufferSizeHint) {
+        this.socketReceiveBufferSizeHint = socketReceiveBufferSizeHint;
     }
 
-    private void doGet(final String resourceName, final File destination) throws
-            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
-        if (destination == null) {
-            throw new TransferFailedException("destination cannot be null");
-        }
-        try {
-            if (destination.exists() && !FileUtils.deleteQuietly(destination)) {
-                throw new TransferFailedException("cannot overwrite existing destination [" + destination.getAbsolutePath() + "]");
-            }
-            S3Utils.download(
-                    new GetObjectRequest(getBucketName(), S3Utils.getCanonicalKey(getBaseDir(), resourceName)),
-                    getTransferManager(),
-                    destination);
-        } catch (TransferFailedException | AuthorizationException | ResourceDoesNotExistException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new TransferFailedException("Transfer of resource [" + S3Utils.getS3URI(getBucketName(), S3Utils.getKey(getBaseDir(), resourceName)) + "] to destination [" + destination.getAbsolutePath() + "] failed", e);
-        }
+    private int getRetryMaxAttempts() {
+        return retryMaxAttempts;
     }
 
-    private long parseMultipartCopyPartSize(String multipartCopyPartSize) {
-        try {
-            return Long.parseLong(multipartCopyPartSize);
-        } catch (NumberFormatException ex) {
-            throw new IllegalStateException("The multipartCopyPartSize of S3 wagon needs to be a integer/long. eg:\n" +
-                    "<server>\n" +
-                    "  <id>my.server</id>\n" +
-                    "  ...\n" +
-                    "  <configuration>\n" +
-                    "    <multipartCopyPartSize>10485760</multipartCopyPartSize>\n" +
-                    "  </configuration>\n" +
-                    "</server>\n", ex);
-        }
+    private void setRetryMaxAttempts(int retryMaxAttempts) {
+        this.retryMaxAttempts = retryMaxAttempts;
     }
 
-    @Override
-    public final List<String> getFileList(final String destinationDirectory) throws
-            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
-        try {
-            return listDirectory(destinationDirectory);
-        } catch (TransferFailedException | ResourceDoesNotExistException | AuthorizationException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new TransferFailedException("Listing of directory " + destinationDirectory + "failed", e);
-        }
+    private long getRetryBaseDelayMillis() {
+        return retryBaseDelayMillis;
     }
 
-    /**
-     * List all of the objects in a given directory
-     */
-    private List<String> listDirectory(String directory) throws Exception {
-        if (StringUtils.isBlank(directory)) {
-            directory = "";
-        }
-        String delimiter = "/";
-        String prefix = S3Utils.getKey(getBaseDir(), directory);
-        if (!prefix.endsWith(delimiter)) {
-            prefix += delimiter;
-        }
-        ListObjectsRequest request = new ListObjectsRequest();
-        request.setBucketName(getBucketName());
-        request.setPrefix(prefix);
-        request.setDelimiter(delimiter);
-        ObjectListing objectListing = client.listObjects(request);
-        List<String> fileNames = new ArrayList<>();
-        for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
-            String key = summary.getKey();
-            String relativeKey = key.startsWith(getBaseDir())
-                    ? key.substring(getBaseDir().length())
-                    : key;
+    private void setRetryBaseDelayMillis(long retryBaseDelayMillis) {
+        this.retryBaseDelayMillis = retryBaseDelayMillis;
+    }
 
-            boolean add = !StringUtils.isBlank(relativeKey) && !relativeKey.equals(directory);
-            if (add) {
-                fileNames.add(relativeKey);
-            }
-        }
-        for (String commonPrefix : objectListing.getCommonPrefixes()) {
-            String value = commonPrefix.startsWith(getBaseDir())
-                    ? commonPrefix.substring(getBaseDir().length())
-                    : commonPrefix;
-            fileNames.add(value);
-        }
-        return fileNames;
+    private long getRetryThrottledBaseDelayMillis() {
+        return retryThrottledBaseDelayMillis;
     }
 
-    /**
-     * Create a PutObjectRequest based on the source file and destination passed in.
-     *
-     * @param source      Local file to upload.
-     * @param destination Destination S3 key.
-     * @return {@link PutObjectRequest} instance.
-     */
-    private PutObjectRequest createPutObjectRequest(File source, String destination) {
-        String key = S3Utils.getCanonicalKey(getBaseDir(), destination);
-        return new PutObjectRequest(getBucketName(), key, source);
+    private void setRetryThrottledBaseDelayMillis(long retryThrottledBaseDelayMillis) {
+        this.retryThrottledBaseDelayMillis = retryThrottledBaseDelayMillis;
     }
 
-    private String getBaseDir() {
-        return baseDir;
+    private long getRetryMaxBackoffMillis() {
+        return retryMaxBackoffMillis;
     }
 
-    public int getReadTimeout() {
-        return readTimeout;
+    private void setRetryMaxBackoffMillis(long retryMaxBackoffMillis) {
+        this.retryMaxBackoffMillis = retryMaxBackoffMillis;
     }
 
+    private int getRequestRate() {
+        return requestRate;
+    }
 
-    @Override
-    protected void openConnectionInternal() throws ConnectionException, AuthenticationException {
-        if (transferManager == null) {
-            doConnect(repository, getAuthenticationInfo(), getProxyInfo());
-        }
+    private void setRequestRate(int requestRate) {
+        this.requestRate = requestRate;
     }
 
+    private int getRequestBurst() {
+        return requestBurst;
+    }
 
-    private void doConnect(final Repository source, final AuthenticationInfo authenticationInfo,
-                           final ProxyInfo proxyInfo) throws ConnectionException {
-        repository = source;
-        log.debug("Connecting to " + repository.getUrl());
-        try {
-            if (authenticationInfo == null
-                    || StringUtils.isBlank(authenticationInfo.getPassword())
-                    || StringUtils.isBlank(authenticationInfo.getUserName())) {
-                throw new IllegalStateException("The S3 wagon needs an Access Key set as the username and Secret Key set as the password. eg:\n" +
-                        "<server>\n" +
-                        "  <id>my.server</id>\n" +
-                        "  <username>[Access Key ID]</username>\n" +
-                        "  <password>[Secret Access Key]</password>\n" +
-                        "</server>\n");
-            }
+    private void setRequestBurst(int requestBurst) {
+        this.requestBurst = requestBurst;
+    }
 
+    private int getRequestTimeout() {
+        return requestTimeout;
+    }
 
-            String multipartCopyPartSize = source.getParameter("multipartCopyPartSize");
+    private void setRequestTimeout(int requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
 
-            // reduce default copy part size to increase friendliness to cloudflare and nginx
-            long multipartCopyPartSize1 = StringUtils.isBlank(multipartCopyPartSize)
-                    ? 1024 * 1024 * 10L
-                    : parseMultipartCopyPartSize(multipartCopyPartSize);
+    private ProxyInfo getProxy() {
+        return proxy;
+    }
 
-            setTransferManager(TransferManagerBuilder
-                    .standard()
-                    .withMultipartCopyPartSize(multipartCopyPartSize1)
-                    .withS3Client(getS3Client(authenticationInfo))
-                    .build());
+    private void setProxy(ProxyInfo proxy) {
+        this.proxy = proxy;
+    }
 
-            setBucketName(source.getHost());
-            setBaseDir(S3Utils.getRepositoryBaseDir(source));
-        } catch (Exception e) {
-            throw new ConnectionException("Could not connect to repository", e);
-        }
+    private boolean isStreamDownloads() {
+        return streamDownloads;
     }
 
+    private void setStreamDownloads(boolean streamDownloads) {
+        this.streamDownloads = streamDownloads;
+    }
 
-    private void doPut(final File source, final String destination) throws
-            TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
-        PutObjectRequest request = createPutObjectRequest(source, destination);
-        S3Utils.upload(request, getTransferManager());
+    private int getDownloadBufferSize() {
+        return downloadBufferSize;
     }
 
-    @Override
-    public int getTimeout() {
-        return this.timeout;
+    private void setDownloadBufferSize(int downloadBufferSize) {
+        this.downloadBufferSize = downloadBufferSize;
     }
 
-    @Override
-    public void setTimeout(final int timeoutValue) {
-        this.timeout = timeoutValue;
+    private boolean isStreamUploads() {
+        return streamUploads;
     }
 
+    private void setStreamUploads(boolean streamUploads) {
+        this.streamUploads = streamUploads;
+    }
 
-    public void setReadTimeout(int readTimeout) {
-        this.readTimeout = readTimeout;
+    private int getUploadPartSize() {
+        return uploadPartSize;
     }
 
-    private TransferManager getTransferManager() {
-        return transferManager;
+    private void setUploadPartSize(int uploadPartSize) {
+        this.uploadPartSize = uploadPartSize;
     }
 
-    private void setTransferManager(TransferManager transferManager) {
-        this.transferManager = transferManager;
+    private int getUploadBufferCount() {
+        return uploadBufferCount;
     }
 
-    private String getBucketName() {
-        return bucketName;
+    private void setUploadBufferCount(int uploadBufferCount) {
+        this.uploadBufferCount = uploadBufferCount;
     }
 
-    private void setBucketName(String bucketName) {
-        this.bucketName = bucketName;
+    private ParallelDownloader getParallelDownloader() {
+        return parallelDownloader;
     }
 
-    private void setBaseDir(String baseDir) {
-        this.baseDir = baseDir;
+    private void setParallelDownloader(ParallelDownloader parallelDownloader) {
+        this.parallelDownloader = parallelDownloader;
     }
 
-    private String getEndpoint() {
-        return endpoint;
+    private LocalObjectCache getCache() {
+        return cache;
     }
 
-    public void setEndpoint(String endpoint) {
-        this.endpoint = endpoint;
+    private void setCache(LocalObjectCache cache) {
+        this.cache = cache;
+    }
+
+    private NegativeLookupCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    private void setNegativeCache(NegativeLookupCache negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+
+    private S3Copier getCopier() {
+        return copier;
+    }
+
+    private void setCopier(S3Copier copier) {
+        this.copier = copier;
+    }
+
+    private TransferBatch getUploadBatch() {
+        return uploadBatch;
+    }
+
+    private void setUploadBatch(TransferBatch uploadBatch) {
+        this.uploadBatch = uploadBatch;
+    }
+
+    private int getListPageSize() {
+        return listPageSize;
+    }
+
+    private void setListPageSize(int listPageSize) {
+        this.listPageSize = listPageSize;
+    }
+
+    private boolean isListPrefetch() {
+        return listPrefetch;
+    }
+
+    private void setListPrefetch(boolean listPrefetch) {
+        this.listPrefetch = listPrefetch;
+    }
+
+    public TransferMetrics getTransferMetrics() {
+        return transferMetrics;
+    }
+
+    /**
+     * @param transferMetrics receives measurements of the transfers of this wagon, applied on the next connect
+     */
+    public void setTransferMetrics(TransferMetrics transferMetrics) {
+        this.transferMetrics = transferMetrics == null ? TransferMetrics.NONE : transferMetrics;
+    }
+
+    private String getMetricsFile() {
+        return metricsFile;
+    }
+
+    private void setMetricsFile(String metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    private boolean isSkipUnchangedUploads() {
+        return skipUnchangedUploads;
+    }
+
+    private void setSkipUnchangedUploads(boolean skipUnchangedUploads) {
+        this.skipUnchangedUploads = skipUnchangedUploads;
+    }
+
+    private Pattern getCompressPattern() {
+        return compressPattern;
+    }
+
+    private void setCompressPattern(Pattern compressPattern) {
+        this.compressPattern = compressPattern;
+    }
+
+    private int getDirectoryConcurrency() {
+        return directoryConcurrency;
+    }
+
+    private void setDirectoryConcurrency(int directoryConcurrency) {
+        this.directoryConcurrency = directoryConcurrency;
+    }
+
+    private boolean isDirectoryDiff() {
+        return directoryDiff;
+    }
+
+    private void setDirectoryDiff(boolean directoryDiff) {
+        this.directoryDiff = directoryDiff;
+    }
+
+    private StagingManager getStagingManager() {
+        return stagingManager;
+    }
+
+    private void setStagingManager(StagingManager stagingManager) {
+        this.stagingManager = stagingManager;
     }
 
 
     private class StagingOutputStream extends OutputStream {
         private final OutputData outputData;
+        private final MessageDigest md5 = DigestUtils.getMd5Digest();
+        private final MessageDigest sha1 = DigestUtils.getSha1Digest();
         private File tmpFile;
         private OutputStream os;
 
@@ -385,9 +2282,9 @@ public class S3StreamWagon extends StreamWagon {
 
         private OutputStream getOutputStream() throws IOException {
             if (tmpFile == null) {
-                tmpFile = createTmpFile("upload");
+                tmpFile = stageUpload(outputData.getResource().getName(), outputData.getResource().getContentLength());
                 log.debug("staging upload using tmp file at [" + tmpFile.getAbsolutePath() + "]");
-                os = new FileOutputStream(tmpFile);
+                os = new DigestOutputStream(new DigestOutputStream(new FileOutputStream(tmpFile), md5), sha1);
             } else {
                 if (os == null) {
                     throw new IOException("cannot re-use closed outputstream");
@@ -414,19 +2311,68 @@ public class S3StreamWagon extends StreamWagon {
 
             @Override
         public void close() throws IOException {
+            boolean queued = false;
             try {
                 super.close();
                 if (os != null) {
                     os.flush();
                     os.close();
                     os = null;
-                    doPut(tmpFile, outputData.getResource().getName());
-                    log.debug("uploaded [" + tmpFile.getAbsolutePath() + "] to [" + outputData.getResource().getName() + "]");
+                    if (!TransferBatch.isMetadata(outputData.getResource().getName())) {
+                        getStagingManager().resize(tmpFile, tmpFile.length());
+                    }
+                    if (getUploadBatch() != null) {
+                        queuePut(tmpFile, outputData.getResource().getName(), md5.digest(), Hex.encodeHexString(sha1.digest()));
+                        queued = true;
+                    } else {
+                        upload();
+                    }
                 }
             } catch (TransferFailedException | ResourceDoesNotExistException | AuthorizationException e) {
                 throw new IOException(e);
             } finally {
-                FileUtils.deleteQuietly(tmpFile);
+                if (!queued) {
+                    getStagingManager().release(tmpFile);
+                }
+            }
+        }
+
+        private void upload() throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+            doPut(tmpFile, outputData.getResource().getName(), md5.digest(), Hex.encodeHexString(sha1.digest()));
+            log.debug("uploaded [" + tmpFile.getAbsolutePath() + "] to [" + outputData.getResource().getName() + "]");
+        }
+    }
+
+    /**
+     * Collects a checksum file in memory and uploads it with a single PUT when closed.
+     */
+    private class ChecksumOutputStream extends ByteArrayOutputStream {
+        private final OutputData outputData;
+        private boolean closed = false;
+
+        ChecksumOutputStream(OutputData outputData) {
+            this.outputData = outputData;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            final String resourceName = outputData.getResource().getName();
+            final byte[] content = toByteArray();
+            if (getUploadBatch() != null) {
+                getUploadBatch().submit(resourceName, () -> {
+                    doPut(content, resourceName);
+                    return null;
+                });
+            } else {
+                try {
+                    doPut(content, resourceName);
+                } catch (TransferFailedException | AuthorizationException e) {
+                    throw new IOException(e);
+                }
             }
         }
     }
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon;
+
+import org.apache.maven.wagon.TransferFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs transfers (uploads, downloads or copies) concurrently with a bounded number of threads, until {@link #await()}
+ * is called.
+ * <p>
+ * Transfers of repository metadata (<code>maven-metadata.xml</code> and its checksums) are held back until all other
+ * transfers of the batch have completed, and are skipped if any of those failed, so that readers never see metadata
+ * pointing at missing artifacts.
+ * </p>
+ * <p>
+ * Failures are reported by {@link #await()}, and earlier by {@link #checkFailures()} and {@link #awaitScheduled()}, so
+ * that callers can fail the next transfer instead of only noticing once the batch is done.
+ * </p>
+ * <p>
+ * Asynchronous transfers, which complete a future instead of holding a thread, bypass the thread pool and are only
+ * limited by their transfer engine.
+ * </p>
+ */
+class TransferBatch {
+
+    private static final Logger log = LoggerFactory.getLogger(TransferBatch.class);
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final Runnable NO_CLEANUP = () -> {
+    };
+
+    private final ExecutorService executor;
+    private final String operation;
+    private final List<Scheduled> transfers = new ArrayList<>();
+    private final List<Deferred> deferredTransfers = new ArrayList<>();
+    private final List<Failure> failures = new ArrayList<>();
+
+    TransferBatch(int concurrency) {
+        this(concurrency, "upload");
+    }
+
+    /**
+     * @param concurrency number of threads
+     * @param operation   what the batch does, such as <code>upload</code> or <code>copy</code>, used to report failures
+     */
+    TransferBatch(int concurrency, String operation) {
+        this.operation = operation;
+        this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "s3-wagon-batch-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedule a transfer that holds no resources.
+     *
+     * @param resourceName name of the transferred resource, used to report failures
+     * @param transfer     performs the transfer
+     */
+    void submit(String resourceName, Callable<Void> transfer) {
+        submit(resourceName, transfer, NO_CLEANUP);
+    }
+
+    /**
+     * Schedule a transfer.
+     *
+     * @param resourceName name of the transferred resource, used to report failures
+     * @param transfer     performs the transfer
+     * @param cleanup      releases resources held by the transfer, run once the transfer completed, failed or was skipped
+     */
+    synchronized void submit(String resourceName, Callable<Void> transfer, Runnable cleanup) {
+        schedule(resourceName, () -> submit(transfer, cleanup), cleanup);
+    }
+
+    /**
+     * Schedule a transfer that runs without a thread of this batch.
+     *
+     * @param resourceName name of the transferred resource, used to report failures
+     * @param transfer     starts the transfer and returns a future that completes with it
+     * @param cleanup      releases resources held by the transfer, run once the transfer completed, failed or was skipped
+     */
+    synchronized void submitAsync(String resourceName, Callable<CompletableFuture<Void>> transfer, Runnable cleanup) {
+        schedule(resourceName, () -> start(transfer, cleanup), cleanup);
+    }
+
+    private void schedule(String resourceName, Callable<Future<Void>> start, Runnable cleanup) {
+        if (isMetadata(resourceName)) {
+            deferredTransfers.add(new Deferred(resourceName, start, cleanup));
+        } else {
+            transfers.add(new Scheduled(resourceName, call(start)));
+        }
+    }
+
+    /**
+     * Report the transfers that failed so far, without waiting for those still running.
+     *
+     * @throws TransferFailedException listing every resource that failed to transfer so far
+     */
+    synchronized void checkFailures() throws TransferFailedException {
+        List<Scheduled> running = new ArrayList<>();
+        for (Scheduled transfer : transfers) {
+            if (transfer.future.isDone()) {
+                failures.addAll(awaitAll(Collections.singletonList(transfer)));
+            } else {
+                running.add(transfer);
+            }
+        }
+        transfers.retainAll(running);
+        throwFailures();
+    }
+
+    /**
+     * Wait for the transfers scheduled so far to complete, except the repository metadata, which stays held back.
+     *
+     * @throws TransferFailedException listing every resource that failed to transfer so far
+     */
+    synchronized void awaitScheduled() throws TransferFailedException {
+        failures.addAll(awaitAll());
+        throwFailures();
+    }
+
+    /**
+     * Wait for all scheduled transfers to complete, then transfer the repository metadata.
+     *
+     * @throws TransferFailedException listing every resource that failed to transfer
+     */
+    synchronized void await() throws TransferFailedException {
+        List<Deferred> skipped = new ArrayList<>(deferredTransfers);
+        try {
+            failures.addAll(awaitAll());
+            if (failures.isEmpty()) {
+                skipped.clear();
+                for (Deferred deferred : deferredTransfers) {
+                    transfers.add(new Scheduled(deferred.resourceName, call(deferred.start)));
+                }
+                failures.addAll(awaitAll());
+            } else {
+                for (Deferred deferred : deferredTransfers) {
+                    log.error("skipped " + operation + " of [" + deferred.resourceName + "] because others failed");
+                }
+            }
+            for (Failure failure : failures) {
+                log.error("failed to " + operation + " [" + failure.resourceName + "]", failure.cause);
+            }
+            throwFailures();
+        } finally {
+            transfers.clear();
+            deferredTransfers.clear();
+            failures.clear();
+            for (Deferred deferred : skipped) {
+                deferred.cleanup.run();
+            }
+        }
+    }
+
+    private void throwFailures() throws TransferFailedException {
+        if (failures.isEmpty()) {
+            return;
+        }
+        List<String> resourceNames = new ArrayList<>();
+        for (Failure failure : failures) {
+            resourceNames.add(failure.resourceName);
+        }
+        TransferFailedException exception = new TransferFailedException("failed to " + operation + " " + resourceNames);
+        for (Failure failure : failures) {
+            exception.addSuppressed(failure.cause);
+        }
+        throw exception;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Future<Void> submit(Callable<Void> transfer, Runnable cleanup) {
+        return executor.submit(() -> {
+            try {
+                return transfer.call();
+            } finally {
+                cleanup.run();
+            }
+        });
+    }
+
+    private static Future<Void> start(Callable<CompletableFuture<Void>> transfer, Runnable cleanup) {
+        CompletableFuture<Void> future;
+        try {
+            future = transfer.call();
+        } catch (Exception e) {
+            future = failed(e);
+        }
+        return future.whenComplete((result, failure) -> cleanup.run());
+    }
+
+    private static Future<Void> call(Callable<Future<Void>> start) {
+        try {
+            return start.call();
+        } catch (Exception e) {
+            return failed(e);
+        }
+    }
+
+    private static CompletableFuture<Void> failed(Exception e) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private List<Failure> awaitAll() throws TransferFailedException {
+        List<Failure> failures = awaitAll(transfers);
+        transfers.clear();
+        return failures;
+    }
+
+    private List<Failure> awaitAll(List<Scheduled> transfers) throws TransferFailedException {
+        List<Failure> failures = new ArrayList<>();
+        for (Scheduled transfer : transfers) {
+            try {
+                transfer.future.get();
+            } catch (ExecutionException e) {
+                failures.add(new Failure(transfer.resourceName, e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransferFailedException("interrupted while waiting for [" + transfer.resourceName + "] to " + operation, e);
+            }
+        }
+        return failures;
+    }
+
+    static boolean isMetadata(String resourceName) {
+        int index = resourceName.lastIndexOf('/');
+        return resourceName.substring(index + 1).startsWith("maven-metadata");
+    }
+
+    /**
+     * A transfer in flight. The same resource may be submitted more than once, so transfers are kept per submission.
+     */
+    private static class Scheduled {
+        private final String resourceName;
+        private final Future<Void> future;
+
+        Scheduled(String resourceName, Future<Void> future) {
+            this.resourceName = resourceName;
+            this.future = future;
+        }
+    }
+
+    private static class Deferred {
+        private final String resourceName;
+        private final Callable<Future<Void>> start;
+        private final Runnable cleanup;
+
+        Deferred(String resourceName, Callable<Future<Void>> start, Runnable cleanup) {
+            this.resourceName = resourceName;
+            this.start = start;
+            this.cleanup = cleanup;
+        }
+    }
+
+    private static class Failure {
+        private final String resourceName;
+        private final Throwable cause;
+
+        Failure(String resourceName, Throwable cause) {
+            this.resourceName = resourceName;
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Moves staged files to and from S3.
+ * <p>
+ * Transfers are described with SDK v1 requests, which only carry bucket, key, file and metadata to the engine.
+ * Failures complete the returned futures with a {@link org.apache.maven.wagon.WagonException}.
+ * </p>
+ */
+interface TransferEngine {
+
+    /**
+     * @param request     object to download
+     * @param destination file to create
+     * @return metadata of the downloaded object
+     */
+    CompletableFuture<ObjectMetadata> download(GetObjectRequest request, File destination);
+
+    /**
+     * @param request file upload, with optional user metadata and <code>Content-MD5</code>
+     * @return completes once the object is stored
+     */
+    CompletableFuture<Void> upload(PutObjectRequest request);
+
+    /**
+     * @return true if transfers complete without holding a thread, so that many can be started at once
+     */
+    boolean isAsync();
+
+    /**
+     * Release the threads and connections of the engine.
+     */
+    void shutdown();
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import org.apache.maven.wagon.WagonException;
+import org.kuali.common.aws.s3.S3Utils;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transfers with the SDK v1 {@link TransferManager}, blocking the calling thread until the transfer completed.
+ */
+class TransferManagerEngine implements TransferEngine {
+
+    private final TransferManager transferManager;
+
+    TransferManagerEngine(TransferManager transferManager) {
+        this.transferManager = transferManager;
+    }
+
+    @Override
+    public CompletableFuture<ObjectMetadata> download(GetObjectRequest request, File destination) {
+        CompletableFuture<ObjectMetadata> result = new CompletableFuture<>();
+        try {
+            result.complete(S3Utils.download(request, transferManager, destination));
+        } catch (WagonException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Void> upload(PutObjectRequest request) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            S3Utils.upload(request, transferManager);
+            result.complete(null);
+        } catch (WagonException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return false;
+    }
+
+    @Override
+    public void shutdown() {
+        // the transfer manager is owned, and shut down, by the wagon
+    }
+}
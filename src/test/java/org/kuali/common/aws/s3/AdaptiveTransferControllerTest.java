@@ -0,0 +1,124 @@
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class AdaptiveTransferControllerTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void growWhileThroughputImproves() {
+        AdaptiveTransferController controller = controller(1, 8, 1);
+        for (int i = 0; i < 20; i++) {
+            // every part in flight adds bandwidth
+            completeWindow(controller, controller.getConcurrency(), 1000);
+        }
+        assertThat(controller.getConcurrency(), is(8));
+    }
+
+    @Test
+    public void holdWhenThroughputIsFlat() {
+        AdaptiveTransferController controller = controller(1, 8, 2);
+        completeWindow(controller, 2, 1000);
+        assertThat(controller.getConcurrency(), is(3));
+        for (int i = 0; i < 10; i++) {
+            // the link is saturated, more parts in flight take proportionally longer
+            completeWindow(controller, controller.getConcurrency(), 500L * controller.getConcurrency());
+        }
+        assertThat(controller.getConcurrency(), is(3));
+    }
+
+    @Test
+    public void halveOncePerWindowWhenThrottled() {
+        AdaptiveTransferController controller = controller(1, 16, 8);
+        controller.onThrottle();
+        assertThat(controller.getConcurrency(), is(4));
+        AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+        slowDown.setErrorCode("SlowDown");
+        slowDown.setStatusCode(503);
+        controller.onFailure(slowDown);
+        assertThat(controller.getConcurrency(), is(4));
+        completeWindow(controller, 4, 1000);
+        completeWindow(controller, 5, 1000);
+        int concurrency = controller.getConcurrency();
+        controller.onFailure(slowDown);
+        assertThat(controller.getConcurrency(), is(concurrency / 2));
+        assertThat(controller.getPartSize(), is(8 * MB));
+    }
+
+    @Test
+    public void steerPartSizeToTargetDuration() {
+        AdaptiveTransferController controller = controller(1, 1, 1);
+        // 8 MB in 4 s on a slow link: parts should carry 2 MB to take 1 s
+        for (int i = 0; i < 10; i++) {
+            controller.onSuccess(controller.getPartSize(), controller.getPartSize() * TimeUnit.SECONDS.toNanos(1) / (2 * MB));
+        }
+        assertThat(controller.getPartSize(), is(2 * MB));
+        // a fast link carries 100 MB/s, bounded by the maximum part size
+        for (int i = 0; i < 10; i++) {
+            controller.onSuccess(controller.getPartSize(), controller.getPartSize() * TimeUnit.MILLISECONDS.toNanos(10) / MB);
+        }
+        assertThat(controller.getPartSize(), is(64 * MB));
+    }
+
+    @Test
+    public void shrinkPartsOnFailure() {
+        AdaptiveTransferController controller = controller(1, 4, 4);
+        controller.onFailure(new IOException("connection reset"));
+        assertThat(controller.getConcurrency(), is(2));
+        assertThat(controller.getPartSize(), is(4 * MB));
+    }
+
+    @Test
+    public void fixedSettings() {
+        AdaptiveTransferController controller = AdaptiveTransferController.fixed(4, 8 * MB);
+        controller.onSuccess(8 * MB, TimeUnit.SECONDS.toNanos(60));
+        controller.onThrottle();
+        assertThat(controller.getConcurrency(), is(4));
+        assertThat(controller.getPartSize(), is(8 * MB));
+    }
+
+    @Test(timeout = 10000)
+    public void limitPartsInFlight() throws Exception {
+        AdaptiveTransferController controller = AdaptiveTransferController.fixed(2, MB);
+        controller.acquire();
+        controller.acquire();
+        Thread third = new Thread(() -> {
+            try {
+                controller.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        third.start();
+        third.join(200);
+        assertThat(third.isAlive(), is(true));
+        controller.release();
+        third.join();
+    }
+
+    private AdaptiveTransferController controller(int min, int max, int initial) {
+        return new AdaptiveTransferController(min, max, initial, MB, 64 * MB, 8 * MB, 1000, clock::get);
+    }
+
+    /**
+     * Complete a window of full-sized parts that took the given time in total.
+     */
+    private void completeWindow(AdaptiveTransferController controller, int parts, long millis) {
+        long partSize = controller.getPartSize();
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        for (int i = 0; i < parts; i++) {
+            controller.onSuccess(partSize, TimeUnit.MILLISECONDS.toNanos(1000));
+        }
+    }
+}
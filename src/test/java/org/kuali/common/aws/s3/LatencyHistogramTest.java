@@ -0,0 +1,40 @@
+package org.kuali.common.aws.s3;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketBounds() {
+        for (long value = 0; value < 100000; value++) {
+            long upperBound = LatencyHistogram.upperBound(LatencyHistogram.bucket(value));
+            assertTrue(upperBound >= value);
+            assertTrue(upperBound <= value + value / 4);
+        }
+        assertThat(LatencyHistogram.upperBound(LatencyHistogram.bucket(Long.MAX_VALUE)), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getMax(), is(100000L));
+        assertTrue(histogram.getPercentile(50) >= 50000L);
+        assertTrue(histogram.getPercentile(50) <= 62500L);
+        assertThat(histogram.getPercentile(100), is(100000L));
+    }
+
+    @Test
+    public void empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentile(99), is(0L));
+        assertThat(histogram.getMax(), is(0L));
+    }
+}
@@ -0,0 +1,170 @@
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+public class LocalObjectCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalS3Server server;
+    private AmazonS3 client;
+
+    @Before
+    public void start() throws Exception {
+        server = new LocalS3Server().start();
+        server.createBucket("bucket");
+        client = AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                .withPathStyleAccessEnabled(true)
+                .build();
+    }
+
+    @After
+    public void stop() {
+        client.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void immutableByDefault() {
+        LocalObjectCache cache = new LocalObjectCache(folder.getRoot(), 1024, Pattern.compile(LocalObjectCache.DEFAULT_IMMUTABLE_PATTERN));
+        assertThat(cache.isImmutable("release/org/example/foo/1.0/foo-1.0.jar"), is(true));
+        assertThat(cache.isImmutable("release/org/example/foo/1.0/foo-1.0.pom.sha1"), is(true));
+        assertThat(cache.isImmutable("release/org/example/foo/1.0/foo-1.0-sources.jar"), is(true));
+    }
+
+    @Test
+    public void mutableByDefault() {
+        LocalObjectCache cache = new LocalObjectCache(folder.getRoot(), 1024, Pattern.compile(LocalObjectCache.DEFAULT_IMMUTABLE_PATTERN));
+        assertThat(cache.isImmutable("snapshot/org/example/foo/1.0-SNAPSHOT/foo-1.0-20200101.010101-1.jar"), is(false));
+        assertThat(cache.isImmutable("release/org/example/foo/maven-metadata.xml"), is(false));
+        assertThat(cache.isImmutable("release/org/example/foo/maven-metadata.xml.sha1"), is(false));
+        assertThat(cache.isImmutable("release/org/example/foo/1.0/notes.txt"), is(false));
+        assertThat(cache.isImmutable("release/index.html"), is(false));
+    }
+
+    @Test
+    public void hitImmutable() throws Exception {
+        String key = "repo/org/example/foo/1.0/foo-1.0.jar";
+        server.putObject("bucket", key, new byte[]{1, 2, 3});
+        LocalObjectCache cache = cache();
+        assertThat(cache.contains("bucket", key), is(false));
+        LocalObjectCache.Entry entry = cache.get(new GetObjectRequest("bucket", key), client);
+        assertThat(entry.isHit(), is(false));
+        assertThat(cache.contains("bucket", key), is(true));
+        assertArrayEquals(new byte[]{1, 2, 3}, FileUtils.readFileToByteArray(entry.getFile()));
+
+        long requests = server.getRequestCount();
+        entry = cache.get(new GetObjectRequest("bucket", key), client);
+        assertThat(entry.isHit(), is(true));
+        assertArrayEquals(new byte[]{1, 2, 3}, FileUtils.readFileToByteArray(entry.getFile()));
+        assertThat(server.getRequestCount(), is(requests));
+    }
+
+    @Test
+    public void revalidateAndUpdate() throws Exception {
+        String key = "repo/org/example/foo/maven-metadata.xml";
+        server.putObject("bucket", key, new byte[]{1});
+        LocalObjectCache cache = cache();
+        LocalObjectCache.Entry first = cache.get(new GetObjectRequest("bucket", key), client);
+
+        // unchanged: answered with 304 Not Modified
+        long requests = server.getRequestCount();
+        LocalObjectCache.Entry revalidated = cache.get(new GetObjectRequest("bucket", key), client);
+        assertThat(revalidated.isHit(), is(true));
+        assertThat(revalidated.getETag(), is(first.getETag()));
+        assertThat(server.getRequestCount(), is(requests + 1));
+
+        // changed: the new version replaces the old one
+        server.putObject("bucket", key, new byte[]{2});
+        LocalObjectCache.Entry changed = cache.get(new GetObjectRequest("bucket", key), client);
+        assertThat(changed.isHit(), is(false));
+        assertThat(changed.getETag(), not(first.getETag()));
+        assertArrayEquals(new byte[]{2}, FileUtils.readFileToByteArray(changed.getFile()));
+        assertThat(first.getFile().exists(), is(false));
+        assertThat(folder.getRoot().list((dir, name) -> name.endsWith(".data")).length, is(1));
+    }
+
+    @Test
+    public void evictDeletedObjects() throws Exception {
+        String key = "repo/org/example/foo/maven-metadata.xml";
+        server.putObject("bucket", key, new byte[]{1});
+        LocalObjectCache cache = cache();
+        cache.get(new GetObjectRequest("bucket", key), client);
+        client.deleteObject("bucket", key);
+        try {
+            cache.get(new GetObjectRequest("bucket", key), client);
+            fail("expected the deleted object to be missing");
+        } catch (ResourceDoesNotExistException e) {
+            // expected
+        }
+        assertThat(folder.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws IOException {
+        LocalObjectCache cache = new LocalObjectCache(folder.getRoot(), 250, null);
+        File oldest = createEntry(cache, "oldest", 100, 1000L);
+        File recent = createEntry(cache, "recent", 100, 3000L);
+        File older = createEntry(cache, "older", 100, 2000L);
+
+        cache.evict(null);
+
+        assertThat(oldest.exists(), is(false));
+        assertThat(new File(folder.getRoot(), "oldest.properties").exists(), is(false));
+        assertThat(older.exists(), is(true));
+        assertThat(recent.exists(), is(true));
+    }
+
+    @Test
+    public void keepObjectsLargerThanBudget() throws Exception {
+        LocalObjectCache cache = new LocalObjectCache(folder.getRoot(), 10, null);
+        server.putObject("bucket", "repo/large.jar", new byte[100]);
+        server.putObject("bucket", "repo/other.jar", new byte[50]);
+        LocalObjectCache.Entry large = cache.get(new GetObjectRequest("bucket", "repo/large.jar"), client);
+        assertArrayEquals(new byte[100], FileUtils.readFileToByteArray(large.getFile()));
+
+        // evicted once another object is stored
+        LocalObjectCache.Entry other = cache.get(new GetObjectRequest("bucket", "repo/other.jar"), client);
+        assertArrayEquals(new byte[50], FileUtils.readFileToByteArray(other.getFile()));
+        assertThat(large.getFile().exists(), is(false));
+    }
+
+    private LocalObjectCache cache() {
+        return new LocalObjectCache(folder.getRoot(), 1024, Pattern.compile(LocalObjectCache.DEFAULT_IMMUTABLE_PATTERN));
+    }
+
+    private File createEntry(LocalObjectCache cache, String name, int size, long lastModified) throws IOException {
+        File data = cache.getDataFile(name, "etag-of-" + name);
+        FileUtils.writeByteArrayToFile(data, new byte[size]);
+        FileUtils.writeStringToFile(new File(folder.getRoot(), name + ".properties"), "etag=etag-of-" + name, StandardCharsets.UTF_8);
+        data.setLastModified(lastModified);
+        return data;
+    }
+
+}
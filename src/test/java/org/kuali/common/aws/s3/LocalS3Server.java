@@ -0,0 +1,764 @@
+/**
+ * Copyright 2010-2012 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.common.aws.s3;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for an S3 compatible service, used to exercise the wagon without network access.
+ * <p>
+ * Supports path-style PUT, GET (including ranges and conditional requests), HEAD, DELETE, ListObjects (v1 and v2),
+ * CopyObject and multipart uploads, including UploadPartCopy. Latency and bandwidth can be configured to simulate remote endpoints.
+ * </p>
+ * <p>
+ * Failures can be injected for the next requests: <code>503 SlowDown</code> throttling, server errors of part uploads,
+ * and connections dropped in the middle of a download or an upload.
+ * </p>
+ */
+public class LocalS3Server {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final String STREAMING_PAYLOAD = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD";
+
+    private final Map<String, NavigableMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+    private final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong copyCount = new AtomicLong();
+    private final AtomicInteger truncatedDownloads = new AtomicInteger();
+    private final AtomicInteger failedPartUploads = new AtomicInteger();
+    private final AtomicInteger throttledRequests = new AtomicInteger();
+    private final AtomicInteger droppedUploads = new AtomicInteger();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private volatile long latencyMillis = 0;
+    private volatile long bandwidthBytesPerSecond = 0;
+    private volatile long truncateAfterBytes = 0;
+    private volatile long dropAfterBytes = 0;
+
+    public LocalS3Server start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    public String getEndpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    public void createBucket(String bucketName) {
+        buckets.putIfAbsent(bucketName, new ConcurrentSkipListMap<>());
+    }
+
+    public byte[] getObject(String bucketName, String key) {
+        StoredObject object = bucket(bucketName).get(key);
+        return object == null ? null : object.data;
+    }
+
+    public Map<String, String> getObjectMetadata(String bucketName, String key) {
+        StoredObject object = bucket(bucketName).get(key);
+        return object == null ? null : object.metadata;
+    }
+
+    public void putObject(String bucketName, String key, byte[] data) {
+        bucket(bucketName).put(key, new StoredObject(data, md5Hex(data), new HashMap<>()));
+    }
+
+    public int getObjectCount(String bucketName) {
+        return bucket(bucketName).size();
+    }
+
+    /**
+     * @return number of multipart uploads initiated and neither completed nor aborted
+     */
+    public int getUploadCount() {
+        return uploads.size();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return number of CopyObject and UploadPartCopy requests served
+     */
+    public long getCopyCount() {
+        return copyCount.get();
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    /**
+     * Cut the body of the next GET responses short, as if the connection dropped mid-transfer.
+     */
+    public void truncateDownloads(int count, long afterBytes) {
+        truncateAfterBytes = afterBytes;
+        truncatedDownloads.set(count);
+    }
+
+    /**
+     * Close the connection of the next object and part uploads after reading part of their content, without answering,
+     * as if the connection dropped mid-transfer.
+     */
+    public void dropUploads(int count, long afterBytes) {
+        dropAfterBytes = afterBytes;
+        droppedUploads.set(count);
+    }
+
+    /**
+     * Answer the next part uploads with a server error.
+     */
+    public void failPartUploads(int count) {
+        failedPartUploads.set(count);
+    }
+
+    /**
+     * Answer the next requests with <code>503 SlowDown</code>, as S3 does when a prefix gets too many requests.
+     */
+    public void throttleRequests(int count) {
+        throttledRequests.set(count);
+    }
+
+    private NavigableMap<String, StoredObject> bucket(String bucketName) {
+        NavigableMap<String, StoredObject> bucket = buckets.get(bucketName);
+        return bucket == null ? new ConcurrentSkipListMap<>() : bucket;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            delay(latencyMillis);
+            if (throttledRequests.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+                drain(exchange);
+                sendError(exchange, 503, "SlowDown");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String[] parts = path.substring(1).split("/", 2);
+            String bucketName = parts[0];
+            String key = parts.length > 1 ? parts[1] : "";
+            String method = exchange.getRequestMethod();
+            if (!"PUT".equals(method) && !"POST".equals(method)) {
+                // the server closes connections whose request was not read to the end once a response without a body is sent
+                drain(exchange);
+            }
+            if (key.isEmpty()) {
+                handleBucket(exchange, method, bucketName, query);
+            } else if (!buckets.containsKey(bucketName)) {
+                sendError(exchange, 404, "NoSuchBucket");
+            } else if (query.containsKey("uploads") || query.containsKey("uploadId")) {
+                handleMultipart(exchange, method, bucketName, key, query);
+            } else {
+                handleObject(exchange, method, bucketName, key);
+            }
+        } catch (DroppedConnectionException e) {
+            // closing the exchange without a response closes the connection
+        } catch (Exception e) {
+            if (exchange.getResponseCode() == -1) {
+                sendError(exchange, 500, "InternalError");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleBucket(HttpExchange exchange, String method, String bucketName, Map<String, String> query) throws IOException {
+        if ("PUT".equals(method)) {
+            drain(exchange);
+            createBucket(bucketName);
+            sendEmpty(exchange, 200);
+        } else if ("DELETE".equals(method)) {
+            buckets.remove(bucketName);
+            sendEmpty(exchange, 204);
+        } else if ("HEAD".equals(method)) {
+            sendEmpty(exchange, buckets.containsKey(bucketName) ? 200 : 404);
+        } else if (!buckets.containsKey(bucketName)) {
+            sendError(exchange, 404, "NoSuchBucket");
+        } else if ("GET".equals(method)) {
+            list(exchange, bucketName, query);
+        } else {
+            sendError(exchange, 405, "MethodNotAllowed");
+        }
+    }
+
+    private void handleObject(HttpExchange exchange, String method, String bucketName, String key) throws IOException {
+        NavigableMap<String, StoredObject> bucket = buckets.get(bucketName);
+        Headers requestHeaders = exchange.getRequestHeaders();
+        if ("PUT".equals(method) && requestHeaders.containsKey("x-amz-copy-source")) {
+            drain(exchange);
+            StoredObject source = copySource(requestHeaders);
+            if (source == null) {
+                sendError(exchange, 404, "NoSuchKey");
+                return;
+            }
+            Map<String, String> metadata = "REPLACE".equals(requestHeaders.getFirst("x-amz-metadata-directive"))
+                    ? userMetadata(requestHeaders)
+                    : source.metadata;
+            StoredObject object = new StoredObject(source.data, source.etag, metadata);
+            bucket.put(key, object);
+            copyCount.incrementAndGet();
+            sendXml(exchange, 200, "<CopyObjectResult>"
+                    + "<LastModified>" + formatIsoDate(object.lastModified) + "</LastModified>"
+                    + "<ETag>" + quote(object.etag) + "</ETag>"
+                    + "</CopyObjectResult>");
+        } else if ("PUT".equals(method)) {
+            byte[] data = readUpload(exchange);
+            if (!isContentMD5Valid(requestHeaders, data)) {
+                sendError(exchange, 400, "BadDigest");
+                return;
+            }
+            StoredObject existing = bucket.get(key);
+            String ifMatch = requestHeaders.getFirst("If-Match");
+            String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+            if ((ifMatch != null && (existing == null || !unquote(ifMatch).equals(existing.etag)))
+                    || ("*".equals(ifNoneMatch) && existing != null)) {
+                sendError(exchange, 412, "PreconditionFailed");
+                return;
+            }
+            StoredObject object = new StoredObject(data, md5Hex(data), userMetadata(requestHeaders));
+            bucket.put(key, object);
+            exchange.getResponseHeaders().set("ETag", quote(object.etag));
+            sendEmpty(exchange, 200);
+        } else if ("DELETE".equals(method)) {
+            bucket.remove(key);
+            sendEmpty(exchange, 204);
+        } else if ("GET".equals(method) || "HEAD".equals(method)) {
+            StoredObject object = bucket.get(key);
+            if (object == null) {
+                sendError(exchange, 404, "NoSuchKey");
+                return;
+            }
+            String ifMatch = requestHeaders.getFirst("If-Match");
+            if (ifMatch != null && !unquote(ifMatch).equals(object.etag)) {
+                sendError(exchange, 412, "PreconditionFailed");
+                return;
+            }
+            String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+            String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+            boolean notModified = ifNoneMatch != null
+                    ? unquote(ifNoneMatch).equals(object.etag)
+                    : ifModifiedSince != null && object.lastModified / 1000 <= parseHttpDate(ifModifiedSince) / 1000;
+            if (notModified) {
+                exchange.getResponseHeaders().set("ETag", quote(object.etag));
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            long start = 0;
+            long end = object.data.length - 1;
+            int status = 200;
+            String range = requestHeaders.getFirst("Range");
+            Headers responseHeaders = exchange.getResponseHeaders();
+            if (range != null) {
+                Matcher matcher = RANGE.matcher(range);
+                if (matcher.matches()) {
+                    if (matcher.group(1).isEmpty()) {
+                        start = Math.max(0, object.data.length - Long.parseLong(matcher.group(2)));
+                    } else {
+                        start = Long.parseLong(matcher.group(1));
+                        if (!matcher.group(2).isEmpty()) {
+                            end = Math.min(end, Long.parseLong(matcher.group(2)));
+                        }
+                    }
+                    if (start > end && object.data.length > 0) {
+                        sendError(exchange, 416, "InvalidRange");
+                        return;
+                    }
+                    status = 206;
+                    responseHeaders.set("Content-Range", "bytes " + start + "-" + end + "/" + object.data.length);
+                }
+            }
+            long length = Math.max(0, end - start + 1);
+            responseHeaders.set("ETag", quote(object.etag));
+            responseHeaders.set("Last-Modified", formatHttpDate(object.lastModified));
+            responseHeaders.set("Accept-Ranges", "bytes");
+            for (Map.Entry<String, String> entry : object.metadata.entrySet()) {
+                responseHeaders.set(entry.getKey(), entry.getValue());
+            }
+            if ("HEAD".equals(method)) {
+                responseHeaders.set("Content-Length", Long.toString(length));
+                exchange.sendResponseHeaders(status, -1);
+            } else {
+                exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+                if (truncatedDownloads.getAndUpdate(count -> Math.max(0, count - 1)) > 0 && truncateAfterBytes < length) {
+                    writeBody(exchange.getResponseBody(), object.data, (int) start, (int) truncateAfterBytes);
+                    throw new DroppedConnectionException(truncateAfterBytes);
+                }
+                writeBody(exchange.getResponseBody(), object.data, (int) start, (int) length);
+            }
+        } else {
+            sendError(exchange, 405, "MethodNotAllowed");
+        }
+    }
+
+    private void handleMultipart(HttpExchange exchange, String method, String bucketName, String key, Map<String, String> query) throws IOException {
+        if ("POST".equals(method) && query.containsKey("uploads")) {
+            drain(exchange);
+            String uploadId = UUID.randomUUID().toString();
+            uploads.put(uploadId, new MultipartUpload(bucketName, key, userMetadata(exchange.getRequestHeaders())));
+            sendXml(exchange, 200, "<InitiateMultipartUploadResult>"
+                    + "<Bucket>" + escape(bucketName) + "</Bucket>"
+                    + "<Key>" + escape(key) + "</Key>"
+                    + "<UploadId>" + uploadId + "</UploadId>"
+                    + "</InitiateMultipartUploadResult>");
+            return;
+        }
+        String uploadId = query.get("uploadId");
+        MultipartUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            drain(exchange);
+            sendError(exchange, 404, "NoSuchUpload");
+        } else if ("PUT".equals(method) && exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+            drain(exchange);
+            StoredObject source = copySource(exchange.getRequestHeaders());
+            if (source == null) {
+                sendError(exchange, 404, "NoSuchKey");
+                return;
+            }
+            byte[] data = source.data;
+            String range = exchange.getRequestHeaders().getFirst("x-amz-copy-source-range");
+            if (range != null) {
+                Matcher matcher = RANGE.matcher(range);
+                if (!matcher.matches() || matcher.group(1).isEmpty() || matcher.group(2).isEmpty()) {
+                    sendError(exchange, 400, "InvalidArgument");
+                    return;
+                }
+                data = Arrays.copyOfRange(data, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) + 1);
+            }
+            StoredObject part = new StoredObject(data, md5Hex(data), new HashMap<>());
+            upload.parts.put(Integer.parseInt(query.get("partNumber")), part);
+            copyCount.incrementAndGet();
+            sendXml(exchange, 200, "<CopyPartResult>"
+                    + "<LastModified>" + formatIsoDate(part.lastModified) + "</LastModified>"
+                    + "<ETag>" + quote(part.etag) + "</ETag>"
+                    + "</CopyPartResult>");
+        } else if ("PUT".equals(method)) {
+            byte[] data = readUpload(exchange);
+            if (failedPartUploads.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+                sendError(exchange, 500, "InternalError");
+                return;
+            }
+            if (!isContentMD5Valid(exchange.getRequestHeaders(), data)) {
+                sendError(exchange, 400, "BadDigest");
+                return;
+            }
+            String etag = md5Hex(data);
+            upload.parts.put(Integer.parseInt(query.get("partNumber")), new StoredObject(data, etag, new HashMap<>()));
+            exchange.getResponseHeaders().set("ETag", quote(etag));
+            sendEmpty(exchange, 200);
+        } else if ("GET".equals(method)) {
+            StringBuilder xml = new StringBuilder("<ListPartsResult>"
+                    + "<Bucket>" + escape(bucketName) + "</Bucket>"
+                    + "<Key>" + escape(key) + "</Key>"
+                    + "<UploadId>" + uploadId + "</UploadId>"
+                    + "<MaxParts>10000</MaxParts>"
+                    + "<IsTruncated>false</IsTruncated>");
+            for (Map.Entry<Integer, StoredObject> part : upload.parts.entrySet()) {
+                xml.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber>")
+                        .append("<LastModified>").append(formatIsoDate(part.getValue().lastModified)).append("</LastModified>")
+                        .append("<ETag>").append(quote(part.getValue().etag)).append("</ETag>")
+                        .append("<Size>").append(part.getValue().data.length).append("</Size></Part>");
+            }
+            sendXml(exchange, 200, xml.append("</ListPartsResult>").toString());
+        } else if ("DELETE".equals(method)) {
+            uploads.remove(uploadId);
+            sendEmpty(exchange, 204);
+        } else if ("POST".equals(method)) {
+            String body = new String(readBody(exchange), StandardCharsets.UTF_8);
+            Matcher matcher = Pattern.compile("<PartNumber>(\\d+)</PartNumber>").matcher(body);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            ByteArrayOutputStream digests = new ByteArrayOutputStream();
+            int count = 0;
+            while (matcher.find()) {
+                StoredObject part = upload.parts.get(Integer.parseInt(matcher.group(1)));
+                if (part == null) {
+                    sendError(exchange, 400, "InvalidPart");
+                    return;
+                }
+                data.write(part.data);
+                digests.write(md5(part.data));
+                count++;
+            }
+            String etag = md5Hex(digests.toByteArray()) + "-" + count;
+            uploads.remove(uploadId);
+            buckets.get(bucketName).put(key, new StoredObject(data.toByteArray(), etag, upload.metadata));
+            sendXml(exchange, 200, "<CompleteMultipartUploadResult>"
+                    + "<Location>" + getEndpoint() + "/" + escape(bucketName) + "/" + escape(key) + "</Location>"
+                    + "<Bucket>" + escape(bucketName) + "</Bucket>"
+                    + "<Key>" + escape(key) + "</Key>"
+                    + "<ETag>" + quote(etag) + "</ETag>"
+                    + "</CompleteMultipartUploadResult>");
+        } else {
+            sendError(exchange, 405, "MethodNotAllowed");
+        }
+    }
+
+    /**
+     * @return the object named by the <code>x-amz-copy-source</code> header, or null if it does not exist
+     */
+    private StoredObject copySource(Headers headers) throws UnsupportedEncodingException {
+        String source = URLDecoder.decode(headers.getFirst("x-amz-copy-source").replace("+", "%2B"), "UTF-8");
+        String[] parts = (source.startsWith("/") ? source.substring(1) : source).split("/", 2);
+        return parts.length < 2 ? null : bucket(parts[0]).get(parts[1]);
+    }
+
+    private void list(HttpExchange exchange, String bucketName, Map<String, String> query) throws IOException {
+        boolean v2 = "2".equals(query.get("list-type"));
+        boolean urlEncoded = "url".equals(query.get("encoding-type"));
+        String prefix = query.getOrDefault("prefix", "");
+        String delimiter = query.get("delimiter");
+        int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+        String marker = v2
+                ? query.getOrDefault("continuation-token", query.getOrDefault("start-after", ""))
+                : query.getOrDefault("marker", "");
+
+        List<Map.Entry<String, StoredObject>> contents = new ArrayList<>();
+        TreeSet<String> commonPrefixes = new TreeSet<>();
+        String last = null;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : buckets.get(bucketName).tailMap(marker, false).entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                if (key.compareTo(prefix) > 0) {
+                    break;
+                }
+                continue;
+            }
+            String commonPrefix = null;
+            if (delimiter != null) {
+                int index = key.indexOf(delimiter, prefix.length());
+                if (index >= 0) {
+                    commonPrefix = key.substring(0, index + delimiter.length());
+                }
+            }
+            if (commonPrefix != null && commonPrefixes.contains(commonPrefix)) {
+                last = key;
+                continue;
+            }
+            if (contents.size() + commonPrefixes.size() >= maxKeys) {
+                truncated = true;
+                break;
+            }
+            if (commonPrefix != null) {
+                commonPrefixes.add(commonPrefix);
+            } else {
+                contents.add(entry);
+            }
+            last = key;
+        }
+
+        StringBuilder xml = new StringBuilder("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        xml.append("<Name>").append(escape(bucketName)).append("</Name>");
+        xml.append("<Prefix>").append(encode(prefix, urlEncoded)).append("</Prefix>");
+        xml.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        if (delimiter != null) {
+            xml.append("<Delimiter>").append(encode(delimiter, urlEncoded)).append("</Delimiter>");
+        }
+        if (urlEncoded) {
+            xml.append("<EncodingType>url</EncodingType>");
+        }
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (v2) {
+            xml.append("<KeyCount>").append(contents.size() + commonPrefixes.size()).append("</KeyCount>");
+            if (query.containsKey("continuation-token")) {
+                xml.append("<ContinuationToken>").append(escape(query.get("continuation-token"))).append("</ContinuationToken>");
+            }
+            if (truncated) {
+                xml.append("<NextContinuationToken>").append(escape(last)).append("</NextContinuationToken>");
+            }
+        } else {
+            xml.append("<Marker>").append(encode(marker, urlEncoded)).append("</Marker>");
+            if (truncated) {
+                xml.append("<NextMarker>").append(encode(last, urlEncoded)).append("</NextMarker>");
+            }
+        }
+        for (Map.Entry<String, StoredObject> entry : contents) {
+            xml.append("<Contents>")
+                    .append("<Key>").append(encode(entry.getKey(), urlEncoded)).append("</Key>")
+                    .append("<LastModified>").append(formatIsoDate(entry.getValue().lastModified)).append("</LastModified>")
+                    .append("<ETag>").append(quote(entry.getValue().etag)).append("</ETag>")
+                    .append("<Size>").append(entry.getValue().data.length).append("</Size>")
+                    .append("<StorageClass>STANDARD</StorageClass>")
+                    .append("</Contents>");
+        }
+        for (String commonPrefix : commonPrefixes) {
+            xml.append("<CommonPrefixes><Prefix>").append(encode(commonPrefix, urlEncoded)).append("</Prefix></CommonPrefixes>");
+        }
+        sendXml(exchange, 200, xml.append("</ListBucketResult>").toString());
+    }
+
+    private void writeBody(OutputStream out, byte[] data, int offset, int length) throws IOException {
+        int chunk = 8192;
+        for (int position = offset; position < offset + length; position += chunk) {
+            int count = Math.min(chunk, offset + length - position);
+            out.write(data, position, count);
+            if (bandwidthBytesPerSecond > 0) {
+                delay(count * 1000L / bandwidthBytesPerSecond);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Read the content of an object or part upload.
+     */
+    private byte[] readUpload(HttpExchange exchange) throws IOException {
+        if (droppedUploads.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+            IOUtils.skip(exchange.getRequestBody(), dropAfterBytes);
+            throw new DroppedConnectionException(dropAfterBytes);
+        }
+        return readBody(exchange);
+    }
+
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        if (bandwidthBytesPerSecond > 0) {
+            delay(body.length * 1000L / bandwidthBytesPerSecond);
+        }
+        String contentSha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        return STREAMING_PAYLOAD.equals(contentSha256) ? decodeChunks(body) : body;
+    }
+
+    /**
+     * Strip the aws-chunked framing used by the SDK for signed streaming uploads over plain http.
+     */
+    private static byte[] decodeChunks(byte[] body) {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(body.length);
+        int position = 0;
+        while (position < body.length) {
+            int lineEnd = position;
+            while (lineEnd < body.length - 1 && !(body[lineEnd] == '\r' && body[lineEnd + 1] == '\n')) {
+                lineEnd++;
+            }
+            String header = new String(body, position, lineEnd - position, StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(header.split(";", 2)[0].trim(), 16);
+            if (size == 0) {
+                break;
+            }
+            decoded.write(body, lineEnd + 2, size);
+            position = lineEnd + 2 + size + 2;
+        }
+        return decoded.toByteArray();
+    }
+
+    private static boolean isContentMD5Valid(Headers headers, byte[] data) {
+        String contentMD5 = headers.getFirst("Content-MD5");
+        return contentMD5 == null || contentMD5.equals(Base64.encodeBase64String(DigestUtils.md5(data)));
+    }
+
+    private static void drain(HttpExchange exchange) throws IOException {
+        IOUtils.toByteArray(exchange.getRequestBody());
+    }
+
+    private static Map<String, String> userMetadata(Headers headers) {
+        Map<String, String> metadata = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (name.startsWith("x-amz-meta-") || name.equals("content-type") || name.equals("content-encoding")) {
+                metadata.put(name, header.getValue().get(0));
+            }
+        }
+        return metadata;
+    }
+
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code) throws IOException {
+        sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + code + "</Message>"
+                + "<RequestId>" + UUID.randomUUID() + "</RequestId></Error>");
+    }
+
+    private static void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                String[] keyValue = pair.split("=", 2);
+                query.put(URLDecoder.decode(keyValue[0], "UTF-8"),
+                        keyValue.length > 1 ? URLDecoder.decode(keyValue[1], "UTF-8") : "");
+            }
+        }
+        return query;
+    }
+
+    private static String encode(String value, boolean urlEncoded) throws UnsupportedEncodingException {
+        return urlEncoded
+                ? URLEncoder.encode(value, "UTF-8").replace("+", "%20")
+                : escape(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String quote(String etag) {
+        return "\"" + etag + "\"";
+    }
+
+    private static String unquote(String etag) {
+        return etag.replace("\"", "");
+    }
+
+    private static String formatIsoDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static String formatHttpDate(long time) {
+        return httpDateFormat().format(new Date(time));
+    }
+
+    private static long parseHttpDate(String value) {
+        try {
+            return httpDateFormat().parse(value).getTime();
+        } catch (java.text.ParseException e) {
+            return 0;
+        }
+    }
+
+    private static SimpleDateFormat httpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String md5Hex(byte[] data) {
+        return Hex.encodeHexString(md5(data));
+    }
+
+    private static void delay(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class DroppedConnectionException extends IOException {
+        DroppedConnectionException(long afterBytes) {
+            super("dropped connection after [" + afterBytes + "] bytes");
+        }
+    }
+
+    private static class StoredObject {
+        private final byte[] data;
+        private final String etag;
+        private final Map<String, String> metadata;
+        private final long lastModified = System.currentTimeMillis();
+
+        StoredObject(byte[] data, String etag, Map<String, String> metadata) {
+            this.data = data;
+            this.etag = etag;
+            this.metadata = metadata;
+        }
+    }
+
+    private static class MultipartUpload {
+        private final String bucketName;
+        private final String key;
+        private final Map<String, String> metadata;
+        private final NavigableMap<Integer, StoredObject> parts = new ConcurrentSkipListMap<>();
+
+        MultipartUpload(String bucketName, String key, Map<String, String> metadata) {
+            this.bucketName = bucketName;
+            this.key = key;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.kuali.common.aws.s3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class NegativeLookupCacheTest {
+
+    private static final Pattern RELEASES = Pattern.compile(LocalObjectCache.DEFAULT_IMMUTABLE_PATTERN);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong clock = new AtomicLong(1_000_000L);
+
+    @Test
+    public void expireAfterTtl() {
+        NegativeLookupCache cache = cache(null);
+        cache.recordMissing("bucket", "repo/org/example/maven-metadata.xml");
+        clock.addAndGet(999);
+        assertThat(cache.isMissing("bucket", "repo/org/example/maven-metadata.xml"), is(true));
+        assertThat(cache.isMissing("other", "repo/org/example/maven-metadata.xml"), is(false));
+        clock.addAndGet(1);
+        assertThat(cache.isMissing("bucket", "repo/org/example/maven-metadata.xml"), is(false));
+    }
+
+    @Test
+    public void longerTtlOfReleases() {
+        NegativeLookupCache cache = cache(null);
+        cache.recordMissing("bucket", "repo/org/example/1.0/example-1.0.pom");
+        cache.recordMissing("bucket", "repo/org/example/1.0-SNAPSHOT/example-1.0-SNAPSHOT.pom");
+        clock.addAndGet(5000);
+        assertThat(cache.isMissing("bucket", "repo/org/example/1.0/example-1.0.pom"), is(true));
+        assertThat(cache.isMissing("bucket", "repo/org/example/1.0-SNAPSHOT/example-1.0-SNAPSHOT.pom"), is(false));
+    }
+
+    @Test
+    public void invalidateOnUpload() {
+        NegativeLookupCache cache = cache(folder.getRoot());
+        cache.recordMissing("bucket", "repo/org/example/1.0/example-1.0.pom");
+        cache.invalidate("bucket", "repo/org/example/1.0/example-1.0.pom");
+        assertThat(cache.isMissing("bucket", "repo/org/example/1.0/example-1.0.pom"), is(false));
+        assertThat(cache(folder.getRoot()).isMissing("bucket", "repo/org/example/1.0/example-1.0.pom"), is(false));
+    }
+
+    @Test
+    public void sharedOnDisk() {
+        cache(folder.getRoot()).recordMissing("bucket", "repo/org/example/maven-metadata.xml");
+        // another build, with nothing in memory
+        NegativeLookupCache cache = cache(folder.getRoot());
+        assertThat(cache.isMissing("bucket", "repo/org/example/maven-metadata.xml"), is(true));
+        clock.addAndGet(1000);
+        assertThat(cache(folder.getRoot()).isMissing("bucket", "repo/org/example/maven-metadata.xml"), is(false));
+    }
+
+    @Test
+    public void separateEndpoints() {
+        Map<String, Long> missing = new HashMap<>();
+        new NegativeLookupCache(folder.getRoot(), "https://s3.example.org", 1000, 10_000, RELEASES, missing, clock::get)
+                .recordMissing("bucket", "repo/org/example/maven-metadata.xml");
+        NegativeLookupCache other = new NegativeLookupCache(folder.getRoot(), "https://s3.example.com", 1000, 10_000, RELEASES, missing, clock::get);
+        assertThat(other.isMissing("bucket", "repo/org/example/maven-metadata.xml"), is(false));
+        // another build, with nothing in memory
+        assertThat(cache(folder.getRoot()).isMissing("bucket", "repo/org/example/maven-metadata.xml"), is(false));
+        assertThat(new NegativeLookupCache(folder.getRoot(), "https://s3.example.org", 1000, 10_000, RELEASES, new HashMap<>(), clock::get)
+                .isMissing("bucket", "repo/org/example/maven-metadata.xml"), is(true));
+    }
+
+    private NegativeLookupCache cache(File directory) {
+        return new NegativeLookupCache(directory, null, 1000, 10_000, RELEASES, new HashMap<>(), clock::get);
+    }
+}
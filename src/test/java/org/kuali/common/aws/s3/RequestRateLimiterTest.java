@@ -0,0 +1,78 @@
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListBucketsRequest;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RequestRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void burstThenRate() {
+        AtomicLong clock = new AtomicLong();
+        RequestRateLimiter.TokenBucket bucket = new RequestRateLimiter.TokenBucket(10, 3, clock::get);
+        assertThat(bucket.reserve(), is(0L));
+        assertThat(bucket.reserve(), is(0L));
+        assertThat(bucket.reserve(), is(0L));
+        // callers queue up behind each other
+        assertThat(bucket.reserve(), is(SECOND / 10));
+        assertThat(bucket.reserve(), is(2 * SECOND / 10));
+
+        // a quiet period refills the bucket up to its capacity only
+        clock.addAndGet(10 * SECOND);
+        for (int i = 0; i < 3; i++) {
+            assertThat(bucket.reserve(), is(0L));
+        }
+        assertThat(bucket.reserve(), is(SECOND / 10));
+    }
+
+    @Test
+    public void bucketNames() {
+        assertThat(RequestRateLimiter.getBucketName(new GetObjectRequest("bucket", "key")), is("bucket"));
+        assertThat(RequestRateLimiter.getBucketName(new CopyObjectRequest("source", "key", "target", "key")), is("target"));
+        assertThat(RequestRateLimiter.getBucketName(new ListBucketsRequest()), is(""));
+        assertThat(RequestRateLimiter.getBucketName(software.amazon.awssdk.services.s3.model.PutObjectRequest.builder()
+                .bucket("bucket").key("key").build()), is("bucket"));
+        assertThat(RequestRateLimiter.getBucketName(software.amazon.awssdk.services.s3.model.CopyObjectRequest.builder()
+                .sourceBucket("source").sourceKey("key").destinationBucket("target").destinationKey("key").build()), is("target"));
+        assertThat(RequestRateLimiter.getBucketName(software.amazon.awssdk.services.s3.model.ListBucketsRequest.builder()
+                .build()), is(""));
+    }
+
+    @Test
+    public void limitRequests() throws Exception {
+        LocalS3Server server = new LocalS3Server().start();
+        try {
+            server.createBucket("limited");
+            AmazonS3 client = AmazonS3ClientBuilder.standard()
+                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+                    .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                    .withRequestHandlers(new RequestRateLimiter(20, 1))
+                    .withPathStyleAccessEnabled(true)
+                    .build();
+            long start = System.nanoTime();
+            for (int i = 0; i < 6; i++) {
+                client.putObject("limited", "repo/" + i + ".pom", "<project/>");
+            }
+            // the first request passes right away, the other five wait 50 ms each
+            assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(240), is(true));
+            assertThat(server.getObjectCount("limited"), is(6));
+            client.shutdown();
+        } finally {
+            server.stop();
+        }
+    }
+}
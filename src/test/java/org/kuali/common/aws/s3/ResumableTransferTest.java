@@ -0,0 +1,163 @@
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.wagon.TransferFailedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+public class ResumableTransferTest {
+
+    private static final int PART_SIZE = MultipartUploadOutputStream.MIN_PART_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalS3Server server;
+    private AmazonS3 client;
+
+    @Before
+    public void start() throws Exception {
+        server = new LocalS3Server().start();
+        server.createBucket("bucket");
+        client = AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+                .withPathStyleAccessEnabled(true)
+                .build();
+    }
+
+    @After
+    public void stop() {
+        client.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void resumeDownloadAfterDrop() throws Exception {
+        byte[] data = randomBytes(1000000);
+        server.putObject("bucket", "repo/example.jar", data);
+        server.truncateDownloads(1, 300000);
+
+        File destination = new File(folder.getRoot(), "example.jar");
+        ObjectMetadata metadata = downloader(3).download(new GetObjectRequest("bucket", "repo/example.jar"), destination);
+
+        assertArrayEquals(data, FileUtils.readFileToByteArray(destination));
+        assertThat(metadata.getContentLength(), is((long) data.length));
+        assertThat(server.getRequestCount(), is(2L));
+        assertThat(new File(folder.getRoot(), "resume").list().length, is(0));
+    }
+
+    @Test
+    public void resumeDownloadInNextCall() throws Exception {
+        byte[] data = randomBytes(1000000);
+        server.putObject("bucket", "repo/example.jar", data);
+        server.truncateDownloads(1, 300000);
+        File destination = new File(folder.getRoot(), "example.jar");
+        try {
+            downloader(1).download(new GetObjectRequest("bucket", "repo/example.jar"), destination);
+            fail("expected dropped download to fail");
+        } catch (TransferFailedException e) {
+            assertThat(destination.exists(), is(false));
+        }
+
+        downloader(1).download(new GetObjectRequest("bucket", "repo/example.jar"), destination);
+
+        assertArrayEquals(data, FileUtils.readFileToByteArray(destination));
+    }
+
+    @Test
+    public void restartDownloadOfReplacedObject() throws Exception {
+        server.putObject("bucket", "repo/example.jar", randomBytes(1000000));
+        server.truncateDownloads(1, 300000);
+        File destination = new File(folder.getRoot(), "example.jar");
+        try {
+            downloader(1).download(new GetObjectRequest("bucket", "repo/example.jar"), destination);
+            fail("expected dropped download to fail");
+        } catch (TransferFailedException e) {
+            // partial download kept
+        }
+        byte[] replaced = randomBytes(500000);
+        server.putObject("bucket", "repo/example.jar", replaced);
+
+        downloader(1).download(new GetObjectRequest("bucket", "repo/example.jar"), destination);
+
+        assertArrayEquals(replaced, FileUtils.readFileToByteArray(destination));
+    }
+
+    @Test
+    public void resumeUploadInNextCall() throws Exception {
+        byte[] data = randomBytes(PART_SIZE * 2 + 1000);
+        File source = folder.newFile("example.jar");
+        FileUtils.writeByteArrayToFile(source, data);
+        server.failPartUploads(1);
+        try {
+            uploader(1).upload(new PutObjectRequest("bucket", "repo/example.jar", source), "digest");
+            fail("expected failed part upload to fail");
+        } catch (TransferFailedException e) {
+            assertThat(server.getObject("bucket", "repo/example.jar") == null, is(true));
+        }
+
+        long requests = server.getRequestCount();
+        uploader(1).upload(new PutObjectRequest("bucket", "repo/example.jar", source), "digest");
+
+        assertArrayEquals(data, server.getObject("bucket", "repo/example.jar"));
+        // list parts, upload the failed part, complete
+        assertThat(server.getRequestCount() - requests, is(3L));
+    }
+
+    @Test
+    public void restartUploadOfOtherContent() throws Exception {
+        File source = folder.newFile("example.jar");
+        FileUtils.writeByteArrayToFile(source, randomBytes(PART_SIZE + 1000));
+        server.failPartUploads(1);
+        try {
+            uploader(1).upload(new PutObjectRequest("bucket", "repo/example.jar", source), "digest");
+            fail("expected failed part upload to fail");
+        } catch (TransferFailedException e) {
+            // parts kept
+        }
+        byte[] other = randomBytes(PART_SIZE + 2000);
+        FileUtils.writeByteArrayToFile(source, other);
+
+        uploader(3).upload(new PutObjectRequest("bucket", "repo/example.jar", source), "other digest");
+
+        assertArrayEquals(other, server.getObject("bucket", "repo/example.jar"));
+        // the upload of the first content was aborted
+        assertThat(server.getUploadCount(), is(0));
+    }
+
+    private ResumableDownloader downloader(int attempts) {
+        return new ResumableDownloader(client, new File(folder.getRoot(), "resume"), attempts);
+    }
+
+    private ResumableUploader uploader(int attempts) {
+        return new ResumableUploader(client, new File(folder.getRoot(), "resume"), PART_SIZE, 1, attempts);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,106 @@
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import org.junit.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class S3ClientRegistryTest {
+
+    @Test
+    public void sameKeySharesClient() {
+        AmazonS3 client = S3ClientRegistry.getClient(key("https://s3.example.org", "secret", "50"), S3ClientRegistryTest::createClient);
+        AmazonS3 other = S3ClientRegistry.getClient(key("https://s3.example.org", "secret", "50"), S3ClientRegistryTest::createClient);
+        assertThat(other, sameInstance(client));
+    }
+
+    @Test
+    public void differentEndpoint() {
+        AmazonS3 client = S3ClientRegistry.getClient(key("https://s3.example.org", "secret", "50"), S3ClientRegistryTest::createClient);
+        AmazonS3 other = S3ClientRegistry.getClient(key("https://s3.example.com", "secret", "50"), S3ClientRegistryTest::createClient);
+        assertThat(other, not(sameInstance(client)));
+    }
+
+    @Test
+    public void differentCredentials() {
+        AmazonS3 client = S3ClientRegistry.getClient(key("https://s3.example.org", "secret", "50"), S3ClientRegistryTest::createClient);
+        AmazonS3 other = S3ClientRegistry.getClient(key("https://s3.example.org", "other secret", "50"), S3ClientRegistryTest::createClient);
+        assertThat(other, not(sameInstance(client)));
+    }
+
+    @Test
+    public void differentSettings() {
+        AmazonS3 client = S3ClientRegistry.getClient(key("https://s3.example.org", "secret", "50"), S3ClientRegistryTest::createClient);
+        AmazonS3 other = S3ClientRegistry.getClient(key("https://s3.example.org", "secret", "100"), S3ClientRegistryTest::createClient);
+        assertThat(other, not(sameInstance(client)));
+    }
+
+    @Test
+    public void shutDownOnLastRelease() {
+        S3ClientRegistry.ClientKey key = key("https://s3.example.net", "secret", "50");
+        int count = S3ClientRegistry.getClientCount();
+        AmazonS3 client = S3ClientRegistry.getClient(key, S3ClientRegistryTest::createClient);
+        assertThat(S3ClientRegistry.getClient(key, S3ClientRegistryTest::createClient), sameInstance(client));
+        assertThat(S3ClientRegistry.getClientCount(), is(count + 1));
+
+        S3ClientRegistry.releaseClient(key);
+        assertThat(S3ClientRegistry.getClientCount(), is(count + 1));
+        S3ClientRegistry.releaseClient(key);
+        assertThat(S3ClientRegistry.getClientCount(), is(count));
+
+        AmazonS3 other = S3ClientRegistry.getClient(key, S3ClientRegistryTest::createClient);
+        assertThat(other, not(sameInstance(client)));
+        S3ClientRegistry.releaseClient(key);
+        // releasing an unknown client has no effect
+        S3ClientRegistry.releaseClient(key);
+        assertThat(S3ClientRegistry.getClientCount(), is(count));
+    }
+
+    @Test
+    public void shareAsyncClients() {
+        S3ClientRegistry.ClientKey key = key("https://s3.example.net", "secret", "50");
+        int count = S3ClientRegistry.getClientCount();
+        S3AsyncClient client = S3ClientRegistry.getAsyncClient(key, S3ClientRegistryTest::createAsyncClient);
+        assertThat(S3ClientRegistry.getAsyncClient(key, S3ClientRegistryTest::createAsyncClient), sameInstance(client));
+        assertThat(S3ClientRegistry.getClientCount(), is(count + 1));
+        S3ClientRegistry.releaseAsyncClient(key);
+        S3ClientRegistry.releaseAsyncClient(key);
+        assertThat(S3ClientRegistry.getClientCount(), is(count));
+    }
+
+    private static S3ClientRegistry.ClientKey key(String endpoint, String secretKey, String maxConnections) {
+        Map<String, String> settings = Collections.singletonMap("maxConnections", maxConnections);
+        return new S3ClientRegistry.ClientKey(endpoint, null, "access", secretKey, settings);
+    }
+
+    private static S3AsyncClient createAsyncClient() {
+        return S3AsyncClient.builder()
+                .endpointOverride(URI.create("http://localhost:1"))
+                .region(Region.US_EAST_1)
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("access", "secret")))
+                .build();
+    }
+
+    private static AmazonS3 createClient() {
+        return AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration("http://localhost:1", "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                .build();
+    }
+
+}
@@ -0,0 +1,189 @@
+package org.kuali.common.aws.s3;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.junit.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.net.SocketException;
+import java.net.URI;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletionException;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class S3RetryPolicyTest {
+
+    // draws the ceiling, to make the backoff deterministic
+    private final S3RetryPolicy policy = new S3RetryPolicy(100, 500, 20000, bound -> bound);
+
+    @Test
+    public void retryTransientFailures() {
+        assertThat(policy.shouldRetry(null, serviceException(503, "SlowDown"), 0), is(true));
+        assertThat(policy.shouldRetry(null, serviceException(429, "TooManyRequests"), 0), is(true));
+        assertThat(policy.shouldRetry(null, serviceException(500, "InternalError"), 0), is(true));
+        assertThat(policy.shouldRetry(null, serviceException(400, "RequestTimeout"), 0), is(true));
+        assertThat(policy.shouldRetry(null, new SdkClientException("timeout", new SocketTimeoutException()), 0), is(true));
+        assertThat(policy.shouldRetry(null, new SdkClientException("reset", new SocketException("Connection reset")), 0), is(true));
+    }
+
+    @Test
+    public void failFastOnClientErrors() {
+        assertThat(policy.shouldRetry(null, serviceException(403, "AccessDenied"), 0), is(false));
+        assertThat(policy.shouldRetry(null, serviceException(404, "NoSuchKey"), 0), is(false));
+        assertThat(policy.shouldRetry(null, serviceException(400, "InvalidArgument"), 0), is(false));
+    }
+
+    @Test
+    public void backOffExponentiallyFromSeparateBases() {
+        assertThat(policy.delayBeforeNextRetry(null, serviceException(500, "InternalError"), 0), is(100L));
+        assertThat(policy.delayBeforeNextRetry(null, serviceException(500, "InternalError"), 3), is(800L));
+        assertThat(policy.delayBeforeNextRetry(null, serviceException(503, "SlowDown"), 0), is(500L));
+        assertThat(policy.delayBeforeNextRetry(null, serviceException(503, "SlowDown"), 3), is(4000L));
+        assertThat(policy.delayBeforeNextRetry(null, serviceException(503, "SlowDown"), 10), is(20000L));
+        assertThat(policy.delayBeforeNextRetry(null, serviceException(503, "SlowDown"), 100), is(20000L));
+    }
+
+    @Test
+    public void jitterStaysBelowCeiling() {
+        S3RetryPolicy random = new S3RetryPolicy(100, 500, 20000);
+        for (int i = 0; i < 1000; i++) {
+            long delay = random.delayBeforeNextRetry(null, serviceException(503, "SlowDown"), 2);
+            assertThat(delay >= 0 && delay <= 2000, is(true));
+        }
+    }
+
+    @Test
+    public void retryThrottledRequests() throws Exception {
+        LocalS3Server server = new LocalS3Server().start();
+        try {
+            server.createBucket("bucket");
+            AmazonS3 client = client(server, new S3RetryPolicy(1, 1, 10).toRetryPolicy(4));
+            server.throttleRequests(3);
+            client.putObject("bucket", "repo/example.pom", "<project/>");
+            assertThat(server.getObjectCount("bucket"), is(1));
+            assertThat(server.getRequestCount(), is(4L));
+
+            server.throttleRequests(4);
+            try {
+                client.putObject("bucket", "repo/example.pom", "<project/>");
+                throw new AssertionError("expected the request to fail after 4 attempts");
+            } catch (AmazonServiceException e) {
+                WagonException failure = S3Utils.toWagonException("bucket", "repo/example.pom", e);
+                assertThat(failure, instanceOf(TransferFailedException.class));
+                assertThat(failure.getMessage(), containsString("throttling"));
+            }
+            client.shutdown();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void classifySdk2Failures() {
+        assertThat(S3RetryPolicy.isThrottling(sdk2Exception(503, "SlowDown")), is(true));
+        assertThat(S3RetryPolicy.isRetryable(sdk2Exception(500, "InternalError")), is(true));
+        assertThat(S3RetryPolicy.isRetryable(sdk2Exception(400, "RequestTimeout")), is(true));
+        assertThat(S3RetryPolicy.isRetryable(software.amazon.awssdk.core.exception.SdkClientException.create("reset",
+                new SocketException("Connection reset"))), is(true));
+        assertThat(S3RetryPolicy.isRetryable(sdk2Exception(403, "AccessDenied")), is(false));
+        assertThat(S3RetryPolicy.isRetryable(sdk2Exception(404, "NoSuchKey")), is(false));
+    }
+
+    @Test
+    public void retryThrottledSdk2Requests() throws Exception {
+        LocalS3Server server = new LocalS3Server().start();
+        try {
+            server.createBucket("bucket");
+            S3AsyncClient client = S3AsyncClient.builder()
+                    .endpointOverride(URI.create(server.getEndpoint()))
+                    .region(Region.US_EAST_1)
+                    .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("access", "secret")))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
+                    .overrideConfiguration(ClientOverrideConfiguration.builder()
+                            .retryPolicy(new S3RetryPolicy(1, 1, 10).toSdk2RetryPolicy(4))
+                            .build())
+                    .build();
+            PutObjectRequest request = PutObjectRequest.builder().bucket("bucket").key("repo/example.pom").build();
+            server.throttleRequests(3);
+            client.putObject(request, AsyncRequestBody.fromString("<project/>")).join();
+            assertThat(server.getObjectCount("bucket"), is(1));
+            assertThat(server.getRequestCount(), is(4L));
+
+            server.throttleRequests(4);
+            try {
+                client.putObject(request, AsyncRequestBody.fromString("<project/>")).join();
+                throw new AssertionError("expected the request to fail after 4 attempts");
+            } catch (CompletionException e) {
+                WagonException failure = S3Utils.toWagonException("bucket", "repo/example.pom", (Exception) e.getCause());
+                assertThat(failure, instanceOf(TransferFailedException.class));
+                assertThat(failure.getMessage(), containsString("throttling"));
+            }
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void mapSdk2Failures() {
+        assertThat(S3Utils.toWagonException("bucket", "repo/example.pom", sdk2Exception(403, "AccessDenied")),
+                instanceOf(AuthorizationException.class));
+        assertThat(S3Utils.toWagonException("bucket", "repo/example.pom", sdk2Exception(404, "NoSuchKey")),
+                instanceOf(ResourceDoesNotExistException.class));
+    }
+
+    @Test
+    public void mapAccessDenied() {
+        WagonException failure = S3Utils.toWagonException("bucket", "repo/example.pom", serviceException(403, "AccessDenied"));
+        assertThat(failure, instanceOf(AuthorizationException.class));
+        assertThat(failure.getMessage(), containsString("s3://bucket/repo/example.pom"));
+    }
+
+    private static AmazonS3 client(LocalS3Server server, RetryPolicy retryPolicy) {
+        return AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                .withClientConfiguration(new ClientConfiguration().withRetryPolicy(retryPolicy))
+                .withPathStyleAccessEnabled(true)
+                .build();
+    }
+
+    private static S3Exception sdk2Exception(int status, String errorCode) {
+        return (S3Exception) S3Exception.builder()
+                .statusCode(status)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode(errorCode).errorMessage(errorCode).build())
+                .build();
+    }
+
+    private static AmazonS3Exception serviceException(int status, String errorCode) {
+        AmazonS3Exception exception = new AmazonS3Exception(errorCode);
+        exception.setStatusCode(status);
+        exception.setErrorCode(errorCode);
+        return exception;
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.Test;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
 
 public class S3UtilsTest {
 
@@ -13,5 +14,39 @@ public class S3UtilsTest {
         assertThat(key, is("release/css/style.css"));
     }
 
+    @Test
+    public void canonicalKeyParentSegments() {
+        assertThat(S3Utils.getCanonicalKey("release/", "foo/bar/../../css/style.css"), is("release/css/style.css"));
+        assertThat(S3Utils.getCanonicalKey("release/", "foo/../../css/style.css"), is("css/style.css"));
+        assertThat(S3Utils.getCanonicalKey("", "../../css/style.css"), is("css/style.css"));
+        assertThat(S3Utils.getCanonicalKey("", "css/.."), is(""));
+    }
+
+    @Test
+    public void canonicalKeySeparators() {
+        assertThat(S3Utils.getCanonicalKey("", "/css//style.css/"), is("css/style.css"));
+        assertThat(S3Utils.getCanonicalKey("release/", "css\\style.css"), is("release/css/style.css"));
+        assertThat(S3Utils.getCanonicalKey("release/", ""), is("release"));
+        assertThat(S3Utils.getCanonicalKey("", ""), is(""));
+    }
+
+    @Test
+    public void canonicalKeyDotsInNames() {
+        assertThat(S3Utils.getCanonicalKey("release/", "org/.hidden/..a/b../style.css"), is("release/org/.hidden/..a/b../style.css"));
+    }
+
+    @Test
+    public void canonicalKeyUnchanged() {
+        String path = S3Utils.getKey("release/", "org/example/1.0/example-1.0.jar");
+        assertThat(S3Utils.isCanonical(path), is(true));
+        assertThat(S3Utils.normalize(path), is(path));
+    }
+
+    @Test
+    public void canonicalKeyCached() {
+        String first = S3Utils.getCanonicalKey("release/", "org/./example/maven-metadata.xml");
+        String second = S3Utils.getCanonicalKey("release/", "org/./example/maven-metadata.xml");
+        assertThat(second, is(sameInstance(first)));
+    }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,78 @@
+package org.kuali.common.aws.s3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+
+public class StagingManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stageInDirectory() throws Exception {
+        File directory = new File(folder.getRoot(), "staging");
+        StagingManager staging = manager(directory, 0);
+        File file = staging.stage("upload", 10);
+        assertThat(file.getParentFile(), is(directory));
+        assertThat(file.isFile(), is(true));
+        assertThat(staging.getStagedBytes(), is(10L));
+
+        staging.release(file);
+        staging.release(file);
+        assertThat(file.exists(), is(false));
+        assertThat(staging.getStagedBytes(), is(0L));
+    }
+
+    @Test
+    public void waitForBudget() throws Exception {
+        StagingManager staging = manager(folder.getRoot(), 100);
+        File first = staging.stage("upload", 60);
+        CompletableFuture<File> second = CompletableFuture.supplyAsync(() -> stage(staging, 60));
+        try {
+            second.get(200, TimeUnit.MILLISECONDS);
+            fail("expected staging to wait for room in the budget");
+        } catch (TimeoutException e) {
+            // still waiting
+        }
+        staging.release(first);
+        staging.release(second.get(5, TimeUnit.SECONDS));
+        assertThat(staging.getStagedBytes(), is(0L));
+    }
+
+    @Test
+    public void unknownAndOversizeFiles() throws Exception {
+        StagingManager staging = manager(folder.getRoot(), 100);
+        // a file larger than the budget gets through when nothing else is staged
+        File large = staging.stage("upload", 500);
+        // files of unknown size never wait, and count once their size is known
+        File download = staging.stage("download", 0);
+        staging.resize(download, 30);
+        assertThat(staging.getStagedBytes(), is(530L));
+        staging.release(large);
+        assertThat(staging.getStagedBytes(), is(30L));
+        staging.release(download);
+        assertThat(staging.getStagedBytes(), is(0L));
+    }
+
+    private static StagingManager manager(File directory, long maxSize) {
+        return new StagingManager(directory, new StagingManager.Budget(maxSize));
+    }
+
+    private static File stage(StagingManager staging, long size) {
+        try {
+            return staging.stage("upload", size);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.kuali.maven.wagon;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kuali.common.aws.s3.LocalS3Server;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class DirectoryIndexTest {
+
+    private LocalS3Server server;
+    private AmazonS3 client;
+
+    @Before
+    public void start() throws Exception {
+        server = new LocalS3Server().start();
+        server.createBucket("bucket");
+        client = AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                .withPathStyleAccessEnabled(true)
+                .build();
+    }
+
+    @After
+    public void stop() {
+        client.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void listFromIndex() throws Exception {
+        DirectoryIndex writer = index(0);
+        writer.record("repo/org/example/1.0/example-1.0.jar", 100, "etag", 1000L);
+        writer.record("repo/org/example/1.0/example-1.0.pom", 10, null, 2000L);
+        writer.flush();
+
+        DirectoryIndex reader = index(0);
+        assertThat(names(reader.list("repo/org/example/1.0/")), is(Arrays.asList("example-1.0.jar", "example-1.0.pom")));
+        assertThat(names(reader.list("repo/org/example/")), is(Arrays.asList("1.0/")));
+        assertThat(names(reader.list("repo/org/")), is(Arrays.asList("example/")));
+        assertThat(names(reader.list("repo/")), is(Arrays.asList("org/")));
+        assertThat(server.getObject("bucket", DirectoryIndex.INDEX_NAME), is(nullValue()));
+
+        long requests = server.getRequestCount();
+        reader.list("repo/org/example/1.0/");
+        assertThat(server.getRequestCount() - requests, is(1L));
+    }
+
+    @Test
+    public void missingIndex() throws Exception {
+        server.putObject("bucket", "repo/org/example/1.0/example-1.0.jar", new byte[10]);
+        assertThat(index(0).list("repo/org/example/1.0/"), is(nullValue()));
+    }
+
+    @Test
+    public void verifyStaleIndex() throws Exception {
+        server.putObject("bucket", "repo/org/example/1.0/example-1.0.jar", new byte[100]);
+        DirectoryIndex writer = index(0);
+        writer.record("repo/org/example/1.0/example-1.0.jar", 100, "etag", 1000L);
+        writer.record("repo/org/example/1.0/example-1.0-sources.jar", 10, "etag", 1000L);
+        writer.flush();
+        Thread.sleep(300);
+        // written and deleted without the wagon
+        server.putObject("bucket", "repo/org/example/1.0/example-1.0.pom", new byte[10]);
+
+        DirectoryIndex reader = index(200);
+        long requests = server.getRequestCount();
+        assertThat(names(reader.list("repo/org/example/1.0/")), is(Arrays.asList("example-1.0.jar", "example-1.0.pom")));
+        // the index, the listing and the updated index
+        assertThat(server.getRequestCount() - requests, is(3L));
+
+        // the verified index is trusted again
+        requests = server.getRequestCount();
+        assertThat(names(reader.list("repo/org/example/1.0/")), is(Arrays.asList("example-1.0.jar", "example-1.0.pom")));
+        assertThat(server.getRequestCount() - requests, is(1L));
+        assertThat(names(index(0).list("repo/org/example/1.0/")), is(Arrays.asList("example-1.0.jar", "example-1.0.pom")));
+    }
+
+    @Test
+    public void seedFromListing() throws Exception {
+        server.putObject("bucket", "repo/org/example/1.0/example-1.0.jar", new byte[10]);
+        server.putObject("bucket", "repo/org/example/1.0/sources/readme.txt", new byte[10]);
+        DirectoryIndex writer = index(0);
+        writer.record("repo/org/example/1.0/example-1.0.pom", 10, null, 2000L);
+        writer.flush();
+
+        List<DirectoryIndex.Entry> entries = index(0).list("repo/org/example/1.0/");
+        assertThat(names(entries), is(Arrays.asList("example-1.0.jar", "example-1.0.pom", "sources/")));
+        assertThat(entries.get(0).getSize(), is(10L));
+        assertThat(entries.get(2).isDirectory(), is(true));
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        DirectoryIndex first = index(0);
+        DirectoryIndex second = index(0);
+        first.record("repo/org/example/1.0/example-1.0.jar", 100, "etag", 1000L);
+        first.flush();
+        // the second writer has a stale copy of the index
+        second.list("repo/org/example/1.0/");
+        first.record("repo/org/example/1.0/example-1.0.pom", 10, null, 2000L);
+        first.flush();
+        second.record("repo/org/example/1.0/example-1.0-sources.jar", 50, null, 3000L);
+        second.flush();
+
+        assertThat(names(index(0).list("repo/org/example/1.0/")),
+                is(Arrays.asList("example-1.0-sources.jar", "example-1.0.jar", "example-1.0.pom")));
+    }
+
+    @Test
+    public void formatRoundTrip() throws Exception {
+        List<DirectoryIndex.Entry> entries = Arrays.asList(
+                DirectoryIndex.Entry.directory("sub dir/"),
+                DirectoryIndex.Entry.file("tab\tname.jar", 1, "etag", 2),
+                DirectoryIndex.Entry.file("ünïcode.pom", 3, null, 4));
+        Map<String, DirectoryIndex.Entry> parsed = DirectoryIndex.parse(new ByteArrayInputStream(DirectoryIndex.format(entries)));
+        assertThat(new ArrayList<>(parsed.values()), is(entries));
+    }
+
+    private DirectoryIndex index(long maxAgeMillis) {
+        return new DirectoryIndex(client, "bucket", "repo/", maxAgeMillis, null);
+    }
+
+    private static List<String> names(Collection<DirectoryIndex.Entry> entries) {
+        List<String> names = new ArrayList<>();
+        for (DirectoryIndex.Entry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+}
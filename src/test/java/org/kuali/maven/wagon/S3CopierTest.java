@@ -0,0 +1,129 @@
+package org.kuali.maven.wagon;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kuali.common.aws.s3.LocalS3Server;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+public class S3CopierTest {
+
+    private static final int MB = 1024 * 1024;
+
+    private LocalS3Server server;
+    private AmazonS3 client;
+    private TransferManager transferManager;
+    private S3Copier copier;
+
+    @Before
+    public void start() throws Exception {
+        server = new LocalS3Server().start();
+        server.createBucket("bucket");
+        client = AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                .withPathStyleAccessEnabled(true)
+                .build();
+        transferManager = TransferManagerBuilder.standard()
+                .withS3Client(client)
+                .withMultipartCopyThreshold(6L * MB)
+                .withMultipartCopyPartSize(5L * MB)
+                .build();
+        copier = new S3Copier(transferManager, 6L * MB, 4);
+    }
+
+    @After
+    public void stop() {
+        transferManager.shutdownNow(true);
+        server.stop();
+    }
+
+    @Test
+    public void copyPrefixMetadataLast() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            server.putObject("bucket", "staging/org/example/1." + i + "/example-1." + i + ".jar", new byte[100]);
+        }
+        server.putObject("bucket", "staging/org/example/maven-metadata.xml", new byte[10]);
+        server.putObject("bucket", "other/org/example/ignored.jar", new byte[10]);
+        List<String> copied = Collections.synchronizedList(new ArrayList<>());
+
+        int count = copier.copyPrefix("bucket", "staging/", "bucket", "release/", (key, size, etag) -> copied.add(key));
+
+        assertThat(count, is(11));
+        assertThat(copied.size(), is(11));
+        assertThat(copied.get(10), is("release/org/example/maven-metadata.xml"));
+        assertThat(server.getObject("bucket", "release/org/example/1.3/example-1.3.jar").length, is(100));
+        assertThat(server.getCopyCount(), is(11L));
+    }
+
+    @Test
+    public void rejectOverlappingPrefixes() throws Exception {
+        server.putObject("bucket", "repository/org/example/1.0/example-1.0.jar", new byte[100]);
+        for (String[] prefixes : new String[][]{{"", "release/"}, {"repository/", "repository/release/"}, {"repository/org/", "repository/"}}) {
+            try {
+                copier.copyPrefix("bucket", prefixes[0], "bucket", prefixes[1], (key, size, etag) -> {
+                });
+                fail("expected overlapping prefixes [" + prefixes[0] + "] and [" + prefixes[1] + "] to be rejected");
+            } catch (TransferFailedException e) {
+                // expected
+            }
+        }
+        assertThat(server.getObjectCount("bucket"), is(1));
+        // the same prefix of another bucket is fine
+        server.createBucket("other");
+        assertThat(copier.copyPrefix("bucket", "repository/", "other", "repository/", (key, size, etag) -> {
+        }), is(1));
+    }
+
+    @Test
+    public void copyLargeObjectInParts() throws Exception {
+        byte[] data = new byte[12 * MB];
+        new Random(12).nextBytes(data);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(data.length);
+        metadata.setContentType("application/java-archive");
+        metadata.addUserMetadata("sha1", "0123456789abcdef");
+        client.putObject("bucket", "staging/example.jar", new ByteArrayInputStream(data), metadata);
+
+        copier.copy("bucket", "staging/example.jar", "bucket", "release/example.jar", (key, size, etag) -> {
+        });
+
+        assertArrayEquals(data, server.getObject("bucket", "release/example.jar"));
+        // three part copies, no content through the client
+        assertThat(server.getCopyCount(), is(3L));
+        ObjectMetadata copy = client.getObjectMetadata("bucket", "release/example.jar");
+        assertThat(copy.getUserMetaDataOf("sha1"), is("0123456789abcdef"));
+        assertThat(copy.getContentType(), is("application/java-archive"));
+    }
+
+    @Test
+    public void copyMissingObject() throws Exception {
+        try {
+            copier.copy("bucket", "staging/missing.jar", "bucket", "release/missing.jar", (key, size, etag) -> {
+            });
+            fail("expected the missing source to be reported");
+        } catch (ResourceDoesNotExistException e) {
+            assertThat(server.getObject("bucket", "release/missing.jar") == null, is(true));
+        }
+    }
+}
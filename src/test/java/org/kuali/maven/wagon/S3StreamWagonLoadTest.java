@@ -0,0 +1,244 @@
+/*
+ * Copyright 2010-2015 The Kuali Foundation
+ * <p>
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.opensource.org/licenses/ecl2.php
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kuali.maven.wagon;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.repository.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kuali.common.aws.s3.LocalS3Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Drives many concurrent uploads and downloads through {@link S3StreamWagon} against a {@link LocalS3Server} with
+ * latency, throttling and dropped connections, checking that every transfer completes with the right content, and
+ * reporting throughput and peak heap usage.
+ * <p>
+ * The test is skipped unless <code>load.transfers</code> is set, which keeps it out of the regular build. Runs are
+ * configured with system properties: <code>load.transfers</code>, <code>load.concurrency</code>, <code>load.size</code> (bytes per transfer),
+ * <code>load.latencyMillis</code>, <code>load.faults</code> (number of each injected failure), and
+ * <code>load.maxHeapBytes</code>, which fails the run if the heap grows beyond it, e.g.
+ * <code>mvn test -Dtest=S3StreamWagonLoadTest -Dload.transfers=5000 -Dload.concurrency=400 -Dload.size=1048576</code>.
+ * </p>
+ */
+public class S3StreamWagonLoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(S3StreamWagonLoadTest.class);
+
+    private static final String BUCKET = "load";
+
+    private final int transfers = Integer.getInteger("load.transfers", 300);
+    private final int concurrency = Integer.getInteger("load.concurrency", 100);
+    private final int size = Integer.getInteger("load.size", 64 * 1024);
+    private final long latencyMillis = Long.getLong("load.latencyMillis", 5);
+    private final int faults = Integer.getInteger("load.faults", 10);
+    private final long maxHeapBytes = Long.getLong("load.maxHeapBytes", Long.MAX_VALUE);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalS3Server server;
+
+    @Before
+    public void start() throws Exception {
+        assumeTrue("load test skipped, set load.transfers to run it", System.getProperty("load.transfers") != null);
+        server = new LocalS3Server().start();
+        server.createBucket(BUCKET);
+        server.setLatencyMillis(latencyMillis);
+    }
+
+    @After
+    public void stop() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void stagedTransfers() throws Exception {
+        server.truncateDownloads(faults, 1024);
+        File staging = folder.newFolder("staging");
+        Properties parameters = new Properties();
+        parameters.setProperty("stagingDirectory", staging.getAbsolutePath());
+        parameters.setProperty("stagingMaxSize", Long.toString(8L * size));
+        // the SDK retries a truncated download only once, so resume them instead
+        parameters.setProperty("resumeDirectory", folder.newFolder("resume").getAbsolutePath());
+        run(parameters, true);
+        assertThat(staging.list().length, is(0));
+    }
+
+    @Test
+    public void streamedTransfers() throws Exception {
+        // a streamed download hands the response body to the caller, so it cannot recover from a truncated body
+        Properties parameters = new Properties();
+        parameters.setProperty("streamDownloads", "true");
+        parameters.setProperty("transferEngine", "async");
+        run(parameters, false);
+    }
+
+    /**
+     * @param staged whether to transfer streams, which are staged in temporary files, instead of local files
+     */
+    private void run(Properties parameters, boolean staged) throws Exception {
+        parameters.setProperty("maxConnections", Integer.toString(concurrency));
+        parameters.setProperty("retryMaxAttempts", "6");
+        parameters.setProperty("retryBaseDelayMillis", "10");
+        parameters.setProperty("retryThrottledBaseDelayMillis", "20");
+        server.throttleRequests(faults);
+        server.dropUploads(faults, 1024);
+
+        HeapSampler heap = new HeapSampler();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        ThreadLocal<S3StreamWagon> wagons = new ThreadLocal<>();
+        List<S3StreamWagon> connected = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < transfers; i++) {
+                int transfer = i;
+                results.add(workers.submit((Callable<Void>) () -> {
+                    S3StreamWagon wagon = wagons.get();
+                    if (wagon == null) {
+                        wagon = connect(parameters);
+                        wagons.set(wagon);
+                        synchronized (connected) {
+                            connected.add(wagon);
+                        }
+                    }
+                    transfer(wagon, transfer, staged);
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            // closing a wagon waits for its connections to shut down gracefully, so close them all at once
+            List<Future<Void>> disconnects = new ArrayList<>();
+            for (S3StreamWagon wagon : connected) {
+                disconnects.add(workers.submit((Callable<Void>) () -> {
+                    wagon.disconnect();
+                    return null;
+                }));
+            }
+            for (Future<Void> disconnect : disconnects) {
+                disconnect.get();
+            }
+            workers.shutdown();
+            heap.stop();
+        }
+        long nanos = System.nanoTime() - start;
+        double megabytes = 2.0 * transfers * size / (1024 * 1024);
+        log.info("load test " + parameters + ": " + transfers + " uploads and downloads of " + size + " bytes, "
+                + concurrency + " at a time, in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms ("
+                + String.format("%.1f", megabytes / (nanos / 1e9)) + " MiB/s), "
+                + server.getRequestCount() + " requests, peak heap " + heap.getPeakBytes() / (1024 * 1024) + " MiB");
+        assertThat(server.getObjectCount(BUCKET), is(transfers));
+        assertTrue("peak heap of [" + heap.getPeakBytes() + "] bytes exceeds [" + maxHeapBytes + "]", heap.getPeakBytes() <= maxHeapBytes);
+    }
+
+    private void transfer(S3StreamWagon wagon, int transfer, boolean staged) throws Exception {
+        byte[] content = new byte[size];
+        new Random(transfer).nextBytes(content);
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+        String resourceName = "org/example/load/" + transfer + "/load-" + transfer + ".jar";
+        if (staged) {
+            try (InputStream in = new FileInputStream(source)) {
+                wagon.putFromStream(in, resourceName, source.length(), source.lastModified());
+            }
+        } else {
+            wagon.put(source, resourceName);
+        }
+        File destination = new File(folder.getRoot(), "download-" + transfer);
+        if (staged) {
+            try (OutputStream out = new FileOutputStream(destination)) {
+                wagon.getToStream(resourceName, out);
+            }
+        } else {
+            wagon.get(resourceName, destination);
+        }
+        if (!Arrays.equals(content, FileUtils.readFileToByteArray(destination))) {
+            throw new AssertionError("corrupted download of [" + resourceName + "]");
+        }
+        FileUtils.deleteQuietly(source);
+        FileUtils.deleteQuietly(destination);
+    }
+
+    private S3StreamWagon connect(Properties parameters) throws Exception {
+        Repository repository = new Repository("load", "s3://" + BUCKET + "/repository");
+        repository.setParameters(parameters);
+        AuthenticationInfo auth = new AuthenticationInfo();
+        auth.setUserName("access");
+        auth.setPassword("secret");
+        S3StreamWagon wagon = new S3StreamWagon();
+        wagon.setEndpoint(server.getEndpoint());
+        wagon.connect(repository, auth);
+        return wagon;
+    }
+
+    /**
+     * Samples the used heap in the background, keeping the peak.
+     */
+    private static class HeapSampler {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final AtomicLong peak = new AtomicLong();
+        private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+
+        HeapSampler() {
+            sampler.scheduleAtFixedRate(() -> peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                    0, 10, TimeUnit.MILLISECONDS);
+        }
+
+        void stop() {
+            sampler.shutdownNow();
+        }
+
+        long getPeakBytes() {
+            return peak.get();
+        }
+    }
+}
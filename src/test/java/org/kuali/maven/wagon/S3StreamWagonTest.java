@@ -16,11 +16,8 @@
 package org.kuali.maven.wagon;
 
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.maven.wagon.ConnectionException;
 import org.apache.maven.wagon.ResourceDoesNotExistException;
 import org.apache.maven.wagon.TransferFailedException;
@@ -29,64 +26,87 @@ import org.apache.maven.wagon.WagonException;
 import org.apache.maven.wagon.authentication.AuthenticationException;
 import org.apache.maven.wagon.authentication.AuthenticationInfo;
 import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.observers.AbstractTransferListener;
 import org.apache.maven.wagon.repository.Repository;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kuali.common.aws.s3.LocalS3Server;
+import org.kuali.common.aws.s3.MultipartUploadOutputStream;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.fail;
 
+/**
+ * Exercises the wagon end to end against an in-process {@link LocalS3Server}, including its recovery from throttling
+ * and dropped connections.
+ */
 public class S3StreamWagonTest {
 
     private static final String testBucketName = "maven-s3-wagon-test-" + UUID.randomUUID();
 
+    private static LocalS3Server server;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @BeforeClass
-    public static void createTestBucket() {
+    public static void createTestBucket() throws IOException {
+        server = new LocalS3Server().start();
         getClient().createBucket(testBucketName);
     }
 
     private static AmazonS3Client getClient() {
-        return ((S3StreamWagon) getS3WagonForMinioTestEndpoint()
-        ).createS3Client(getMinioTestAuth());
+        return ((S3StreamWagon) getS3WagonForLocalTestEndpoint()
+        ).createS3Client(getLocalTestAuth());
     }
 
     @AfterClass
-    public static void cleanupAndRemoveTestBucket() {
-        ObjectListing objectListing = getClient().listObjects(testBucketName);
-        List<S3ObjectSummary> objectSummaries = objectListing.getObjectSummaries();
-        for (S3ObjectSummary objectSummary : objectSummaries) {
-            getClient().deleteObject(testBucketName, objectSummary.getKey());
-        }
-        getClient().deleteBucket(testBucketName);
+    public static void stopTestServer() {
+        server.stop();
     }
 
 
     @Test
     public void customEndpoint() throws ConnectionException, AuthenticationException {
-        AuthenticationInfo auth = getMinioTestAuth();
+        AuthenticationInfo auth = getLocalTestAuth();
         Repository repository = getTestRepo();
-        Wagon wagon = getS3WagonForMinioTestEndpoint();
+        Wagon wagon = getS3WagonForLocalTestEndpoint();
         wagon.connect(repository, auth);
     }
 
 
     @Test(expected = ResourceDoesNotExistException.class)
     public void nonExistent() throws ConnectionException, AuthenticationException, IOException, AuthorizationException, ResourceDoesNotExistException, TransferFailedException {
-        AuthenticationInfo auth = getMinioTestAuth();
+        AuthenticationInfo auth = getLocalTestAuth();
         Repository repository = getTestRepo();
-        Wagon wagon = getS3WagonForMinioTestEndpoint();
+        Wagon wagon = getS3WagonForLocalTestEndpoint();
         wagon.connect(repository, auth);
 
         File tempFile = null;
@@ -99,23 +119,23 @@ public class S3StreamWagonTest {
 
     }
 
-    private Repository getTestRepo() {
-        return new Repository("minio.play", "s3://" + testBucketName + "/");
+    private static Repository getTestRepo() {
+        return new Repository("local", "s3://" + testBucketName + "/");
     }
 
-    private static Wagon getS3WagonForMinioTestEndpoint() {
+    private static Wagon getS3WagonForLocalTestEndpoint() {
         S3StreamWagon wagon = new S3StreamWagon();
-        wagon.setEndpoint("play.min.io");
+        wagon.setEndpoint(server.getEndpoint());
         return wagon;
     }
 
     @Test
     public void putGetList() throws WagonException, URISyntaxException, IOException {
-        AuthenticationInfo auth = getMinioTestAuth();
+        AuthenticationInfo auth = getLocalTestAuth();
         Repository repository = getTestRepo();
         Properties parameters = new Properties();
         repository.setParameters(parameters);
-        Wagon wagon = getS3WagonForMinioTestEndpoint();
+        Wagon wagon = getS3WagonForLocalTestEndpoint();
         wagon.connect(repository, auth);
         URL resource = getClass().getResource("/empty.properties");
         UUID uploadFilename = UUID.randomUUID();
@@ -138,13 +158,619 @@ public class S3StreamWagonTest {
 
         assertThat(FileUtils.readFileToString(destination, StandardCharsets.UTF_8),
                 is(IOUtils.toString(resource, StandardCharsets.UTF_8)));
+        assertThat(wagon.getFileList("integration-test/"), hasItem("integration-test/" + uploadFilename));
+        FileUtils.deleteQuietly(destination);
+    }
+
+    @Test
+    public void listInPages() throws WagonException {
+        S3StreamWagon wagon = connect("listPageSize", "3");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            server.putObject(testBucketName, "paged/file-" + i + ".jar", random(10));
+            expected.add("paged/file-" + i + ".jar");
+        }
+        server.putObject(testBucketName, "paged/sub/nested.jar", random(10));
+        expected.add("paged/sub/");
+
+        long requests = server.getRequestCount();
+        List<String> fileNames = wagon.getFileList("paged");
+        assertThat(server.getRequestCount() - requests, is(4L));
+        Collections.sort(fileNames);
+        assertThat(fileNames, is(expected));
+
+        List<String> iterated = new ArrayList<>();
+        wagon.getFileListIterator("paged/").forEachRemaining(iterated::add);
+        Collections.sort(iterated);
+        assertThat(iterated, is(expected));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void parallelRangedDownload() throws WagonException, IOException {
+        byte[] content = roundTrip(connect("parallelDownloads", "true",
+                "parallelDownloadThreshold", "100000",
+                "parallelDownloadPartSize", "100000"), 1_000_001);
+        assertThat(content.length, is(1_000_001));
+    }
+
+    @Test
+    public void parallelDownloadRequests() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("parallelDownloads", "true",
+                "parallelDownloadThreshold", "300000",
+                "parallelDownloadPartSize", "100000");
+        byte[] small = random(1000);
+        byte[] medium = random(250_000);
+        server.putObject(testBucketName, "parallel/small.pom", small);
+        server.putObject(testBucketName, "parallel/medium.jar", medium);
+        server.putObject(testBucketName, "parallel/empty.txt", new byte[0]);
+
+        // objects no larger than a part take a single request
+        long requests = server.getRequestCount();
+        assertArrayEquals(small, get(wagon, "parallel/small.pom"));
+        assertThat(server.getRequestCount() - requests, is(1L));
+
+        // the rest of objects below the threshold is fetched with one more request
+        requests = server.getRequestCount();
+        assertArrayEquals(medium, get(wagon, "parallel/medium.jar"));
+        assertThat(server.getRequestCount() - requests, is(2L));
+
+        assertArrayEquals(new byte[0], get(wagon, "parallel/empty.txt"));
+        try {
+            get(wagon, "parallel/missing.jar");
+            fail("expected a missing resource");
+        } catch (ResourceDoesNotExistException e) {
+            // expected
+        }
+        wagon.disconnect();
+    }
+
+    @Test
+    public void resourceExistsAndGetIfNewer() throws WagonException, IOException {
+        S3StreamWagon wagon = connect();
+        byte[] content = random(1000);
+        server.putObject(testBucketName, "newer/content.jar", content);
+
+        // a single HEAD request
+        long requests = server.getRequestCount();
+        assertThat(wagon.resourceExists("newer/content.jar"), is(true));
+        assertThat(server.getRequestCount() - requests, is(1L));
+        assertThat(wagon.resourceExists("newer/missing.jar"), is(false));
+        assertThat(wagon.resourceExists("newer/"), is(true));
+
+        // not modified takes only the HEAD request
+        File destination = new File(folder.getRoot(), UUID.randomUUID().toString());
+        requests = server.getRequestCount();
+        assertThat(wagon.getIfNewer("newer/content.jar", destination, System.currentTimeMillis() + 60_000), is(false));
+        assertThat(server.getRequestCount() - requests, is(1L));
+        assertThat(destination.exists(), is(false));
+
+        assertThat(wagon.getIfNewer("newer/content.jar", destination, 1), is(true));
+        assertArrayEquals(content, FileUtils.readFileToByteArray(destination));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void cachedImmutableGetIfNewer() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("cacheDirectory", folder.newFolder().getAbsolutePath());
+        byte[] content = random(1000);
+        server.putObject(testBucketName, "cached/org/example/1.0/example-1.0.jar", content);
+        assertArrayEquals(content, get(wagon, "cached/org/example/1.0/example-1.0.jar"));
+
+        // served from the cache without a HEAD request
+        File destination = new File(folder.getRoot(), UUID.randomUUID().toString());
+        long requests = server.getRequestCount();
+        assertThat(wagon.getIfNewer("cached/org/example/1.0/example-1.0.jar", destination, 1), is(true));
+        assertThat(wagon.getIfNewer("cached/org/example/1.0/example-1.0.jar", destination, System.currentTimeMillis() + 60_000), is(false));
+        assertThat(server.getRequestCount() - requests, is(0L));
+        assertArrayEquals(content, FileUtils.readFileToByteArray(destination));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void streamDownloads() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("streamDownloads", "true");
+        byte[] content = random(100_000);
+        server.putObject(testBucketName, "stream/content.jar", content);
+        assertArrayEquals(content, get(wagon, "stream/content.jar"));
+
+        // a conditional GET answered with "304 Not Modified" leaves the destination alone
+        File destination = new File(folder.getRoot(), UUID.randomUUID().toString());
+        long requests = server.getRequestCount();
+        assertThat(wagon.getIfNewer("stream/content.jar", destination, System.currentTimeMillis() + 60_000), is(false));
+        assertThat(server.getRequestCount() - requests, is(1L));
+        assertThat(destination.exists(), is(false));
+
+        assertThat(wagon.getIfNewer("stream/content.jar", destination, 1), is(true));
+        assertArrayEquals(content, FileUtils.readFileToByteArray(destination));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void multipartStreamedUpload() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("streamUploads", "true",
+                "uploadPartSize", Integer.toString(MultipartUploadOutputStream.MIN_PART_SIZE));
+        byte[] content = random(MultipartUploadOutputStream.MIN_PART_SIZE * 2 + 1000);
+        wagon.putFromStream(new ByteArrayInputStream(content), "multipart/streamed.jar");
+        assertArrayEquals(content, get(wagon, "multipart/streamed.jar"));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void resumeDroppedDownload() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("resumeDirectory", folder.newFolder().getAbsolutePath());
+        byte[] content = random(1_000_000);
+        server.putObject(testBucketName, "resume/dropped.jar", content);
+        server.truncateDownloads(1, 300_000);
+        assertArrayEquals(content, get(wagon, "resume/dropped.jar"));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void uploadProgress() throws WagonException, IOException {
+        S3StreamWagon wagon = connect();
+        String key = "progress/uploaded.jar";
+        AtomicLong progress = new AtomicLong();
+        List<Exception> errors = new ArrayList<>();
+        wagon.addTransferListener(new AbstractTransferListener() {
+            @Override
+            public void transferProgress(TransferEvent event, byte[] buffer, int length) {
+                // progress is reported once the object is stored
+                assertThat(server.getObject(testBucketName, key) == null, is(false));
+                progress.addAndGet(length);
+            }
+
+            @Override
+            public void transferError(TransferEvent event) {
+                errors.add(event.getException());
+            }
+        });
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, random(200_000));
+        wagon.put(source, key);
+        assertThat(progress.get(), is(200_000L));
+        assertThat(errors.isEmpty(), is(true));
+
+        try {
+            wagon.put(new File(folder.getRoot(), "missing.jar"), "progress/missing.jar");
+            fail("uploaded a missing file");
+        } catch (TransferFailedException e) {
+            assertThat(errors, is(Collections.<Exception>singletonList(e)));
+        }
+        wagon.disconnect();
+    }
+
+    @Test
+    public void downloadProgress() throws WagonException, IOException {
+        S3StreamWagon wagon = connect();
+        ByteArrayOutputStream progress = new ByteArrayOutputStream();
+        wagon.addTransferListener(new AbstractTransferListener() {
+            @Override
+            public void transferProgress(TransferEvent event, byte[] buffer, int length) {
+                progress.write(buffer, 0, length);
+            }
+        });
+        byte[] content = random(1_000_000);
+        server.putObject(testBucketName, "progress/dropped.jar", content);
+        server.truncateDownloads(1, 300_000);
+        long requests = server.getRequestCount();
+        assertArrayEquals(content, get(wagon, "progress/dropped.jar"));
+        // the download, and the remaining bytes after the dropped connection
+        assertThat(server.getRequestCount() - requests, is(2L));
+        assertArrayEquals(content, progress.toByteArray());
+        wagon.disconnect();
+    }
+
+    @Test
+    public void queuedResumableUploadsDoNotBlock() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("transferEngine", "async", "concurrentUploads", "2",
+                "resumeDirectory", folder.newFolder().getAbsolutePath(),
+                "uploadPartSize", Integer.toString(MultipartUploadOutputStream.MIN_PART_SIZE));
+        byte[] content = random(MultipartUploadOutputStream.MIN_PART_SIZE + 1000);
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+        server.setLatencyMillis(300);
+        try {
+            long start = System.nanoTime();
+            wagon.put(source, "resume/queued-1.jar");
+            wagon.put(source, "resume/queued-2.jar");
+            // each upload takes at least three requests
+            assertThat(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(800), is(true));
+            wagon.disconnect();
+        } finally {
+            server.setLatencyMillis(0);
+        }
+        assertArrayEquals(content, server.getObject(testBucketName, "resume/queued-1.jar"));
+        assertArrayEquals(content, server.getObject(testBucketName, "resume/queued-2.jar"));
+    }
 
+    @Test
+    public void retryDroppedUpload() throws WagonException, IOException {
+        S3StreamWagon wagon = connect();
+        server.dropUploads(1, 1000);
+        byte[] content = random(100_000);
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+        wagon.put(source, "retry/dropped.jar");
+        assertArrayEquals(content, server.getObject(testBucketName, "retry/dropped.jar"));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void retryThrottledRequests() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("retryThrottledBaseDelayMillis", "10");
+        server.throttleRequests(2);
+        roundTrip(wagon, 10_000);
+    }
+
+    @Test
+    public void failAfterRetries() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("retryMaxAttempts", "2", "retryThrottledBaseDelayMillis", "10");
+        server.putObject(testBucketName, "throttled/throttled.jar", new byte[10]);
+        server.throttleRequests(2);
+        try {
+            get(wagon, "throttled/throttled.jar");
+            fail("expected throttled download to fail");
+        } catch (TransferFailedException e) {
+            // expected
+        } finally {
+            server.throttleRequests(0);
+        }
+        wagon.disconnect();
+    }
+
+    @Test
+    public void asyncRetryPolicy() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("transferEngine", "async", "retryMaxAttempts", "2", "retryThrottledBaseDelayMillis", "10");
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, random(1000));
+        server.throttleRequests(1);
+        wagon.put(source, "throttled/async-retried.jar");
+        server.throttleRequests(2);
+        try {
+            wagon.put(source, "throttled/async-throttled.jar");
+            fail("expected throttled upload to fail");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString("throttling"));
+        } finally {
+            server.throttleRequests(0);
+        }
+        wagon.disconnect();
+    }
+
+    @Test
+    public void asyncMultipartUpload() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("transferEngine", "async");
+        byte[] content = random(20 * 1024 * 1024);
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+        long requests = server.getRequestCount();
+        wagon.put(source, "multipart/async.jar");
+        // initiate, four parts of 5 MB and complete
+        assertThat(server.getRequestCount() - requests, is(6L));
+        assertArrayEquals(content, server.getObject(testBucketName, "multipart/async.jar"));
+        assertArrayEquals(content, get(wagon, "multipart/async.jar"));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void asyncRequestTimeout() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("transferEngine", "async", "requestTimeout", "200");
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, random(1000));
+        server.setLatencyMillis(3000);
+        long start = System.nanoTime();
+        try {
+            wagon.put(source, "timeout/slow.jar");
+            fail("expected slow upload to time out");
+        } catch (TransferFailedException e) {
+            assertThat(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(2500), is(true));
+        } finally {
+            server.setLatencyMillis(0);
+        }
+        wagon.disconnect();
+    }
+
+    @Test
+    public void skipUnchangedUploads() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("skipUnchangedUploads", "true");
+        byte[] content = random(1000);
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+        wagon.put(source, "unchanged/put.jar");
+        assertArrayEquals(content, server.getObject(testBucketName, "unchanged/put.jar"));
+
+        // an identical re-put takes only the HEAD request, matching the recorded SHA-1
+        long requests = server.getRequestCount();
+        wagon.put(source, "unchanged/put.jar");
+        assertThat(server.getRequestCount() - requests, is(1L));
+
+        // or matching the ETag of an object uploaded by other means
+        server.putObject(testBucketName, "unchanged/other.jar", content);
+        requests = server.getRequestCount();
+        wagon.put(source, "unchanged/other.jar");
+        assertThat(server.getRequestCount() - requests, is(1L));
+
+        byte[] changed = random(1001);
+        FileUtils.writeByteArrayToFile(source, changed);
+        wagon.put(source, "unchanged/put.jar");
+        assertArrayEquals(changed, server.getObject(testBucketName, "unchanged/put.jar"));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void negativeCache() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("negativeCacheTtlMillis", "60000");
+        long requests = server.getRequestCount();
+        assertThat(wagon.resourceExists("missing/cached.jar"), is(false));
+        assertThat(server.getRequestCount() - requests, is(1L));
+
+        // repeated lookups of the missing resource take no requests, until it expires or is uploaded by the wagon
+        server.putObject(testBucketName, "missing/cached.jar", random(10));
+        requests = server.getRequestCount();
+        assertThat(wagon.resourceExists("missing/cached.jar"), is(false));
+        try {
+            get(wagon, "missing/cached.jar");
+            fail("expected the cached missing resource");
+        } catch (ResourceDoesNotExistException e) {
+            // expected
+        }
+        assertThat(server.getRequestCount() - requests, is(0L));
+
+        byte[] content = random(1000);
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+        wagon.put(source, "missing/cached.jar");
+        assertThat(wagon.resourceExists("missing/cached.jar"), is(true));
+        assertArrayEquals(content, get(wagon, "missing/cached.jar"));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void directoryRoundTrip() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("directoryConcurrency", "4");
+        File source = folder.newFolder();
+        for (int i = 0; i < 20; i++) {
+            FileUtils.writeByteArrayToFile(new File(source, "site/" + (i % 3) + "/page-" + i + ".html"), random(i * 100));
+        }
+        wagon.putDirectory(source, "site-directory");
+        File destination = folder.newFolder();
+        assertThat(wagon.getDirectory("site-directory", destination), is(20));
+        for (int i = 0; i < 20; i++) {
+            String path = "site/" + (i % 3) + "/page-" + i + ".html";
+            assertArrayEquals(FileUtils.readFileToByteArray(new File(source, path)), FileUtils.readFileToByteArray(new File(destination, path)));
+        }
+        wagon.disconnect();
+    }
+
+    @Test
+    public void directoryDiff() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("directoryDiff", "true");
+        AtomicLong progress = new AtomicLong();
+        wagon.addTransferListener(new AbstractTransferListener() {
+            @Override
+            public void transferProgress(TransferEvent event, byte[] buffer, int length) {
+                progress.addAndGet(length);
+            }
+        });
+        File source = folder.newFolder();
+        long totalBytes = 0;
+        for (int i = 0; i < 10; i++) {
+            FileUtils.writeByteArrayToFile(new File(source, "site/page-" + i + ".html"), random(100 + i));
+            totalBytes += 100 + i;
+        }
+        wagon.putDirectory(source, "diff-directory");
+        assertThat(progress.get(), is(totalBytes));
+
+        FileUtils.writeByteArrayToFile(new File(source, "site/page-3.html"), random(5000));
+        long requests = server.getRequestCount();
+        wagon.putDirectory(source, "diff-directory");
+        // a listing of the destination, and the upload of the changed file
+        assertThat(server.getRequestCount() - requests, is(2L));
+
+        File destination = folder.newFolder();
+        progress.set(0);
+        assertThat(wagon.getDirectory("diff-directory", destination), is(10));
+        assertThat(progress.get(), is(totalBytes - 103 + 5000));
+        FileUtils.writeByteArrayToFile(new File(destination, "site/page-5.html"), random(42));
+        assertThat(wagon.getDirectory("diff-directory", destination), is(1));
+        for (int i = 0; i < 10; i++) {
+            String path = "site/page-" + i + ".html";
+            assertArrayEquals(FileUtils.readFileToByteArray(new File(source, path)), FileUtils.readFileToByteArray(new File(destination, path)));
+        }
+        wagon.disconnect();
+    }
+
+    @Test
+    public void copyWithinS3() throws WagonException, IOException {
+        S3StreamWagon wagon = connect();
+        byte[] content = random(1000);
+        server.putObject(testBucketName, "staging/copied.jar", content);
+        long copies = server.getCopyCount();
+        wagon.copy("staging/copied.jar", "release/copied.jar");
+        assertThat(server.getCopyCount() - copies, is(1L));
+        assertArrayEquals(content, get(wagon, "release/copied.jar"));
+        wagon.disconnect();
+    }
+
+    @Test
+    public void compressedUploads() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("compressPattern", ".*\\.json",
+                "uploadPartSize", Integer.toString(MultipartUploadOutputStream.MIN_PART_SIZE));
+        byte[] content = compressible(100_000);
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+        wagon.put(source, "compressed/put.json");
+        wagon.putFromStream(new ByteArrayInputStream(content), "compressed/staged.json");
+        // content that does not compress takes a multipart upload
+        byte[] large = random(MultipartUploadOutputStream.MIN_PART_SIZE * 2 + 1000);
+        FileUtils.writeByteArrayToFile(source, large);
+        wagon.put(source, "compressed/large.json");
+        wagon.disconnect();
+        assertCompressed("compressed/put.json", content);
+        assertCompressed("compressed/staged.json", content);
+        assertCompressed("compressed/large.json", large);
+        assertThat(server.getObject(testBucketName, "compressed/put.json").length < content.length, is(true));
+
+        wagon = connect("compressPattern", ".*\\.json", "streamUploads", "true",
+                "uploadPartSize", Integer.toString(MultipartUploadOutputStream.MIN_PART_SIZE));
+        wagon.putFromStream(new ByteArrayInputStream(content), "compressed/streamed.json");
+        wagon.putFromStream(new ByteArrayInputStream(large), "compressed/streamed-large.json");
+        wagon.disconnect();
+        assertCompressed("compressed/streamed.json", content);
+        assertCompressed("compressed/streamed-large.json", large);
+    }
+
+    @Test
+    public void compressedDownloads() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("compressPattern", ".*\\.json");
+        byte[] content = compressible(500_000);
+        File source = folder.newFolder();
+        FileUtils.writeByteArrayToFile(new File(source, "data/content.json"), content);
+        wagon.putDirectory(source, "compressed-downloads");
+        wagon.disconnect();
+        assertCompressed("compressed-downloads/data/content.json", content);
+
+        String[][] configurations = {
+                {},
+                {"streamDownloads", "true"},
+                {"cacheDirectory", folder.newFolder().getAbsolutePath()},
+                {"parallelDownloads", "true", "parallelDownloadThreshold", "10000", "parallelDownloadPartSize", "10000"},
+                {"resumeDirectory", folder.newFolder().getAbsolutePath()}};
+        for (String[] configuration : configurations) {
+            wagon = connect(configuration);
+            // direct to a file, and staged for a stream
+            assertArrayEquals(content, get(wagon, "compressed-downloads/data/content.json"));
+            ByteArrayOutputStream staged = new ByteArrayOutputStream();
+            wagon.getToStream("compressed-downloads/data/content.json", staged);
+            assertArrayEquals(content, staged.toByteArray());
+            File destination = folder.newFolder();
+            assertThat(wagon.getDirectory("compressed-downloads", destination), is(1));
+            assertArrayEquals(content, FileUtils.readFileToByteArray(new File(destination, "data/content.json")));
+            wagon.disconnect();
+        }
+    }
+
+    @Test
+    public void queuedUploads() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("concurrentUploads", "4");
+        byte[] content = random(1000);
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+        for (int i = 0; i < 20; i++) {
+            wagon.put(source, "queued/" + i + "/queued.jar");
+        }
+        wagon.put(source, "queued/maven-metadata.xml");
+        // queued uploads are awaited when the connection closes
+        wagon.disconnect();
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(content, server.getObject(testBucketName, "queued/" + i + "/queued.jar"));
+        }
+        assertArrayEquals(content, server.getObject(testBucketName, "queued/maven-metadata.xml"));
+    }
+
+    @Test
+    public void failMetadataAfterFailedQueuedUploads() throws WagonException, IOException {
+        S3StreamWagon wagon = connect("concurrentUploads", "2", "retryMaxAttempts", "1");
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, random(1000));
+        server.throttleRequests(1);
+        try {
+            wagon.put(source, "failed-queue/1.0/failed.jar");
+            // Maven ignores failures when disconnecting, so the metadata that comes last fails instead
+            try {
+                wagon.put(source, "failed-queue/maven-metadata.xml");
+                fail("expected the failed upload to be reported");
+            } catch (TransferFailedException e) {
+                assertThat(e.getMessage(), containsString("failed-queue/1.0/failed.jar"));
+            }
+        } finally {
+            server.throttleRequests(0);
+        }
+        try {
+            wagon.disconnect();
+            fail("expected the failed upload to be reported again");
+        } catch (ConnectionException e) {
+            // expected
+        }
+        assertThat(server.getObject(testBucketName, "failed-queue/maven-metadata.xml") == null, is(true));
+    }
+
+    @Test
+    public void promoteRepository() throws WagonException {
+        byte[] content = random(1000);
+        server.putObject(testBucketName, "promote-staging/org/a/1.0/a-1.0.jar", content);
+        server.putObject(testBucketName, "promote-staging/org/a/1.0/a-1.0.pom", content);
+        server.putObject(testBucketName, "promote-staging/org/a/maven-metadata.xml", content);
+        server.putObject(testBucketName, "promote-staging/com/b/1.0/b-1.0.jar", content);
+        Properties parameters = new Properties();
+        parameters.setProperty("endpoint", server.getEndpoint());
+        int promoted = S3Promote.promote("s3://" + testBucketName + "/promote-staging", "org",
+                "s3://" + testBucketName + "/promote-release", getLocalTestAuth(), parameters);
+        assertThat(promoted, is(3));
+        assertArrayEquals(content, server.getObject(testBucketName, "promote-release/org/a/1.0/a-1.0.jar"));
+        assertArrayEquals(content, server.getObject(testBucketName, "promote-release/org/a/maven-metadata.xml"));
+        assertThat(server.getObject(testBucketName, "promote-release/com/b/1.0/b-1.0.jar") == null, is(true));
+    }
+
+    private static S3StreamWagon connect(String... parameters) throws ConnectionException, AuthenticationException {
+        Repository repository = getTestRepo();
+        Properties properties = new Properties();
+        for (int i = 0; i < parameters.length; i += 2) {
+            properties.setProperty(parameters[i], parameters[i + 1]);
+        }
+        repository.setParameters(properties);
+        S3StreamWagon wagon = (S3StreamWagon) getS3WagonForLocalTestEndpoint();
+        wagon.connect(repository, getLocalTestAuth());
+        return wagon;
+    }
+
+    private byte[] roundTrip(S3StreamWagon wagon, int size) throws WagonException, IOException {
+        byte[] content = random(size);
+        File source = folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+        String resourceName = "round-trip/" + UUID.randomUUID() + ".jar";
+        wagon.put(source, resourceName);
+        byte[] downloaded = get(wagon, resourceName);
+        assertArrayEquals(content, downloaded);
+        wagon.disconnect();
+        return downloaded;
+    }
+
+    private byte[] get(S3StreamWagon wagon, String resourceName) throws WagonException, IOException {
+        File destination = new File(folder.getRoot(), UUID.randomUUID().toString());
+        wagon.get(resourceName, destination);
+        return FileUtils.readFileToByteArray(destination);
+    }
+
+    private static byte[] random(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * @return text that compresses well
+     */
+    private static byte[] compressible(int size) {
+        StringBuilder text = new StringBuilder(size + 32);
+        for (int i = 0; text.length() < size; i++) {
+            text.append("{\"line\": ").append(i).append("}\n");
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    private static void assertCompressed(String key, byte[] content) throws IOException {
+        assertThat(server.getObjectMetadata(testBucketName, key).get("x-amz-meta-codec"), is("gzip"));
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(server.getObject(testBucketName, key)))) {
+            assertArrayEquals(content, IOUtils.toByteArray(in));
+        }
     }
 
-    private static AuthenticationInfo getMinioTestAuth() {
+    private static AuthenticationInfo getLocalTestAuth() {
         AuthenticationInfo auth = new AuthenticationInfo();
-        auth.setUserName("Q3AM3UQ867SPQQA43P2F");
-        auth.setPassword("zuf+tfteSlswRu7BJ86wekitnifILbZam1KYY3TG");
+        auth.setUserName("access");
+        auth.setPassword("secret");
         return auth;
     }
 
@@ -0,0 +1,166 @@
+package org.kuali.maven.wagon;
+
+import org.apache.maven.wagon.TransferFailedException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class TransferBatchTest {
+
+    @Test
+    public void metadataLast() throws TransferFailedException {
+        List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+        TransferBatch batch = new TransferBatch(4);
+        batch.submit("org/example/maven-metadata.xml", upload(uploaded, "org/example/maven-metadata.xml"), () -> {
+        });
+        for (int i = 0; i < 10; i++) {
+            String resourceName = "org/example/" + i + "/example-" + i + ".jar";
+            batch.submit(resourceName, upload(uploaded, resourceName), () -> {
+            });
+        }
+        batch.await();
+        batch.shutdown();
+
+        assertThat(uploaded.size(), is(11));
+        assertThat(uploaded.get(10), is("org/example/maven-metadata.xml"));
+    }
+
+    @Test
+    public void skipMetadataOnFailure() {
+        List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger cleanups = new AtomicInteger();
+        TransferBatch batch = new TransferBatch(2);
+        batch.submit("org/example/1.0/example-1.0.jar", () -> {
+            throw new IOException("kaboom");
+        }, cleanups::incrementAndGet);
+        batch.submit("org/example/1.0/example-1.0.pom", upload(uploaded, "org/example/1.0/example-1.0.pom"), cleanups::incrementAndGet);
+        batch.submit("org/example/maven-metadata.xml", upload(uploaded, "org/example/maven-metadata.xml"), cleanups::incrementAndGet);
+        try {
+            batch.await();
+            fail("expected failed upload to be reported");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString("org/example/1.0/example-1.0.jar"));
+        } finally {
+            batch.shutdown();
+        }
+
+        assertThat(uploaded, hasItem("org/example/1.0/example-1.0.pom"));
+        assertThat(uploaded, not(hasItem("org/example/maven-metadata.xml")));
+        assertThat(cleanups.get(), is(3));
+    }
+
+    @Test
+    public void reportFailuresEarly() throws Exception {
+        List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+        TransferBatch batch = new TransferBatch(2);
+        batch.checkFailures();
+        batch.submit("org/example/1.0/example-1.0.jar", () -> {
+            throw new IOException("kaboom");
+        }, () -> {
+        });
+        batch.submit("org/example/maven-metadata.xml", upload(uploaded, "org/example/maven-metadata.xml"), () -> {
+        });
+        try {
+            batch.awaitScheduled();
+            fail("expected failed upload to be reported");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString("org/example/1.0/example-1.0.jar"));
+        }
+        try {
+            batch.checkFailures();
+            fail("expected failed upload to be reported again");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString("org/example/1.0/example-1.0.jar"));
+        }
+        try {
+            batch.await();
+            fail("expected failed upload to be reported by await");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString("org/example/1.0/example-1.0.jar"));
+        } finally {
+            batch.shutdown();
+        }
+        assertThat(uploaded.isEmpty(), is(true));
+    }
+
+    @Test
+    public void repeatedSubmissions() {
+        AtomicInteger cleanups = new AtomicInteger();
+        AtomicInteger metadataUploads = new AtomicInteger();
+        TransferBatch batch = new TransferBatch(2);
+        batch.submit("org/example/1.0/example-1.0.jar", () -> {
+            throw new IOException("first attempt");
+        }, cleanups::incrementAndGet);
+        batch.submit("org/example/1.0/example-1.0.jar", () -> null, cleanups::incrementAndGet);
+        batch.submit("org/example/maven-metadata.xml", () -> {
+            metadataUploads.incrementAndGet();
+            return null;
+        }, cleanups::incrementAndGet);
+        batch.submit("org/example/maven-metadata.xml", () -> {
+            metadataUploads.incrementAndGet();
+            return null;
+        }, cleanups::incrementAndGet);
+        try {
+            batch.await();
+            fail("expected the failure of the first submission to be reported");
+        } catch (TransferFailedException e) {
+            assertThat(e.getSuppressed()[0].getMessage(), is("first attempt"));
+        } finally {
+            batch.shutdown();
+        }
+        assertThat(metadataUploads.get(), is(0));
+        assertThat(cleanups.get(), is(4));
+    }
+
+    @Test
+    public void asyncUploads() throws TransferFailedException {
+        List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger cleanups = new AtomicInteger();
+        TransferBatch batch = new TransferBatch(1);
+        batch.submitAsync("org/example/maven-metadata.xml", () -> {
+            uploaded.add("org/example/maven-metadata.xml");
+            return CompletableFuture.completedFuture(null);
+        }, cleanups::incrementAndGet);
+        for (int i = 0; i < 10; i++) {
+            String resourceName = "org/example/" + i + "/example-" + i + ".jar";
+            CompletableFuture<Void> upload = new CompletableFuture<>();
+            pending.add(upload);
+            batch.submitAsync(resourceName, () -> {
+                started.incrementAndGet();
+                return upload.thenRun(() -> uploaded.add(resourceName));
+            }, cleanups::incrementAndGet);
+        }
+        // all uploads are in flight at once, although the batch has a single thread
+        assertThat(started.get(), is(10));
+        pending.forEach(upload -> upload.complete(null));
+        batch.await();
+        batch.shutdown();
+
+        assertThat(uploaded.size(), is(11));
+        assertThat(uploaded.get(10), is("org/example/maven-metadata.xml"));
+        assertThat(cleanups.get(), is(11));
+    }
+
+    private static Callable<Void> upload(List<String> uploaded, String resourceName) {
+        return () -> {
+            uploaded.add(resourceName);
+            return null;
+        };
+    }
+
+}